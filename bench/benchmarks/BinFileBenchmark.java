@@ -0,0 +1,29 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * File throughput for the raw byte format in every mode, through buffered streams and
+ * through memory mapping, on the T-table, bitsliced and jce engines; add the vector
+ * engine with -p engine=vector where it is available. The io option is ignored by ctr
+ * and gcm.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class BinFileBenchmark extends FileBenchmark {
+
+    @Param({"ecb", "cbc", "ctr", "gcm"})
+    public String mode;
+
+    @Param({"stream", "mmap"})
+    public String io;
+
+    @Param({"ttable", "bitsliced", "jce"})
+    public String engine;
+
+    @Override
+    protected String[] options() {
+        return new String[] {"-mode", mode, "-format", "bin", "-io", io, "-engine", engine};
+    }
+}
@@ -0,0 +1,118 @@
+package benchmarks;
+
+import static benchmarks.Targets.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end file throughput through AES.main at several file sizes. Each invocation
+ * encrypts or decrypts one whole file, so size divided by the score gives the throughput.
+ * HexFileBenchmark and BinFileBenchmark choose the options passed to main.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public abstract class FileBenchmark {
+
+    @Param({"65536", "1048576", "16777216"})
+    public int size;
+
+    private File dir;
+    private String keyFile;
+    private String plainFile;
+    private String encryptedFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        boolean hex = options()[3].equals("hex");
+        dir = File.createTempFile("aesbench", "");
+        dir.delete();
+        dir.mkdir();
+        keyFile = new File(dir, "key").getPath();
+        PrintWriter k = new PrintWriter(keyFile);
+        k.println("2B7E151628AED2A6ABF7158809CF4F3C");
+        k.println("000102030405060708090A0B0C0D0E0F");
+        k.close();
+
+        plainFile = new File(dir, "plain").getPath();
+        Random random = new Random(42);
+        if (hex) {
+            PrintWriter p = new PrintWriter(plainFile);
+            for (int i = 0; i < size / 16; i++) {
+                p.printf("%016X%016X%n", random.nextLong(), random.nextLong());
+            }
+            p.close();
+        } else {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            OutputStream p = new FileOutputStream(plainFile);
+            p.write(data);
+            p.close();
+        }
+        run("e", plainFile);
+        encryptedFile = new File(dir, "cipher").getPath();
+        new File(plainFile + ".enc").renameTo(new File(encryptedFile));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (dir == null) {
+            return;
+        }
+        File[] files = dir.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * @return the options passed to main, starting with -mode, value, -format, value.
+     */
+    protected abstract String[] options();
+
+    private void run(String direction, String inputFile) throws Throwable {
+        String[] options = options();
+        String[] args = new String[options.length + 3];
+        args[0] = direction;
+        System.arraycopy(options, 0, args, 1, options.length);
+        args[args.length - 2] = keyFile;
+        args[args.length - 1] = inputFile;
+        MAIN.invokeExact(args);
+    }
+
+    @Benchmark
+    public void encrypt() throws Throwable {
+        run("e", plainFile);
+    }
+
+    @Benchmark
+    public void decrypt() throws Throwable {
+        run("d", encryptedFile);
+    }
+}
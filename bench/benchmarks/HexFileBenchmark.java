@@ -0,0 +1,24 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * File throughput for the hex line format, on the reference and T-table engines and on
+ * the JVM's own AES for comparison.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class HexFileBenchmark extends FileBenchmark {
+
+    @Param({"ecb", "cbc"})
+    public String mode;
+
+    @Param({"reference", "ttable", "jce"})
+    public String engine;
+
+    @Override
+    protected String[] options() {
+        return new String[] {"-mode", mode, "-format", "hex", "-engine", engine};
+    }
+}
@@ -0,0 +1,249 @@
+package benchmarks;
+
+import static benchmarks.Targets.*;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.annotations.Mode;
+
+/**
+ * Single block primitives: the key schedule, each round step of the reference engine,
+ * whole-block encryption and decryption on every engine, and both hex line codecs. The
+ * batch benchmarks process AESCipher.BATCH blocks per operation: four, or one group of
+ * four per vector lane when the jdk.incubator.vector module is present, so divide by
+ * BATCH to compare them per block.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrimitiveBenchmark {
+
+    @Param({"128", "256"})
+    public int length;
+
+    private Object aes;
+    private Object cipher;
+    private Object bitsliced;
+    private Object jce;
+    private String key;
+    private int[][] keymatrix;
+    private int[][][] subkeys;
+    private int[][] state;
+    private int[] block;
+    private int[] batch;
+    private String line;
+    private Object codec;
+
+    @Setup
+    public void setUp() throws Throwable {
+        key = length == 128 ? "2B7E151628AED2A6ABF7158809CF4F3C" : "603DEB1015CA71BE2B73AEF0857D77811F352C073B6108D72D9810A30914DFF4";
+        aes = NEW_AES.invokeExact();
+        cipher = CIPHER_GET_INSTANCE.invokeExact(key);
+        bitsliced = CIPHER_BITSLICED.invokeExact(cipher);
+        jce = CIPHER_WITH_ENGINE.invokeExact(cipher, ENGINE_FOR_NAME.invokeExact("jce"));
+        keymatrix = (int[][]) KEY_SCHEDULE.invokeExact(aes, key);
+        subkeys = (int[][][]) SUB_KEYS.invokeExact(aes, keymatrix);
+        line = "6BC1BEE22E409F96E93D7E117393172A";
+        state = new int[4][4];
+        HEX_TO_MATRIX.invokeExact(line, state);
+        block = new int[] {0x6bc1bee2, 0x2e409f96, 0xe93d7e11, 0x7393172a};
+        batch = new int[4 * BATCH];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = block[i % 4] + i;
+        }
+        codec = NEW_HEX_CODEC.invokeExact((Reader) new RepeatingReader(line + "\n"), (Writer) new NullWriter());
+    }
+
+    @Benchmark
+    public int[][] keySchedule() throws Throwable {
+        return (int[][]) KEY_SCHEDULE.invokeExact(aes, key);
+    }
+
+    @Benchmark
+    public int[] keyScheduleWords() throws Throwable {
+        int[][] km = (int[][]) KEY_SCHEDULE.invokeExact(aes, key);
+        int[] rk = (int[]) EXPAND_ENCRYPTION_KEY.invokeExact(km);
+        return (int[]) EXPAND_DECRYPTION_KEY.invokeExact(rk);
+    }
+
+    @Benchmark
+    public int[][] subBytes() throws Throwable {
+        SUB_BYTES.invokeExact(aes, state);
+        return state;
+    }
+
+    @Benchmark
+    public int[][] shiftRows() throws Throwable {
+        SHIFT_ROWS.invokeExact(aes, state);
+        return state;
+    }
+
+    @Benchmark
+    public int[][] mixColumns() throws Throwable {
+        MIX_COLUMNS.invokeExact(aes, state);
+        return state;
+    }
+
+    @Benchmark
+    public int[][] invMixColumns() throws Throwable {
+        INV_MIX_COLUMNS.invokeExact(aes, state);
+        return state;
+    }
+
+    @Benchmark
+    public int[][] addRoundKey() throws Throwable {
+        ADD_ROUND_KEY.invokeExact(aes, state, subkeys[1]);
+        return state;
+    }
+
+    @Benchmark
+    public int[][] encryptBlockReference() throws Throwable {
+        ENCRYPT_STATE.invokeExact(aes, state, subkeys);
+        return state;
+    }
+
+    @Benchmark
+    public int[][] decryptBlockReference() throws Throwable {
+        DECRYPT_STATE.invokeExact(aes, state, subkeys);
+        return state;
+    }
+
+    @Benchmark
+    public int[] encryptBlockTTable() throws Throwable {
+        CIPHER_ENCRYPT_BLOCK.invokeExact(cipher, block, block);
+        return block;
+    }
+
+    @Benchmark
+    public int[] decryptBlockTTable() throws Throwable {
+        CIPHER_DECRYPT_BLOCK.invokeExact(cipher, block, block);
+        return block;
+    }
+
+    @Benchmark
+    public int[] encryptBlockBitsliced() throws Throwable {
+        CIPHER_ENCRYPT_BLOCK.invokeExact(bitsliced, block, block);
+        return block;
+    }
+
+    @Benchmark
+    public int[] encryptBlockJce() throws Throwable {
+        CIPHER_ENCRYPT_BLOCK.invokeExact(jce, block, block);
+        return block;
+    }
+
+    @Benchmark
+    public int[] encryptBatchTTable() throws Throwable {
+        CIPHER_ENCRYPT_BLOCKS.invokeExact(cipher, batch, batch, BATCH);
+        return batch;
+    }
+
+    @Benchmark
+    public int[] encryptBatchBitsliced() throws Throwable {
+        CIPHER_ENCRYPT_BLOCKS.invokeExact(bitsliced, batch, batch, BATCH);
+        return batch;
+    }
+
+    @Benchmark
+    public int[] encryptBatchJce() throws Throwable {
+        CIPHER_ENCRYPT_BLOCKS.invokeExact(jce, batch, batch, BATCH);
+        return batch;
+    }
+
+    @Benchmark
+    public int[] decryptBatchTTable() throws Throwable {
+        CIPHER_DECRYPT_BLOCKS.invokeExact(cipher, batch, batch, BATCH);
+        return batch;
+    }
+
+    @Benchmark
+    public int[] decryptBatchBitsliced() throws Throwable {
+        CIPHER_DECRYPT_BLOCKS.invokeExact(bitsliced, batch, batch, BATCH);
+        return batch;
+    }
+
+    @Benchmark
+    public int[][] hexParse() throws Throwable {
+        int[][] m = new int[4][4];
+        HEX_TO_MATRIX.invokeExact(line, m);
+        return m;
+    }
+
+    @Benchmark
+    public String hexFormat() throws Throwable {
+        return (String) MATRIX_TO_STRING.invokeExact(state);
+    }
+
+    @Benchmark
+    public int[] hexCodecRead() throws Throwable {
+        boolean read = (boolean) HEX_CODEC_READ_BLOCK.invokeExact(codec, block, true);
+        return block;
+    }
+
+    @Benchmark
+    public int[] hexCodecWrite() throws Throwable {
+        HEX_CODEC_WRITE_BLOCK.invokeExact(codec, block);
+        return block;
+    }
+
+    /**
+     * Serves the same line forever, so that HexCodec never runs out of input.
+     */
+    private static class RepeatingReader extends Reader {
+
+        private final char[] text;
+        private int pos;
+
+        RepeatingReader(String text) {
+            this.text = text.toCharArray();
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            for (int i = 0; i < len; i++) {
+                cbuf[off + i] = text[pos];
+                pos = (pos + 1) % text.length;
+            }
+            return len;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Discards everything written to it.
+     */
+    private static class NullWriter extends Writer {
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
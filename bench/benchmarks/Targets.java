@@ -0,0 +1,117 @@
+package benchmarks;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Method handles for the cipher classes. JMH does not accept benchmarks in the default
+ * package, and a named package cannot refer to the default package at compile time, so
+ * the benchmarks reach AES, AESCipher, BlockEngines, TTableAES and HexCodec through these handles. They are
+ * static final, so the JIT treats them as constants and inlines the target.
+ *
+ * Objects of the cipher classes are typed as Object here.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+final class Targets {
+
+    static final MethodHandle NEW_AES;
+    static final MethodHandle KEY_SCHEDULE;
+    static final MethodHandle SUB_KEYS;
+    static final MethodHandle SUB_BYTES;
+    static final MethodHandle SHIFT_ROWS;
+    static final MethodHandle MIX_COLUMNS;
+    static final MethodHandle INV_MIX_COLUMNS;
+    static final MethodHandle ADD_ROUND_KEY;
+    static final MethodHandle ENCRYPT_STATE;
+    static final MethodHandle DECRYPT_STATE;
+    static final MethodHandle HEX_TO_MATRIX;
+    static final MethodHandle MATRIX_TO_STRING;
+    static final MethodHandle MAIN;
+    static final MethodHandle NEW_HEX_CODEC;
+    static final MethodHandle HEX_CODEC_READ_BLOCK;
+    static final MethodHandle HEX_CODEC_WRITE_BLOCK;
+    static final MethodHandle CIPHER_GET_INSTANCE;
+    static final MethodHandle CIPHER_ENCRYPT_BLOCK;
+    static final MethodHandle CIPHER_DECRYPT_BLOCK;
+    static final MethodHandle CIPHER_ENCRYPT_BLOCKS;
+    static final MethodHandle CIPHER_DECRYPT_BLOCKS;
+    static final MethodHandle CIPHER_BITSLICED;
+    static final MethodHandle CIPHER_WITH_ENGINE;
+    static final MethodHandle ENGINE_FOR_NAME;
+    static final MethodHandle EXPAND_ENCRYPTION_KEY;
+    static final MethodHandle EXPAND_DECRYPTION_KEY;
+
+    /**
+     * AESCipher.BATCH: 4, or more when the vector engine is available.
+     */
+    static final int BATCH;
+
+    static {
+        try {
+            Class<?> aes = Class.forName("AES");
+            Class<?> cipher = Class.forName("AESCipher");
+            Class<?> ttable = Class.forName("TTableAES");
+            Class<?> codec = Class.forName("HexCodec");
+            Class<?> engine = Class.forName("BlockEngine");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            NEW_AES = erase(lookup.findConstructor(aes, MethodType.methodType(void.class)));
+            KEY_SCHEDULE = erase(lookup.findVirtual(aes, "keySchedule", MethodType.methodType(int[][].class, String.class)));
+            SUB_KEYS = erase(lookup.findVirtual(aes, "subKeys", MethodType.methodType(int[][][].class, int[][].class)));
+            SUB_BYTES = erase(lookup.findVirtual(aes, "subBytes", MethodType.methodType(void.class, int[][].class)));
+            SHIFT_ROWS = erase(lookup.findVirtual(aes, "shiftRows", MethodType.methodType(void.class, int[][].class)));
+            MIX_COLUMNS = erase(lookup.findVirtual(aes, "mixColumns", MethodType.methodType(void.class, int[][].class)));
+            INV_MIX_COLUMNS = erase(lookup.findVirtual(aes, "invMixColumns", MethodType.methodType(void.class, int[][].class)));
+            ADD_ROUND_KEY = erase(lookup.findVirtual(aes, "addRoundKey", MethodType.methodType(void.class, int[][].class, int[][].class)));
+            ENCRYPT_STATE = erase(lookup.findVirtual(aes, "encryptState", MethodType.methodType(void.class, int[][].class, int[][][].class)));
+            DECRYPT_STATE = erase(lookup.findVirtual(aes, "decryptState", MethodType.methodType(void.class, int[][].class, int[][][].class)));
+            HEX_TO_MATRIX = lookup.findStatic(aes, "HexToMatrix", MethodType.methodType(void.class, String.class, int[][].class));
+            MATRIX_TO_STRING = lookup.findStatic(aes, "MatrixToString", MethodType.methodType(String.class, int[][].class));
+            MAIN = lookup.findStatic(aes, "main", MethodType.methodType(void.class, String[].class));
+            NEW_HEX_CODEC = erase(lookup.findConstructor(codec, MethodType.methodType(void.class, Reader.class, Writer.class)));
+            HEX_CODEC_READ_BLOCK = erase(lookup.findVirtual(codec, "readBlock", MethodType.methodType(boolean.class, int[].class, boolean.class)));
+            HEX_CODEC_WRITE_BLOCK = erase(lookup.findVirtual(codec, "writeBlock", MethodType.methodType(void.class, int[].class)));
+            CIPHER_GET_INSTANCE = erase(lookup.findStatic(cipher, "getInstance", MethodType.methodType(cipher, String.class)));
+            CIPHER_ENCRYPT_BLOCK = erase(lookup.findVirtual(cipher, "encryptBlock", MethodType.methodType(void.class, int[].class, int[].class)));
+            CIPHER_DECRYPT_BLOCK = erase(lookup.findVirtual(cipher, "decryptBlock", MethodType.methodType(void.class, int[].class, int[].class)));
+            CIPHER_ENCRYPT_BLOCKS = erase(lookup.findVirtual(cipher, "encryptBlocks", MethodType.methodType(void.class, int[].class, int[].class, int.class)));
+            CIPHER_DECRYPT_BLOCKS = erase(lookup.findVirtual(cipher, "decryptBlocks", MethodType.methodType(void.class, int[].class, int[].class, int.class)));
+            CIPHER_BITSLICED = erase(lookup.findVirtual(cipher, "bitsliced", MethodType.methodType(cipher)));
+            CIPHER_WITH_ENGINE = erase(lookup.findVirtual(cipher, "withEngine", MethodType.methodType(cipher, engine)));
+            ENGINE_FOR_NAME = erase(lookup.findStatic(Class.forName("BlockEngines"), "forName", MethodType.methodType(engine, String.class)));
+            EXPAND_ENCRYPTION_KEY = lookup.findStatic(ttable, "expandEncryptionKey", MethodType.methodType(int[].class, int[][].class));
+            EXPAND_DECRYPTION_KEY = lookup.findStatic(ttable, "expandDecryptionKey", MethodType.methodType(int[].class, int[].class));
+            BATCH = cipher.getField("BATCH").getInt(null);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Targets() {
+        //Only static handles.
+    }
+
+    /**
+     * Retypes a handle so that receivers and results of default package classes are Object.
+     */
+    private static MethodHandle erase(MethodHandle h) {
+        MethodType t = h.type();
+        for (int i = 0; i < t.parameterCount(); i++) {
+            if (inDefaultPackage(t.parameterType(i))) {
+                t = t.changeParameterType(i, Object.class);
+            }
+        }
+        if (inDefaultPackage(t.returnType())) {
+            t = t.changeReturnType(Object.class);
+        }
+        return h.asType(t);
+    }
+
+    private static boolean inDefaultPackage(Class<?> c) {
+        return !c.isPrimitive() && !c.isArray() && c.getName().indexOf('.') < 0;
+    }
+}
@@ -0,0 +1,137 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder events for AESMetrics. This class needs Java 11 or later, so it is kept
+ * out of src and compiled separately by ant; AESMetrics loads it by name and works without
+ * it on older JVMs.
+ *
+ * An event object is only filled in when Flight Recorder is recording it, so with no
+ * recording running a chunk costs one isEnabled() check.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public final class JfrRecorder implements AESMetrics.Recorder {
+
+    @Name("aes.File")
+    @Label("AES File")
+    @Category("AES")
+    @Description("One file encrypted or decrypted by AES.process().")
+    static final class FileEvent extends Event {
+
+        @Label("File")
+        String file;
+
+        @Label("Mode")
+        String mode;
+
+        @Label("Engine")
+        String engine;
+
+        @Label("Encrypt")
+        boolean encrypt;
+
+        @Label("Failed")
+        boolean failed;
+
+        @Label("Blocks")
+        long blocks;
+
+        @Label("Bytes In")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Bytes Out")
+        @DataAmount
+        long bytesOut;
+
+        @Label("Skipped Hex Lines")
+        long skippedLines;
+
+        @Label("Key Schedule Time")
+        @Timespan
+        long keySchedule;
+
+        @Label("Read Time")
+        @Timespan
+        long read;
+
+        @Label("Cipher Time")
+        @Timespan
+        long cipher;
+
+        @Label("Write Time")
+        @Timespan
+        long write;
+    }
+
+    @Name("aes.Chunk")
+    @Label("AES Chunk")
+    @Category("AES")
+    @Description("One buffer, mapped window or group of hex lines of a file.")
+    static final class ChunkEvent extends Event {
+
+        @Label("File")
+        String file;
+
+        @Label("Blocks")
+        long blocks;
+
+        @Label("Read Time")
+        @Timespan
+        long read;
+
+        @Label("Cipher Time")
+        @Timespan
+        long cipher;
+
+        @Label("Write Time")
+        @Timespan
+        long write;
+    }
+
+    public Object begin() {
+        FileEvent event = new FileEvent();
+        event.begin();
+        return event;
+    }
+
+    public void chunk(AESMetrics file, long blocks, long readNanos, long cipherNanos, long writeNanos) {
+        ChunkEvent event = new ChunkEvent();
+        if (event.isEnabled()) {
+            event.file = file != null ? file.file : null;
+            event.blocks = blocks;
+            event.read = readNanos;
+            event.cipher = cipherNanos;
+            event.write = writeNanos;
+            event.commit();
+        }
+    }
+
+    public void end(Object e, AESMetrics file) {
+        FileEvent event = (FileEvent) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file.file;
+            event.mode = file.mode;
+            event.engine = file.engine;
+            event.encrypt = file.encrypt;
+            event.failed = file.failed;
+            event.blocks = file.blocks;
+            event.bytesIn = file.bytesIn;
+            event.bytesOut = file.bytesOut;
+            event.skippedLines = file.skippedLines;
+            event.keySchedule = file.keyScheduleNanos;
+            event.read = file.readNanos;
+            event.cipher = file.cipherNanos;
+            event.write = file.writeNanos;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,411 @@
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import static jdk.incubator.vector.VectorOperators.LSHL;
+import static jdk.incubator.vector.VectorOperators.LSHR;
+import static jdk.incubator.vector.VectorOperators.ROR;
+import static jdk.incubator.vector.VectorOperators.XOR;
+
+/**
+ * The BitslicedAES circuit on the JDK Vector API. Each 64-bit lane holds one group of four
+ * blocks in the BitslicedAES layout, so a 256-bit vector processes 16 blocks and a 512-bit
+ * vector 32. AddRoundKey is a vector XOR with the round key broadcast to every lane,
+ * ShiftRows masks and shifts each lane, and xtime in MixColumns is the XOR of the top bit
+ * plane into the planes below it, so every step is the same lanewise operation and no
+ * shuffle or table lookup is needed.
+ *
+ * The state is kept in a long array, eight planes of WIDTH lanes, and each step loads
+ * its planes as vectors and stores them back. The array is taken from a ScratchPool,
+ * with the eight words of one group used to move blocks in and out, so no call
+ * allocates. No vector is passed to or returned from a method, since the JIT boxes a
+ * vector that crosses a call it did not inline. The steps
+ * are written out plane by plane rather than as loops over the planes: the JDK 17 JIT
+ * can move the vector loads of such a loop ahead of the scalar stores of load() once
+ * both are inlined, which gives wrong output.
+ *
+ * This class needs Java 16 or later and the jdk.incubator.vector module. It is compiled
+ * from src-vector by the -post-compile target in build.xml and is only loaded by
+ * BitslicedAES when the module is present.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public final class VectorAES implements BitslicedAES.Lanes {
+
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    /**
+     * Number of 64-bit lanes, each holding one group of blocks.
+     */
+    private static final int WIDTH = SPECIES.length();
+
+    private static final ScratchPool<long[][]> states = new ScratchPool<long[][]>() {
+        @Override
+        protected long[][] create() {
+            return new long[][] {new long[8 * WIDTH], new long[8]}; //The planes, and one group.
+        }
+    };
+
+    public int batch() {
+        return WIDTH * BitslicedAES.GROUP;
+    }
+
+    public void encryptBlocks(long[] sk, int[] in, int[] out, int blocks) {
+        long[][] st = states.take();
+        try {
+            long[] q = st[0];
+            load(q, st[1], in, blocks);
+            int rounds = sk.length / 8 - 1;
+            addRoundKey(q, sk, 0);
+            for (int r = 1; r < rounds; r++) {
+                sbox(q);
+                shiftRows(q);
+                mixColumns(q);
+                addRoundKey(q, sk, r);
+            }
+            sbox(q);
+            shiftRows(q);
+            addRoundKey(q, sk, rounds);
+            store(q, st[1], out, blocks);
+        } finally {
+            states.give(st);
+        }
+    }
+
+    public void decryptBlocks(long[] sk, int[] in, int[] out, int blocks) {
+        long[][] st = states.take();
+        try {
+            long[] q = st[0];
+            load(q, st[1], in, blocks);
+            int rounds = sk.length / 8 - 1;
+            addRoundKey(q, sk, rounds);
+            for (int r = rounds - 1; r > 0; r--) {
+                invShiftRows(q);
+                invSbox(q);
+                addRoundKey(q, sk, r);
+                invMixColumns(q);
+            }
+            invShiftRows(q);
+            invSbox(q);
+            addRoundKey(q, sk, 0);
+            store(q, st[1], out, blocks);
+        } finally {
+            states.give(st);
+        }
+    }
+
+    /**
+     * Puts each group of four blocks in bitsliced form into its own lane; missing blocks are zero.
+     */
+    private static void load(long[] q, long[] g, int[] in, int blocks) {
+        for (int lane = 0; lane < WIDTH; lane++) {
+            int b = lane * BitslicedAES.GROUP;
+            BitslicedAES.load(g, in, 4 * b, Math.max(0, Math.min(BitslicedAES.GROUP, blocks - b)));
+            for (int i = 0; i < 8; i++) {
+                q[i * WIDTH + lane] = g[i];
+            }
+        }
+    }
+
+    private static void store(long[] q, long[] g, int[] out, int blocks) {
+        for (int lane = 0; lane * BitslicedAES.GROUP < blocks; lane++) {
+            int b = lane * BitslicedAES.GROUP;
+            for (int i = 0; i < 8; i++) {
+                g[i] = q[i * WIDTH + lane];
+            }
+            BitslicedAES.store(g, out, 4 * b, Math.min(BitslicedAES.GROUP, blocks - b));
+        }
+    }
+
+    private static void addRoundKey(long[] q, long[] sk, int round) {
+        int k = 8 * round;
+        LongVector.fromArray(SPECIES, q, 0).lanewise(XOR, sk[k]).intoArray(q, 0);
+        LongVector.fromArray(SPECIES, q, WIDTH).lanewise(XOR, sk[k + 1]).intoArray(q, WIDTH);
+        LongVector.fromArray(SPECIES, q, 2 * WIDTH).lanewise(XOR, sk[k + 2]).intoArray(q, 2 * WIDTH);
+        LongVector.fromArray(SPECIES, q, 3 * WIDTH).lanewise(XOR, sk[k + 3]).intoArray(q, 3 * WIDTH);
+        LongVector.fromArray(SPECIES, q, 4 * WIDTH).lanewise(XOR, sk[k + 4]).intoArray(q, 4 * WIDTH);
+        LongVector.fromArray(SPECIES, q, 5 * WIDTH).lanewise(XOR, sk[k + 5]).intoArray(q, 5 * WIDTH);
+        LongVector.fromArray(SPECIES, q, 6 * WIDTH).lanewise(XOR, sk[k + 6]).intoArray(q, 6 * WIDTH);
+        LongVector.fromArray(SPECIES, q, 7 * WIDTH).lanewise(XOR, sk[k + 7]).intoArray(q, 7 * WIDTH);
+    }
+
+    /**
+     * The S-box circuit of BitslicedAES, one gate per vector operation.
+     */
+    private static void sbox(long[] q) {
+        LongVector x0 = LongVector.fromArray(SPECIES, q, 7 * WIDTH);
+        LongVector x1 = LongVector.fromArray(SPECIES, q, 6 * WIDTH);
+        LongVector x2 = LongVector.fromArray(SPECIES, q, 5 * WIDTH);
+        LongVector x3 = LongVector.fromArray(SPECIES, q, 4 * WIDTH);
+        LongVector x4 = LongVector.fromArray(SPECIES, q, 3 * WIDTH);
+        LongVector x5 = LongVector.fromArray(SPECIES, q, 2 * WIDTH);
+        LongVector x6 = LongVector.fromArray(SPECIES, q, WIDTH);
+        LongVector x7 = LongVector.fromArray(SPECIES, q, 0);
+
+        //Top linear transformation.
+        LongVector y14 = x3.lanewise(XOR, x5);
+        LongVector y13 = x0.lanewise(XOR, x6);
+        LongVector y9 = x0.lanewise(XOR, x3);
+        LongVector y8 = x0.lanewise(XOR, x5);
+        LongVector t0 = x1.lanewise(XOR, x2);
+        LongVector y1 = t0.lanewise(XOR, x7);
+        LongVector y4 = y1.lanewise(XOR, x3);
+        LongVector y12 = y13.lanewise(XOR, y14);
+        LongVector y2 = y1.lanewise(XOR, x0);
+        LongVector y5 = y1.lanewise(XOR, x6);
+        LongVector y3 = y5.lanewise(XOR, y8);
+        LongVector t1 = x4.lanewise(XOR, y12);
+        LongVector y15 = t1.lanewise(XOR, x5);
+        LongVector y20 = t1.lanewise(XOR, x1);
+        LongVector y6 = y15.lanewise(XOR, x7);
+        LongVector y10 = y15.lanewise(XOR, t0);
+        LongVector y11 = y20.lanewise(XOR, y9);
+        LongVector y7 = x7.lanewise(XOR, y11);
+        LongVector y17 = y10.lanewise(XOR, y11);
+        LongVector y19 = y10.lanewise(XOR, y8);
+        LongVector y16 = t0.lanewise(XOR, y11);
+        LongVector y21 = y13.lanewise(XOR, y16);
+        LongVector y18 = x0.lanewise(XOR, y16);
+
+        //Non-linear section.
+        LongVector t2 = y12.and(y15);
+        LongVector t3 = y3.and(y6);
+        LongVector t4 = t3.lanewise(XOR, t2);
+        LongVector t5 = y4.and(x7);
+        LongVector t6 = t5.lanewise(XOR, t2);
+        LongVector t7 = y13.and(y16);
+        LongVector t8 = y5.and(y1);
+        LongVector t9 = t8.lanewise(XOR, t7);
+        LongVector t10 = y2.and(y7);
+        LongVector t11 = t10.lanewise(XOR, t7);
+        LongVector t12 = y9.and(y11);
+        LongVector t13 = y14.and(y17);
+        LongVector t14 = t13.lanewise(XOR, t12);
+        LongVector t15 = y8.and(y10);
+        LongVector t16 = t15.lanewise(XOR, t12);
+        LongVector t17 = t4.lanewise(XOR, t14);
+        LongVector t18 = t6.lanewise(XOR, t16);
+        LongVector t19 = t9.lanewise(XOR, t14);
+        LongVector t20 = t11.lanewise(XOR, t16);
+        LongVector t21 = t17.lanewise(XOR, y20);
+        LongVector t22 = t18.lanewise(XOR, y19);
+        LongVector t23 = t19.lanewise(XOR, y21);
+        LongVector t24 = t20.lanewise(XOR, y18);
+
+        LongVector t25 = t21.lanewise(XOR, t22);
+        LongVector t26 = t21.and(t23);
+        LongVector t27 = t24.lanewise(XOR, t26);
+        LongVector t28 = t25.and(t27);
+        LongVector t29 = t28.lanewise(XOR, t22);
+        LongVector t30 = t23.lanewise(XOR, t24);
+        LongVector t31 = t22.lanewise(XOR, t26);
+        LongVector t32 = t31.and(t30);
+        LongVector t33 = t32.lanewise(XOR, t24);
+        LongVector t34 = t23.lanewise(XOR, t33);
+        LongVector t35 = t27.lanewise(XOR, t33);
+        LongVector t36 = t24.and(t35);
+        LongVector t37 = t36.lanewise(XOR, t34);
+        LongVector t38 = t27.lanewise(XOR, t36);
+        LongVector t39 = t29.and(t38);
+        LongVector t40 = t25.lanewise(XOR, t39);
+
+        LongVector t41 = t40.lanewise(XOR, t37);
+        LongVector t42 = t29.lanewise(XOR, t33);
+        LongVector t43 = t29.lanewise(XOR, t40);
+        LongVector t44 = t33.lanewise(XOR, t37);
+        LongVector t45 = t42.lanewise(XOR, t41);
+        LongVector z0 = t44.and(y15);
+        LongVector z1 = t37.and(y6);
+        LongVector z2 = t33.and(x7);
+        LongVector z3 = t43.and(y16);
+        LongVector z4 = t40.and(y1);
+        LongVector z5 = t29.and(y7);
+        LongVector z6 = t42.and(y11);
+        LongVector z7 = t45.and(y17);
+        LongVector z8 = t41.and(y10);
+        LongVector z9 = t44.and(y12);
+        LongVector z10 = t37.and(y3);
+        LongVector z11 = t33.and(y4);
+        LongVector z12 = t43.and(y13);
+        LongVector z13 = t40.and(y5);
+        LongVector z14 = t29.and(y2);
+        LongVector z15 = t42.and(y9);
+        LongVector z16 = t45.and(y14);
+        LongVector z17 = t41.and(y8);
+
+        //Bottom linear transformation.
+        LongVector t46 = z15.lanewise(XOR, z16);
+        LongVector t47 = z10.lanewise(XOR, z11);
+        LongVector t48 = z5.lanewise(XOR, z13);
+        LongVector t49 = z9.lanewise(XOR, z10);
+        LongVector t50 = z2.lanewise(XOR, z12);
+        LongVector t51 = z2.lanewise(XOR, z5);
+        LongVector t52 = z7.lanewise(XOR, z8);
+        LongVector t53 = z0.lanewise(XOR, z3);
+        LongVector t54 = z6.lanewise(XOR, z7);
+        LongVector t55 = z16.lanewise(XOR, z17);
+        LongVector t56 = z12.lanewise(XOR, t48);
+        LongVector t57 = t50.lanewise(XOR, t53);
+        LongVector t58 = z4.lanewise(XOR, t46);
+        LongVector t59 = z3.lanewise(XOR, t54);
+        LongVector t60 = t46.lanewise(XOR, t57);
+        LongVector t61 = z14.lanewise(XOR, t57);
+        LongVector t62 = t52.lanewise(XOR, t58);
+        LongVector t63 = t49.lanewise(XOR, t58);
+        LongVector t64 = z4.lanewise(XOR, t59);
+        LongVector t65 = t61.lanewise(XOR, t62);
+        LongVector t66 = z1.lanewise(XOR, t63);
+        LongVector s0 = t59.lanewise(XOR, t63);
+        LongVector s6 = t56.lanewise(XOR, t62.not());
+        LongVector s7 = t48.lanewise(XOR, t60.not());
+        LongVector t67 = t64.lanewise(XOR, t65);
+        LongVector s3 = t53.lanewise(XOR, t66);
+        LongVector s4 = t51.lanewise(XOR, t66);
+        LongVector s5 = t47.lanewise(XOR, t65);
+        LongVector s1 = t64.lanewise(XOR, s3.not());
+        LongVector s2 = t55.lanewise(XOR, t67.not());
+
+        s0.intoArray(q, 7 * WIDTH);
+        s1.intoArray(q, 6 * WIDTH);
+        s2.intoArray(q, 5 * WIDTH);
+        s3.intoArray(q, 4 * WIDTH);
+        s4.intoArray(q, 3 * WIDTH);
+        s5.intoArray(q, 2 * WIDTH);
+        s6.intoArray(q, WIDTH);
+        s7.intoArray(q, 0);
+
+    }
+
+    private static void invSbox(long[] q) {
+        invAffine(q);
+        sbox(q);
+        invAffine(q);
+    }
+
+    private static void invAffine(long[] q) {
+        LongVector q0 = LongVector.fromArray(SPECIES, q, 0).not();
+        LongVector q1 = LongVector.fromArray(SPECIES, q, WIDTH).not();
+        LongVector q2 = LongVector.fromArray(SPECIES, q, 2 * WIDTH);
+        LongVector q3 = LongVector.fromArray(SPECIES, q, 3 * WIDTH);
+        LongVector q4 = LongVector.fromArray(SPECIES, q, 4 * WIDTH);
+        LongVector q5 = LongVector.fromArray(SPECIES, q, 5 * WIDTH).not();
+        LongVector q6 = LongVector.fromArray(SPECIES, q, 6 * WIDTH).not();
+        LongVector q7 = LongVector.fromArray(SPECIES, q, 7 * WIDTH);
+        q1.lanewise(XOR, q4).lanewise(XOR, q6).intoArray(q, 7 * WIDTH);
+        q0.lanewise(XOR, q3).lanewise(XOR, q5).intoArray(q, 6 * WIDTH);
+        q7.lanewise(XOR, q2).lanewise(XOR, q4).intoArray(q, 5 * WIDTH);
+        q6.lanewise(XOR, q1).lanewise(XOR, q3).intoArray(q, 4 * WIDTH);
+        q5.lanewise(XOR, q0).lanewise(XOR, q2).intoArray(q, 3 * WIDTH);
+        q4.lanewise(XOR, q7).lanewise(XOR, q1).intoArray(q, 2 * WIDTH);
+        q3.lanewise(XOR, q6).lanewise(XOR, q0).intoArray(q, WIDTH);
+        q2.lanewise(XOR, q5).lanewise(XOR, q7).intoArray(q, 0);
+    }
+
+    private static void shiftRows(long[] q) {
+        shiftRows(q, 0);
+        shiftRows(q, 1);
+        shiftRows(q, 2);
+        shiftRows(q, 3);
+        shiftRows(q, 4);
+        shiftRows(q, 5);
+        shiftRows(q, 6);
+        shiftRows(q, 7);
+    }
+
+    /**
+     * Shifts plane i.
+     */
+    private static void shiftRows(long[] q, int i) {
+        LongVector x = LongVector.fromArray(SPECIES, q, i * WIDTH);
+        x.and(0x000000000000FFFFL)
+            .or(x.and(0x00000000FFF00000L).lanewise(LSHR, 4))
+            .or(x.and(0x00000000000F0000L).lanewise(LSHL, 12))
+            .or(x.and(0x0000FF0000000000L).lanewise(LSHR, 8))
+            .or(x.and(0x000000FF00000000L).lanewise(LSHL, 8))
+            .or(x.and(0xF000000000000000L).lanewise(LSHR, 12))
+            .or(x.and(0x0FFF000000000000L).lanewise(LSHL, 4))
+            .intoArray(q, i * WIDTH);
+    }
+
+    private static void invShiftRows(long[] q) {
+        invShiftRows(q, 0);
+        invShiftRows(q, 1);
+        invShiftRows(q, 2);
+        invShiftRows(q, 3);
+        invShiftRows(q, 4);
+        invShiftRows(q, 5);
+        invShiftRows(q, 6);
+        invShiftRows(q, 7);
+    }
+
+    private static void invShiftRows(long[] q, int i) {
+        LongVector x = LongVector.fromArray(SPECIES, q, i * WIDTH);
+        x.and(0x000000000000FFFFL)
+            .or(x.and(0x000000000FFF0000L).lanewise(LSHL, 4))
+            .or(x.and(0x00000000F0000000L).lanewise(LSHR, 12))
+            .or(x.and(0x000000FF00000000L).lanewise(LSHL, 8))
+            .or(x.and(0x0000FF0000000000L).lanewise(LSHR, 8))
+            .or(x.and(0x000F000000000000L).lanewise(LSHL, 12))
+            .or(x.and(0xFFF0000000000000L).lanewise(LSHR, 4))
+            .intoArray(q, i * WIDTH);
+    }
+
+    /**
+     * See BitslicedAES.mixColumns(); the rotations are lanewise.
+     */
+    private static void mixColumns(long[] q) {
+        LongVector q0 = LongVector.fromArray(SPECIES, q, 0);
+        LongVector q1 = LongVector.fromArray(SPECIES, q, WIDTH);
+        LongVector q2 = LongVector.fromArray(SPECIES, q, 2 * WIDTH);
+        LongVector q3 = LongVector.fromArray(SPECIES, q, 3 * WIDTH);
+        LongVector q4 = LongVector.fromArray(SPECIES, q, 4 * WIDTH);
+        LongVector q5 = LongVector.fromArray(SPECIES, q, 5 * WIDTH);
+        LongVector q6 = LongVector.fromArray(SPECIES, q, 6 * WIDTH);
+        LongVector q7 = LongVector.fromArray(SPECIES, q, 7 * WIDTH);
+        LongVector r0 = q0.lanewise(ROR, 16);
+        LongVector r1 = q1.lanewise(ROR, 16);
+        LongVector r2 = q2.lanewise(ROR, 16);
+        LongVector r3 = q3.lanewise(ROR, 16);
+        LongVector r4 = q4.lanewise(ROR, 16);
+        LongVector r5 = q5.lanewise(ROR, 16);
+        LongVector r6 = q6.lanewise(ROR, 16);
+        LongVector r7 = q7.lanewise(ROR, 16);
+
+        q7.lanewise(XOR, r7).lanewise(XOR, r0).lanewise(XOR, q0.lanewise(XOR, r0).lanewise(ROR, 32)).intoArray(q, 0);
+        q0.lanewise(XOR, r0).lanewise(XOR, q7).lanewise(XOR, r7).lanewise(XOR, r1).lanewise(XOR, q1.lanewise(XOR, r1).lanewise(ROR, 32)).intoArray(q, WIDTH);
+        q1.lanewise(XOR, r1).lanewise(XOR, r2).lanewise(XOR, q2.lanewise(XOR, r2).lanewise(ROR, 32)).intoArray(q, 2 * WIDTH);
+        q2.lanewise(XOR, r2).lanewise(XOR, q7).lanewise(XOR, r7).lanewise(XOR, r3).lanewise(XOR, q3.lanewise(XOR, r3).lanewise(ROR, 32)).intoArray(q, 3 * WIDTH);
+        q3.lanewise(XOR, r3).lanewise(XOR, q7).lanewise(XOR, r7).lanewise(XOR, r4).lanewise(XOR, q4.lanewise(XOR, r4).lanewise(ROR, 32)).intoArray(q, 4 * WIDTH);
+        q4.lanewise(XOR, r4).lanewise(XOR, r5).lanewise(XOR, q5.lanewise(XOR, r5).lanewise(ROR, 32)).intoArray(q, 5 * WIDTH);
+        q5.lanewise(XOR, r5).lanewise(XOR, r6).lanewise(XOR, q6.lanewise(XOR, r6).lanewise(ROR, 32)).intoArray(q, 6 * WIDTH);
+        q6.lanewise(XOR, r6).lanewise(XOR, r7).lanewise(XOR, q7.lanewise(XOR, r7).lanewise(ROR, 32)).intoArray(q, 7 * WIDTH);
+    }
+
+    private static void invMixColumns(long[] q) {
+        LongVector q0 = LongVector.fromArray(SPECIES, q, 0);
+        LongVector q1 = LongVector.fromArray(SPECIES, q, WIDTH);
+        LongVector q2 = LongVector.fromArray(SPECIES, q, 2 * WIDTH);
+        LongVector q3 = LongVector.fromArray(SPECIES, q, 3 * WIDTH);
+        LongVector q4 = LongVector.fromArray(SPECIES, q, 4 * WIDTH);
+        LongVector q5 = LongVector.fromArray(SPECIES, q, 5 * WIDTH);
+        LongVector q6 = LongVector.fromArray(SPECIES, q, 6 * WIDTH);
+        LongVector q7 = LongVector.fromArray(SPECIES, q, 7 * WIDTH);
+        LongVector r0 = q0.lanewise(ROR, 16);
+        LongVector r1 = q1.lanewise(ROR, 16);
+        LongVector r2 = q2.lanewise(ROR, 16);
+        LongVector r3 = q3.lanewise(ROR, 16);
+        LongVector r4 = q4.lanewise(ROR, 16);
+        LongVector r5 = q5.lanewise(ROR, 16);
+        LongVector r6 = q6.lanewise(ROR, 16);
+        LongVector r7 = q7.lanewise(ROR, 16);
+
+        q5.lanewise(XOR, q6).lanewise(XOR, q7).lanewise(XOR, r0).lanewise(XOR, r5).lanewise(XOR, r7).lanewise(XOR, q0.lanewise(XOR, q5).lanewise(XOR, q6).lanewise(XOR, r0).lanewise(XOR, r5).lanewise(ROR, 32)).intoArray(q, 0);
+        q0.lanewise(XOR, q5).lanewise(XOR, r0).lanewise(XOR, r1).lanewise(XOR, r5).lanewise(XOR, r6).lanewise(XOR, r7).lanewise(XOR, q1.lanewise(XOR, q5).lanewise(XOR, q7).lanewise(XOR, r1).lanewise(XOR, r5).lanewise(XOR, r6).lanewise(ROR, 32)).intoArray(q, WIDTH);
+        q0.lanewise(XOR, q1).lanewise(XOR, q6).lanewise(XOR, r1).lanewise(XOR, r2).lanewise(XOR, r6).lanewise(XOR, r7).lanewise(XOR, q0.lanewise(XOR, q2).lanewise(XOR, q6).lanewise(XOR, r2).lanewise(XOR, r6).lanewise(XOR, r7).lanewise(ROR, 32)).intoArray(q, 2 * WIDTH);
+        q0.lanewise(XOR, q1).lanewise(XOR, q2).lanewise(XOR, q5).lanewise(XOR, q6).lanewise(XOR, r0).lanewise(XOR, r2).lanewise(XOR, r3).lanewise(XOR, r5).lanewise(XOR, q0.lanewise(XOR, q1).lanewise(XOR, q3).lanewise(XOR, q5).lanewise(XOR, q6).lanewise(XOR, q7).lanewise(XOR, r0).lanewise(XOR, r3).lanewise(XOR, r5).lanewise(XOR, r7).lanewise(ROR, 32)).intoArray(q, 3 * WIDTH);
+        q1.lanewise(XOR, q2).lanewise(XOR, q3).lanewise(XOR, q5).lanewise(XOR, r1).lanewise(XOR, r3).lanewise(XOR, r4).lanewise(XOR, r5).lanewise(XOR, r6).lanewise(XOR, r7).lanewise(XOR, q1.lanewise(XOR, q2).lanewise(XOR, q4).lanewise(XOR, q5).lanewise(XOR, q7).lanewise(XOR, r1).lanewise(XOR, r4).lanewise(XOR, r5).lanewise(XOR, r6).lanewise(ROR, 32)).intoArray(q, 4 * WIDTH);
+        q2.lanewise(XOR, q3).lanewise(XOR, q4).lanewise(XOR, q6).lanewise(XOR, r2).lanewise(XOR, r4).lanewise(XOR, r5).lanewise(XOR, r6).lanewise(XOR, r7).lanewise(XOR, q2.lanewise(XOR, q3).lanewise(XOR, q5).lanewise(XOR, q6).lanewise(XOR, r2).lanewise(XOR, r5).lanewise(XOR, r6).lanewise(XOR, r7).lanewise(ROR, 32)).intoArray(q, 5 * WIDTH);
+        q3.lanewise(XOR, q4).lanewise(XOR, q5).lanewise(XOR, q7).lanewise(XOR, r3).lanewise(XOR, r5).lanewise(XOR, r6).lanewise(XOR, r7).lanewise(XOR, q3.lanewise(XOR, q4).lanewise(XOR, q6).lanewise(XOR, q7).lanewise(XOR, r3).lanewise(XOR, r6).lanewise(XOR, r7).lanewise(ROR, 32)).intoArray(q, 6 * WIDTH);
+        q4.lanewise(XOR, q5).lanewise(XOR, q6).lanewise(XOR, r4).lanewise(XOR, r6).lanewise(XOR, r7).lanewise(XOR, q4.lanewise(XOR, q5).lanewise(XOR, q7).lanewise(XOR, r4).lanewise(XOR, r7).lanewise(ROR, 32)).intoArray(q, 7 * WIDTH);
+    }
+}
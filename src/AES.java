@@ -1,7 +1,8 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @author Patrick Lu
@@ -13,7 +14,9 @@ public class AES {
      * S-BOX table used for Key Expansion and Sub-Bytes.
      */
     public static final String newline = System.getProperty("line.separator"); //The newline for whatever system you choose to run in.
-    public static enum Mode { ECB,CBC };
+    public static enum Mode { ECB,CBC,CTR,GCM,XTS };
+    public static enum Format { HEX,BIN,CHUNKED };
+    public static enum IO { STREAM,MMAP };
     public static final int[][] sbox = {{0x63, 0x7c, 0x77, 0x7b, 0xf2, 0x6b, 0x6f, 0xc5, 0x30, 0x01, 0x67, 0x2b, 0xfe, 0xd7, 0xab, 0x76}, {0xca, 0x82, 0xc9, 0x7d, 0xfa, 0x59, 0x47, 0xf0, 0xad, 0xd4, 0xa2, 0xaf, 0x9c, 0xa4, 0x72, 0xc0}, {0xb7, 0xfd, 0x93, 0x26, 0x36, 0x3f, 0xf7, 0xcc, 0x34, 0xa5, 0xe5, 0xf1, 0x71, 0xd8, 0x31, 0x15}, {0x04, 0xc7, 0x23, 0xc3, 0x18, 0x96, 0x05, 0x9a, 0x07, 0x12, 0x80, 0xe2, 0xeb, 0x27, 0xb2, 0x75}, {0x09, 0x83, 0x2c, 0x1a, 0x1b, 0x6e, 0x5a, 0xa0, 0x52, 0x3b, 0xd6, 0xb3, 0x29, 0xe3, 0x2f, 0x84}, {0x53, 0xd1, 0x00, 0xed, 0x20, 0xfc, 0xb1, 0x5b, 0x6a, 0xcb, 0xbe, 0x39, 0x4a, 0x4c, 0x58, 0xcf}, {0xd0, 0xef, 0xaa, 0xfb, 0x43, 0x4d, 0x33, 0x85, 0x45, 0xf9, 0x02, 0x7f, 0x50, 0x3c, 0x9f, 0xa8}, {0x51, 0xa3, 0x40, 0x8f, 0x92, 0x9d, 0x38, 0xf5, 0xbc, 0xb6, 0xda, 0x21, 0x10, 0xff, 0xf3, 0xd2}, {0xcd, 0x0c, 0x13, 0xec, 0x5f, 0x97, 0x44, 0x17, 0xc4, 0xa7, 0x7e, 0x3d, 0x64, 0x5d, 0x19, 0x73}, {0x60, 0x81, 0x4f, 0xdc, 0x22, 0x2a, 0x90, 0x88, 0x46, 0xee, 0xb8, 0x14, 0xde, 0x5e, 0x0b, 0xdb}, {0xe0, 0x32, 0x3a, 0x0a, 0x49, 0x06, 0x24, 0x5c, 0xc2, 0xd3, 0xac, 0x62, 0x91, 0x95, 0xe4, 0x79}, {0xe7, 0xc8, 0x37, 0x6d, 0x8d, 0xd5, 0x4e, 0xa9, 0x6c, 0x56, 0xf4, 0xea, 0x65, 0x7a, 0xae, 0x08}, {0xba, 0x78, 0x25, 0x2e, 0x1c, 0xa6, 0xb4, 0xc6, 0xe8, 0xdd, 0x74, 0x1f, 0x4b, 0xbd, 0x8b, 0x8a}, {0x70, 0x3e, 0xb5, 0x66, 0x48, 0x03, 0xf6, 0x0e, 0x61, 0x35, 0x57, 0xb9, 0x86, 0xc1, 0x1d, 0x9e}, {0xe1, 0xf8, 0x98, 0x11, 0x69, 0xd9, 0x8e, 0x94, 0x9b, 0x1e, 0x87, 0xe9, 0xce, 0x55, 0x28, 0xdf}, {0x8c, 0xa1, 0x89, 0x0d, 0xbf, 0xe6, 0x42, 0x68, 0x41, 0x99, 0x2d, 0x0f, 0xb0, 0x54, 0xbb, 0x16}};
     /**
      * Inverse SBOX table used for invSubBytes
@@ -56,15 +59,6 @@ public class AES {
         0xc6, 0x97, 0x35, 0x6a, 0xd4, 0xb3, 0x7d, 0xfa, 0xef, 0xc5, 0x91, 0x39, 0x72, 0xe4, 0xd3, 0xbd,
         0x61, 0xc2, 0x9f, 0x25, 0x4a, 0x94, 0x33, 0x66, 0xcc, 0x83, 0x1d, 0x3a, 0x74, 0xe8, 0xcb};
     
-    static String key = "";
-    static String iv = "";
-    static String ftw = "";
-    static BufferedReader keyreader;
-    static BufferedReader input;
-    static Mode mode;
-    static FileWriter out;
-    static int keyFileIndex = 1; //Index where the keyFile argument should be. Used to determines the index of other arguments.
-    
     /**
      * Empty AES constructor.
      */
@@ -74,198 +68,245 @@ public class AES {
 
     /**
      * Main method with which we run the AES algorithm.
-     * Usage: java AES e|d [-length] [-mode] keyFile inputFile
+     * Usage: java AES e|d [-length] [-mode] [-engine] [-format] [-io] [-threads] [-aad] [-batch] [-checkpoint] [-resume] [-mac] [-compress] keyFile inputFile
+     * or: java AES mac [-length] [-engine] keyFile inputFile (prints the AES-CMAC of inputFile; see CMAC)
+     * or: java AES server [-engine] port|host:port|socketPath (see AESServer)
      * @param args Array of command line arguments.
      */
     public static void main(String args[]) throws IOException 
     {
         /*
          * args[0] should be either "e" or "d"
-         * args[1] and args[2] should correspond to the following:
+         * args[1] onwards may hold any of the following option/value pairs, in any order:
          *
-         * -length => "128" or "256"
-         * -mode => "ecb" or "cbc"
-         * neither -length nor -mode: args[1] should be the keyFile, and args[2] should be the inputFile
+         * -length => "128" or "256", or "256" or "512" for xts (two keys of half the length)
+         * -mode => "ecb", "cbc", "ctr", "gcm" or "xts" (ctr, gcm and xts require -format bin; see XTSMode)
+         * -engine => "auto", "reference", "ttable", "bitsliced", "vector" or "jce" (see BlockEngines)
+         * -format => "hex", "bin" or "chunked" (chunked requires cbc; see ChunkedFile)
+         * -io => "stream" or "mmap" (mmap requires -format bin)
+         * -threads => number of worker threads for ctr, xts, ecb and for decryption, defaults to the number of processors
+         * -aad => file of additional authenticated data for gcm
+         * -batch => number of files processed at once; the inputFile is then a directory or a manifest (see AESBatch)
+         * -checkpoint => megabytes of input between checkpoints of a bin ecb or cbc encryption (see Checkpoint)
+         * -resume => takes no value; continues an interrupted encryption from its last checkpoint
+         * -mac => takes no value; appends a CMAC tag to a bin ecb or cbc encryption, or checks it when decrypting
+         * -compress => Deflate level, 0 to 9, to compress a bin ecb or cbc file before encrypting it; any level when decrypting
          *
-         * args[3] and args[4] should exist only if -length was specified:
+         * The two arguments after the last option should be the keyFile and the inputFile.
          */
+        if (args.length > 0 && args[0].equalsIgnoreCase("server"))
+        {
+            try
+            {
+                AESServer.run(args);
+            }
+            catch (Exception e)
+            {
+                System.err.println(e.getMessage() + newline);
+                System.exit(1);
+            }
+            return;
+        }
+        if (args.length == 0 || !(args[0].equalsIgnoreCase("e") || args[0].equalsIgnoreCase("d") || args[0].equalsIgnoreCase("mac")))
+        {
+            System.err.println("Usage for Encryption: java AES e [-length] [-mode] [-engine] [-format] [-io] [-threads] [-aad] [-batch] [-checkpoint] [-resume] [-mac] [-compress] keyFile inputFile");
+            System.err.println("Usage for Decryption: java AES d [-length] [-mode] [-engine] [-format] [-io] [-threads] [-aad] [-batch] [-mac] [-compress] keyFile encryptedinputFile");
+            System.err.println("Usage for a CMAC: java AES mac [-length] [-engine] keyFile inputFile");
+            System.err.println("Usage for the server: java AES server [-engine] port|host:port|socketPath");
+            return;
+        }
+        AESJob job = null;
         try 
         {
-            int keysizecheck = 128; //User's intended key size.
-            if (!args[1].equals("-length")) //No optional length argument given.
+            job = AESJob.parse(args);
+        }
+        catch (Exception e) 
+        {
+            System.err.println(e.getMessage() + newline);
+            System.exit(1);
+        }
+        if (AESMetrics.ENABLED && BlockEngines.report() != null) //The engine was picked by calibration.
+        {
+            System.err.println(BlockEngines.report());
+        }
+        if (args[0].equalsIgnoreCase("mac"))
+        {
+            try
             {
-                if(!args[1].equals("-mode")) //No optional mode given either;
-                {
-                    //Defaults to 128-bit key size and ECB.
-                }
-                else //Mode option was given;
-                {
-                    mode = args[2].equals("ecb") ? Mode.ECB : Mode.CBC;
-                    keyFileIndex += 2;
-                }
-            } 
-            else //-length was explicitly given.
+                System.out.println(AESCipher.bytesToHex(CMAC.macFile(job.cipher(), job.inputFile)).toUpperCase());
+            }
+            catch (IOException e)
             {
-                keyFileIndex+=2;
-                keysizecheck = Integer.parseInt(args[keyFileIndex-1]);
-                if(args[3].equals("-mode")) //Both -length and -mode options were given
-                {
-                    mode = args[4].equals("ecb") ? Mode.ECB : Mode.CBC;
-                    keyFileIndex+=2;
-                }
-                
+                System.err.println(e.getMessage() + newline);
+                System.exit(1);
             }
-            keyreader = new BufferedReader(new FileReader(args[keyFileIndex]));
-            key = keyreader.readLine();
-            if(key.length() *4 != keysizecheck) //Check to see if user's intended key size matches the size of key in file.
+            return;
+        }
+        if (job.workers > 0)
+        {
+            int failed = AESBatch.run(job);
+            if (AESMetrics.report() != null)
             {
-                throw new Exception("Error: Attemping to use a " + key.length() * 4 + "-bit key with AES-"+keysizecheck);
-            }           
-            input = new BufferedReader(new FileReader(args[keyFileIndex+1]));
-            if(mode == Mode.CBC)
+                System.err.println(AESMetrics.report());
+            }
+            if (BlockCache.INSTANCE != null) //Cached plaintext and keys do not outlive the run.
             {
-                iv = keyreader.readLine();
-                if(iv == null)
-                {
-                    throw new Exception("Error: Initialization Vector required for CBC Mode.");
-                }
-                else if(iv.length() != 32)
-                {
-                    throw new Exception("Error: Size of Initialization Vector must be 32 bytes.");
-                }
+                BlockCache.INSTANCE.clear();
+            }
+            if (failed > 0)
+            {
+                System.exit(1);
             }
-            ftw += args[keyFileIndex+1];
+            return;
         }
-        catch (Exception e) 
+        ForkJoinPool pool = new ForkJoinPool(job.threads); //Used by CTR and XTS, and as the number of cipher workers for ECB and decryption.
+        boolean failed = false;
+        try
+        {
+            process(job, pool);
+        }
+        catch (IOException e) //A tag that does not match, invalid padding, a file that cannot be read.
         {
             System.err.println(e.getMessage() + newline);
+            failed = true;
+        }
+        finally
+        {
+            pool.shutdown();
+            if (AESMetrics.report() != null)
+            {
+                System.err.println(AESMetrics.report());
+            }
+            if (BlockCache.INSTANCE != null)
+            {
+                BlockCache.INSTANCE.clear();
+            }
+        }
+        if (failed)
+        {
             System.exit(1);
         }
-        
-        AES aes = new AES();
-        if (args[0].equalsIgnoreCase("e")) 
+    }
+
+    /**
+     * Encrypts or decrypts the input file of one job. Holds no state outside the job, so
+     * any number of jobs may be processed at the same time. With -Daes.metrics=true, the
+     * file is recorded in AESMetrics.
+     * @param job the parsed arguments.
+     * @param pool worker threads for CTR and XTS; its parallelism is also the number of cipher workers for ECB and decryption.
+     * @throws IOException if a file cannot be read or written, or the input is not valid.
+     */
+    public static void process(AESJob job, ForkJoinPool pool) throws IOException
+    {
+        AESMetrics metrics = AESMetrics.start(job);
+        boolean ok = false;
+        try
+        {
+            processFile(job, pool);
+            ok = true;
+        }
+        finally
+        {
+            AESMetrics.finish(metrics, job, ok);
+        }
+    }
+
+    private static void processFile(AESJob job, ForkJoinPool pool) throws IOException
+    {
+        if (job.format == Format.CHUNKED) //CBC chunks with their own IVs, and an index.
+        {
+            AESCipher cipher = job.cipher();
+            long start = AESMetrics.time();
+            if (job.encrypt)
+            {
+                ChunkedFile.encrypt(pool, cipher, job.inputFile, job.outputFile());
+            }
+            else
+            {
+                ChunkedFile.decrypt(pool, cipher, job.inputFile, job.outputFile());
+            }
+            long end = AESMetrics.time();
+            long length = new File(job.encrypt ? job.inputFile : job.outputFile()).length();
+            AESMetrics.chunk(start, start, end, end, (length + 15) / 16); //Chunks run on the pool; all of it counts as cipher time.
+        }
+        else if (job.format == Format.BIN) //Raw bytes with PKCS#7 padding.
         {
-            out = new FileWriter(ftw + ".enc");
-            int numRounds = 10 + (((key.length() * 4 - 128) / 32));
-            String line = input.readLine();
-            int[][] state, initvector = new int[4][4];
-            int[][] keymatrix = aes.keySchedule(key);
-            if(mode == Mode.CBC)
+            AESCipher cipher = job.cipher();
+            int[] ivblock = null;
+            if(job.mode == Mode.CBC || job.mode == Mode.CTR)
             {
-                for (int i = 0; i < 4; i++)
-                {
-                    for (int j = 0; j < 4; j++) {
-                        initvector[j][i] = Integer.parseInt(iv.substring((8 * i) + (2 * j), (8 * i) + (2 * j + 2)), 16);
-                    }
-                }
+                ivblock = new int[4];
+                HexToWords(job.iv, ivblock);
             }
-            while (line != null) {
-                if (line.matches("[0-9A-F]+")) //If line is valid (i.e. contains valid hex characters, encrpyt. Otherwise, skip line. 
+            ForkJoinPool filepool = pool.getParallelism() > 1 ? pool : null; //Cipher workers for ECB, and for decryption.
+            if(job.mode == Mode.GCM) //A random nonce, the ciphertext and a 16-byte tag.
+            {
+                byte[] aad = job.aadFile == null ? new byte[0] : Files.readAllBytes(Paths.get(job.aadFile));
+                if (job.encrypt)
                 {
-                    if (line.length() < 32) {
-                        line = String.format("%032x",Integer.parseInt(line, 16));
-                    }
-                    state = new int[4][4];
-                    for (int i = 0; i < 4; i++) //Parses line into a matrix
-                    {
-                        for (int j = 0; j < 4; j++) {
-                            state[j][i] = Integer.parseInt(line.substring((8 * i) + (2 * j), (8 * i) + (2 * j + 2)), 16);
-                        }
-                    }
-                    if(mode == Mode.CBC)
-                    {
-                        aes.addRoundKey(state, initvector);   
-                    }
-                    aes.addRoundKey(state, aes.subKey(keymatrix, 0)); //Starts the addRoundKey with the first part of Key Expansion
-                    for (int i = 1; i < numRounds; i++) {
-                        aes.subBytes(state); //implements the Sub-Bytes subroutine.
-                        aes.shiftRows(state); //implements Shift-Rows subroutine.
-                        aes.mixColumns(state);
-                        aes.addRoundKey(state, aes.subKey(keymatrix, i));
-                    }
-                    aes.subBytes(state); //implements the Sub-Bytes subroutine.
-                    aes.shiftRows(state); //implements Shift-Rows subroutine.
-                    aes.addRoundKey(state, aes.subKey(keymatrix, numRounds));
-                    if(mode == Mode.CBC)
-                    {
-                        initvector = state;
-                    }
-                    out.write(MatrixToString(state) + newline); //If all systems could just use the same newline, I'd be set.
-                    line = input.readLine();
-                } 
-                else 
+                    GCMMode.encryptFile(cipher, aad, job.inputFile, job.outputFile());
+                }
+                else
                 {
-                    line = input.readLine();
+                    GCMMode.decryptFile(cipher, aad, job.inputFile, job.outputFile());
                 }
             }
-            input.close();
-            out.close();
-        } 
-        else if (args[0].equalsIgnoreCase("d")) //Decryption Mode 
-        {
-            out = new FileWriter(ftw + ".dec");
-            int numRounds = 10 + (((key.length() * 4 - 128) / 32));
-            String line = input.readLine();
-            int[][] state = new int[4][4];
-            int[][] initvector = new int[4][4];
-            int[][] nextvector = new int[4][4];
-            int[][] keymatrix = aes.keySchedule(key);
-            if(mode == Mode.CBC) //Parse Initialization Vector
+            else if(job.mode == Mode.CTR) //Encryption and decryption are the same operation.
             {
-                for (int i = 0; i < 4; i++)
-                {
-                    for (int j = 0; j < 4; j++) {
-                        initvector[j][i] = Integer.parseInt(iv.substring((8 * i) + (2 * j), (8 * i) + (2 * j + 2)), 16);
-                    }
-                }                
+                CTRMode.cryptFile(pool, cipher, ivblock, job.inputFile, job.outputFile());
+            }
+            else if(job.mode == Mode.XTS) //Sectors with their own tweaks; the output is the same length.
+            {
+                XTSMode.cryptFile(pool, cipher, job.tweakCipher(), job.encrypt, job.inputFile, job.outputFile());
             }
-            while (line != null) {
-                state = new int[4][4];
-                for (int i = 0; i < state.length; i++) //Parses line into a matrix
+            else if (job.encrypt)
+            {
+                if(job.io == IO.MMAP)
                 {
-                    for (int j = 0; j < state[0].length; j++) {
-                        state[j][i] = Integer.parseInt(line.substring((8 * i) + (2 * j), (8 * i) + (2 * j + 2)), 16);
-                    }
+                    MappedFile.encrypt(cipher, ivblock, job.inputFile, job.outputFile());
                 }
-                if(mode == Mode.CBC)
+                else if (job.checkpoint > 0 || job.resume)
                 {
-                    aes.deepCopy2DArray(nextvector,state);
+                    BinaryFile.encrypt(filepool, cipher, Checkpoint.open(job, cipher, ivblock), job.inputFile, job.outputFile());
                 }
-                aes.addRoundKey(state, aes.subKey(keymatrix, numRounds));
-                for (int i = numRounds - 1; i > 0; i--) {
-                    aes.invShiftRows(state);
-                    aes.invSubBytes(state);
-                    aes.addRoundKey(state, aes.subKey(keymatrix, i));
-                    aes.invMixColumns(state);
+                else
+                {
+                    BinaryFile.encrypt(filepool, cipher, ivblock, job.mac ? new CMAC(CMAC.fileKey(cipher)) : null, job.compress, job.inputFile, job.outputFile());
                 }
-                aes.invShiftRows(state);
-                aes.invSubBytes(state); 
-                aes.addRoundKey(state, aes.subKey(keymatrix, 0));
-                if(mode == Mode.CBC)
+            }
+            else
+            {
+                if(job.io == IO.MMAP)
                 {
-                    aes.addRoundKey(state, initvector);
-                    aes.deepCopy2DArray(initvector,nextvector);
+                    MappedFile.decrypt(filepool, cipher, ivblock, job.inputFile, job.outputFile());
+                }
+                else if (job.mac || job.compress >= 0) //The tag is checked, and the data decompressed, in the same pass.
+                {
+                    BinaryFile.decrypt(filepool, cipher, ivblock, job.mac ? new CMAC(CMAC.fileKey(cipher)) : null, job.compress >= 0, job.inputFile, job.outputFile());
+                }
+                else
+                {
+                    BinaryFile.decrypt(filepool, cipher, ivblock, job.inputFile, job.outputFile());
                 }
-                out.write(MatrixToString(state) + newline);
-                line = input.readLine();
             }
-            input.close();
-            out.close();
-        } 
-        else 
-        {
-            System.err.println("Usage for Encryption: java AES e keyFile inputFile");
-            System.err.println("Usage for Decryption: java AES d keyFile encryptedinputFile");
-        } 
-    }
-
-    //Helper method which executes a deep copy of a 2D array. (dest,src)
-    private void deepCopy2DArray(int[][] destination, int[][] source)
-    {
-        assert destination.length == source.length && destination[0].length == source[0].length;
-        for(int i = 0; i < destination.length;i++)
+        }
+        else //One block per line of hex.
         {
-            System.arraycopy(source[i], 0, destination[i], 0, destination[0].length);
+            AESCipher cipher = job.cipher();
+            int[] ivblock = null;
+            if(job.mode == Mode.CBC)
+            {
+                ivblock = new int[4];
+                HexToWords(job.iv, ivblock);
+            }
+            if (job.encrypt)
+            {
+                HexFile.encrypt(pool, cipher, ivblock, job.inputFile, job.outputFile());
+            }
+            else
+            {
+                HexFile.decrypt(pool, cipher, ivblock, job.inputFile, job.outputFile());
+            }
         }
     }
 
@@ -286,6 +327,61 @@ public class AES {
         return arr;
     }
 
+    /**
+     * Pulls out every subkey from the key formed from the keySchedule method, so that
+     * the round keys are copied once per run rather than once per block.
+     * @param km key formed from AES.keySchedule()
+     * @return the round keys, indexed by round.
+     */
+
+    public int[][][] subKeys(int[][] km) {
+        int[][][] keys = new int[km[0].length / 4][][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = subKey(km, i);
+        }
+        return keys;
+    }
+
+    /**
+     * Runs every round of the cipher on one block.
+     * @param state the block as a 4x4 matrix, encrypted in place.
+     * @param subkeys round keys from subKeys().
+     */
+
+    public void encryptState(int[][] state, int[][][] subkeys) {
+        int numRounds = subkeys.length - 1;
+        addRoundKey(state, subkeys[0]); //Starts the addRoundKey with the first part of Key Expansion
+        for (int i = 1; i < numRounds; i++) {
+            subBytes(state); //implements the Sub-Bytes subroutine.
+            shiftRows(state); //implements Shift-Rows subroutine.
+            mixColumns(state);
+            addRoundKey(state, subkeys[i]);
+        }
+        subBytes(state); //implements the Sub-Bytes subroutine.
+        shiftRows(state); //implements Shift-Rows subroutine.
+        addRoundKey(state, subkeys[numRounds]);
+    }
+
+    /**
+     * Runs every round of the inverse cipher on one block.
+     * @param state the block as a 4x4 matrix, decrypted in place.
+     * @param subkeys round keys from subKeys().
+     */
+
+    public void decryptState(int[][] state, int[][][] subkeys) {
+        int numRounds = subkeys.length - 1;
+        addRoundKey(state, subkeys[numRounds]);
+        for (int i = numRounds - 1; i > 0; i--) {
+            invShiftRows(state);
+            invSubBytes(state);
+            addRoundKey(state, subkeys[i]);
+            invMixColumns(state);
+        }
+        invShiftRows(state);
+        invSubBytes(state); 
+        addRoundKey(state, subkeys[0]);
+    }
+
     /**
      * Replaces all elements in the passed array with values in sbox[][].
      * @param arr Array whose value will be replaced
@@ -598,4 +694,101 @@ public class AES {
         }
         return t;
     }
+
+    /**
+     * Parses a line of 32 hex characters into a 4x4 matrix, one column per 8 characters.
+     *
+     * @param line the hex line.
+     * @param state receives the matrix.
+     */
+
+    public static void HexToMatrix(String line, int[][] state)
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            for (int j = 0; j < 4; j++) {
+                state[j][i] = Integer.parseInt(line.substring((8 * i) + (2 * j), (8 * i) + (2 * j + 2)), 16);
+            }
+        }
+    }
+
+    /**
+     * Parses a line of 32 hex characters into the four column words used by TTableAES.
+     *
+     * @param line the hex line.
+     * @param words receives the four words.
+     */
+
+    public static void HexToWords(String line, int[] words)
+    {
+        for (int i = 0; i < 4; i++) {
+            words[i] = (int) Long.parseLong(line.substring(8 * i, 8 * i + 8), 16);
+        }
+    }
+
+    /**
+     * Parses a string of hex characters into bytes.
+     *
+     * @param hex the hex string, two characters per byte.
+     * @return the bytes.
+     */
+
+    public static byte[] HexToBytes(String hex)
+    {
+        byte[] b = new byte[hex.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return b;
+    }
+
+    /**
+     * Copies the four column words used by TTableAES into a 4x4 matrix.
+     *
+     * @param words the four words.
+     * @param state receives the matrix.
+     */
+
+    public static void WordsToMatrix(int[] words, int[][] state)
+    {
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                state[j][i] = (words[i] >>> (24 - 8 * j)) & 0xff;
+            }
+        }
+    }
+
+    /**
+     * Copies a 4x4 matrix into the four column words used by TTableAES.
+     *
+     * @param state the matrix.
+     * @param words receives the four words.
+     */
+
+    public static void MatrixToWords(int[][] state, int[] words)
+    {
+        for (int i = 0; i < 4; i++) {
+            words[i] = (state[0][i] << 24) | (state[1][i] << 16) | (state[2][i] << 8) | state[3][i];
+        }
+    }
+
+    /**
+     * ToString() for the four column words used by TTableAES.
+     *
+     * @param words the four words.
+     * @return the line of 32 hex characters, in the same layout as MatrixToString.
+     */
+
+    public static String WordsToString(int[] words)
+    {
+        String t = "";
+        for (int i = 0; i < words.length; i++) {
+            String h = Integer.toHexString(words[i]).toUpperCase();
+            while (h.length() < 8) {
+                h = '0' + h;
+            }
+            t += h;
+        }
+        return t;
+    }
 }
@@ -0,0 +1,200 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Batch mode (-batch n): processes many files in one JVM, n at a time. The inputFile
+ * argument names either a directory or a manifest.
+ *
+ * For a directory, every file in it is processed with the options and key given on the
+ * command line. When encrypting, files ending in .enc or .dec are left out; when decrypting,
+ * only files ending in .enc are processed.
+ *
+ * A manifest has one job per line. A line holding a single file name is processed with the
+ * options and key given on the command line; any other line is a complete argument list,
+ * as it would be given to java AES, so that it may use its own options and key file. Empty
+ * lines and lines starting with # are ignored.
+ *
+ * Jobs using the same key share one expanded key through the AESCipher cache, and all jobs
+ * share one ForkJoinPool of -threads threads for CTR and for bin decryption. When there are
+ * four or more bin CBC encryptions, they are not run one per worker but split among the
+ * workers as CBCStreams, which encrypt the next blocks of many files together.
+ *
+ * A line with the size, time and throughput of every file is printed in input order,
+ * followed by the totals.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class AESBatch {
+
+    private static final double MB = 1024 * 1024;
+
+    private AESBatch() {
+        //Only static methods.
+    }
+
+    /**
+     * Runs a batch.
+     * @param batch the job parsed from the command line; its inputFile is the directory or manifest.
+     * @return the number of files that failed.
+     * @throws IOException if the directory or manifest cannot be read.
+     */
+    public static int run(AESJob batch) throws IOException {
+        List<String> names = new ArrayList<String>();
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>(); //null for files in streams.
+        List<CBCStreams.Stream> streams = new ArrayList<CBCStreams.Stream>();
+        ForkJoinPool pool = new ForkJoinPool(batch.threads);
+        File input = new File(batch.inputFile);
+        if (input.isDirectory()) {
+            File[] files = input.listFiles();
+            Arrays.sort(files);
+            for (int i = 0; i < files.length; i++) {
+                String name = files[i].getPath();
+                boolean output = name.endsWith(".enc") || name.endsWith(".dec");
+                if (files[i].isFile() && (batch.encrypt ? !output : name.endsWith(".enc"))) {
+                    names.add(name);
+                    tasks.add(task(batch.withInput(name), pool, streams));
+                }
+            }
+        } else {
+            BufferedReader manifest = new BufferedReader(new FileReader(input));
+            try {
+                String line;
+                while ((line = manifest.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() == 0 || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] args = line.split("\\s+");
+                    names.add(args[args.length - 1]);
+                    tasks.add(args.length == 1 ? task(batch.withInput(line), pool, streams) : task(args, pool, streams));
+                }
+            } finally {
+                manifest.close();
+            }
+        }
+
+        if (streams.size() < 4) { //Too few to interleave; each runs on its own, pipelined.
+            for (int i = 0, s = 0; i < tasks.size(); i++) {
+                if (tasks.get(i) == null) {
+                    tasks.set(i, task(streams.get(s++).job, pool));
+                }
+            }
+            streams.clear();
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(batch.workers);
+        long start = System.nanoTime();
+        long total = 0;
+        int failed = 0;
+        try {
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            int groups = Math.max(1, Math.min(batch.workers, streams.size() / 4)); //At least four files in each.
+            for (int g = 0; g < groups && !streams.isEmpty(); g++) {
+                final List<CBCStreams.Stream> group = new ArrayList<CBCStreams.Stream>();
+                for (int i = g; i < streams.size(); i += groups) {
+                    group.add(streams.get(i));
+                }
+                workers.submit(new Runnable() {
+                    public void run() {
+                        CBCStreams.encrypt(group);
+                    }
+                });
+            }
+            for (int i = 0, s = 0; i < tasks.size(); i++) {
+                results.add(tasks.get(i) != null ? workers.submit(tasks.get(i)) : streams.get(s++).result);
+            }
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    long nanos = results.get(i).get();
+                    long bytes = new File(names.get(i)).length();
+                    total += bytes;
+                    System.out.printf("%-40s %14d bytes %10.1f ms %10.1f MB/s%n", names.get(i), bytes, nanos / 1e6, bytes / MB / (nanos / 1e9));
+                } catch (ExecutionException e) {
+                    failed++;
+                    Throwable cause = e.getCause();
+                    System.out.printf("%-40s FAILED: %s%n", names.get(i), cause.getMessage() != null ? cause.getMessage() : cause.toString());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch interrupted.");
+        } finally {
+            workers.shutdownNow();
+            pool.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%d files, %d failed, %d bytes in %.1f ms: %.1f MB/s%n", names.size(), failed, total, elapsed / 1e6, total / MB / (elapsed / 1e9));
+        return failed;
+    }
+
+    /**
+     * @return a task that processes job and returns the time it took in nanoseconds, or null
+     *         if job was added to streams instead.
+     */
+    private static Callable<Long> task(AESJob job, ForkJoinPool pool, List<CBCStreams.Stream> streams) {
+        if (CBCStreams.MAX_STREAMS > 1 && CBCStreams.accepts(job)) {
+            streams.add(new CBCStreams.Stream(job));
+            return null;
+        }
+        return task(job, pool);
+    }
+
+    /**
+     * @return a task that processes job and returns the time it took in nanoseconds.
+     */
+    private static Callable<Long> task(final AESJob job, final ForkJoinPool pool) {
+        return new Callable<Long>() {
+            public Long call() throws IOException {
+                long start = System.nanoTime();
+                AES.process(job, pool);
+                return System.nanoTime() - start;
+            }
+        };
+    }
+
+    /**
+     * @return a task for a manifest line, or null if the line was added to streams.
+     */
+    private static Callable<Long> task(String[] args, ForkJoinPool pool, List<CBCStreams.Stream> streams) {
+        try {
+            AESJob job = AESJob.parse(args);
+            if (job.workers == 0 && (args[0].equalsIgnoreCase("e") || args[0].equalsIgnoreCase("d"))) {
+                return task(job, pool, streams);
+            }
+        } catch (Exception e) {
+            //Reported when the task runs.
+        }
+        return task(args, pool);
+    }
+
+    /**
+     * @return a task that parses a manifest line and then processes it; a line that does not
+     *         parse fails when the task runs, like any other job.
+     */
+    private static Callable<Long> task(final String[] args, final ForkJoinPool pool) {
+        return new Callable<Long>() {
+            public Long call() throws Exception {
+                if (!(args[0].equalsIgnoreCase("e") || args[0].equalsIgnoreCase("d"))) {
+                    throw new Exception("Error: A manifest line must start with e or d.");
+                }
+                AESJob job = AESJob.parse(args);
+                if (job.workers > 0) {
+                    throw new Exception("Error: -batch cannot be used in a manifest.");
+                }
+                return task(job, pool).call();
+            }
+        };
+    }
+}
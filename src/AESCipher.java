@@ -0,0 +1,377 @@
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An AES key with its round keys expanded once. Instances are immutable and may be
+ * shared between threads; use getInstance() so that recently used keys are taken from
+ * a bounded LRU cache instead of being expanded again.
+ *
+ * Instances from getInstance() run on the T-table engine. withEngine() returns the same
+ * key on another BlockEngine; the bitsliced and vector engines are fastest when blocks
+ * are passed BATCH at a time to encryptBlocks() and decryptBlocks().
+ *
+ * Besides column words, blocks can be passed as bytes: in a byte[] at an offset, or in a
+ * heap or direct ByteBuffer, by offset or from its position. These forms take any number
+ * of blocks, may work in place, and allocate nothing on any engine but reference, which
+ * runs the matrix code of AES; the words for the engine are staged in an array taken
+ * from a ScratchPool. test/AESCipherAllocationTest checks this (ant alloc-test).
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public final class AESCipher {
+
+    /**
+     * Maximum number of expanded keys kept in the cache. Can be set with -Daes.keycache.size.
+     */
+    public static final int CACHE_SIZE = Integer.getInteger("aes.keycache.size", 4096);
+
+    private static final Map<ByteBuffer, AESCipher> cache = new LinkedHashMap<ByteBuffer, AESCipher>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, AESCipher> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Number of blocks worth passing to encryptBlocks() and decryptBlocks() at once.
+     */
+    public static final int BATCH = BitslicedAES.BATCH;
+
+    private static final ScratchPool<int[]> words = new ScratchPool<int[]>() {
+        @Override
+        protected int[] create() {
+            return new int[4 * BATCH];
+        }
+    };
+
+    private final byte[] key;
+    private final int rounds;
+    private final int[] encryptionKey;
+    private final int[] decryptionKey;
+    private final BlockEngine engine;
+    private final Object engineKey;
+    private final Map<BlockEngine, AESCipher> engines; //This key on each engine, shared by all of them.
+
+    private AESCipher(byte[] key) {
+        long start = AESMetrics.time();
+        int[][] keymatrix = new AES().keySchedule(bytesToHex(key));
+        this.key = key;
+        rounds = keymatrix[0].length / 4 - 1;
+        encryptionKey = TTableAES.expandEncryptionKey(keymatrix);
+        decryptionKey = TTableAES.expandDecryptionKey(encryptionKey);
+        engine = BlockEngines.TTABLE;
+        engineKey = engine.expandKey(this);
+        engines = new HashMap<BlockEngine, AESCipher>();
+        engines.put(engine, this);
+        AESMetrics.keySchedule(start);
+    }
+
+    private AESCipher(AESCipher table, BlockEngine engine) {
+        key = table.key;
+        rounds = table.rounds;
+        encryptionKey = table.encryptionKey;
+        decryptionKey = table.decryptionKey;
+        this.engine = engine;
+        long start = AESMetrics.time();
+        engineKey = engine.expandKey(this);
+        AESMetrics.keySchedule(start);
+        engines = table.engines;
+    }
+
+    /**
+     * Returns the cipher for the given key, expanding it only if it is not cached.
+     * @param key the raw key, 16 or 32 bytes.
+     * @return the cipher for key.
+     */
+    public static AESCipher getInstance(byte[] key) {
+        if (key.length != 16 && key.length != 32) {
+            throw new IllegalArgumentException("Error: Attemping to use a " + key.length * 8 + "-bit key, only 128 and 256 are supported");
+        }
+        ByteBuffer k = ByteBuffer.wrap(key.clone());
+        synchronized (cache) {
+            AESCipher c = cache.get(k);
+            if (c == null) {
+                c = new AESCipher(k.array());
+                cache.put(k, c);
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Returns the cipher for a key written as hex characters, as in the key file.
+     * @param hexkey the key, 32 or 64 hex characters.
+     * @return the cipher for hexkey.
+     */
+    public static AESCipher getInstance(String hexkey) {
+        return getInstance(AES.HexToBytes(hexkey));
+    }
+
+    /**
+     * Removes every key from the cache.
+     */
+    public static void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return the number of rounds, 10 or 14.
+     */
+    public int getRounds() {
+        return rounds;
+    }
+
+    /**
+     * Returns this key on another engine. The output is identical on every engine.
+     * @param engine an available engine.
+     * @return the cipher for this key on engine, built on first use.
+     */
+    public AESCipher withEngine(BlockEngine engine) {
+        if (engine == this.engine) {
+            return this;
+        }
+        synchronized (engines) {
+            AESCipher c = engines.get(engine);
+            if (c == null) {
+                c = new AESCipher(this, engine);
+                engines.put(engine, c);
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Returns this key on the bitsliced engine, where no table lookup or branch depends
+     * on the key or the data.
+     * @return the bitsliced cipher for this key.
+     */
+    public AESCipher bitsliced() {
+        return withEngine(BlockEngines.BITSLICED);
+    }
+
+    /**
+     * @return the engine this cipher runs on.
+     */
+    public BlockEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Encrypts one block of four column words. in and out may be the same array.
+     * @param in the four input words.
+     * @param out receives the four output words.
+     */
+    public void encryptBlock(int[] in, int[] out) {
+        engine.encryptBlocks(engineKey, in, out, 1);
+    }
+
+    /**
+     * Decrypts one block of four column words. in and out may be the same array.
+     * @param in the four input words.
+     * @param out receives the four output words.
+     */
+    public void decryptBlock(int[] in, int[] out) {
+        engine.decryptBlocks(engineKey, in, out, 1);
+    }
+
+    /**
+     * Encrypts independent blocks, four column words each. in and out may be the same array.
+     * @param in the input words.
+     * @param out receives the output words.
+     * @param blocks the number of blocks, 1 to BATCH.
+     */
+    public void encryptBlocks(int[] in, int[] out, int blocks) {
+        engine.encryptBlocks(engineKey, in, out, blocks);
+    }
+
+    /**
+     * Decrypts independent blocks, four column words each. in and out may be the same array.
+     * @param in the input words.
+     * @param out receives the output words.
+     * @param blocks the number of blocks, 1 to BATCH.
+     */
+    public void decryptBlocks(int[] in, int[] out, int blocks) {
+        engine.decryptBlocks(engineKey, in, out, blocks);
+    }
+
+    /**
+     * Encrypts count blocks from the position of src to the position of dst, and moves both
+     * positions past them. src and dst may be the same buffer, heap or direct, in which case
+     * the blocks are encrypted in place. Multi-byte values are not involved, so the byte
+     * order of the buffers does not matter.
+     * @param src the input bytes.
+     * @param dst receives the output bytes.
+     * @param count the number of blocks.
+     * @throws BufferUnderflowException if src has fewer than 16 * count bytes remaining.
+     * @throws BufferOverflowException if dst has fewer than 16 * count bytes remaining.
+     */
+    public void encryptBlocks(ByteBuffer src, ByteBuffer dst, int count) {
+        crypt(true, src, dst, count);
+    }
+
+    /**
+     * Decrypts count blocks from the position of src to the position of dst, and moves both
+     * positions past them; the reverse of encryptBlocks(ByteBuffer, ByteBuffer, int).
+     */
+    public void decryptBlocks(ByteBuffer src, ByteBuffer dst, int count) {
+        crypt(false, src, dst, count);
+    }
+
+    /**
+     * Encrypts count blocks of src at srcOff into dst at dstOff, leaving the positions of
+     * both buffers as they are, so that threads may share a buffer. The ranges may be the
+     * same, but must not otherwise overlap.
+     * @param src the input bytes.
+     * @param srcOff offset of the first input byte.
+     * @param dst receives the output bytes.
+     * @param dstOff offset of the first output byte.
+     * @param count the number of blocks.
+     * @throws IndexOutOfBoundsException if either range is not within the limit of its buffer.
+     */
+    public void encryptBlocks(ByteBuffer src, int srcOff, ByteBuffer dst, int dstOff, int count) {
+        crypt(true, src, srcOff, dst, dstOff, count);
+    }
+
+    /**
+     * Decrypts count blocks of src at srcOff into dst at dstOff; the reverse of
+     * encryptBlocks(ByteBuffer, int, ByteBuffer, int, int).
+     */
+    public void decryptBlocks(ByteBuffer src, int srcOff, ByteBuffer dst, int dstOff, int count) {
+        crypt(false, src, srcOff, dst, dstOff, count);
+    }
+
+    /**
+     * Encrypts count blocks of in at inOff into out at outOff. The ranges may be the same,
+     * but must not otherwise overlap.
+     * @param in the input bytes.
+     * @param inOff offset of the first input byte.
+     * @param out receives the output bytes.
+     * @param outOff offset of the first output byte.
+     * @param count the number of blocks.
+     * @throws IndexOutOfBoundsException if either range is not within its array.
+     */
+    public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int count) {
+        crypt(true, in, inOff, out, outOff, count);
+    }
+
+    /**
+     * Decrypts count blocks of in at inOff into out at outOff; the reverse of
+     * encryptBlocks(byte[], int, byte[], int, int).
+     */
+    public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int count) {
+        crypt(false, in, inOff, out, outOff, count);
+    }
+
+    private void crypt(boolean encrypt, ByteBuffer src, ByteBuffer dst, int count) {
+        int p = src.position(), q = dst.position();
+        if (count < 0 || src.remaining() < 16L * count) {
+            throw new BufferUnderflowException();
+        }
+        if (dst.remaining() < 16L * count) {
+            throw new BufferOverflowException();
+        }
+        crypt(encrypt, src, p, dst, q, count);
+        src.position(p + 16 * count);
+        dst.position(q + 16 * count);
+    }
+
+    private void crypt(boolean encrypt, ByteBuffer src, int srcOff, ByteBuffer dst, int dstOff, int count) {
+        check(srcOff, src.limit(), dstOff, dst.limit(), count);
+        boolean srcSwap = src.order() != ByteOrder.BIG_ENDIAN; //The column words are big endian.
+        boolean dstSwap = dst.order() != ByteOrder.BIG_ENDIAN;
+        int[] w = words.take();
+        try {
+            for (int b = 0; b < count; b += BATCH) {
+                int n = Math.min(BATCH, count - b);
+                int p = srcOff + 16 * b, q = dstOff + 16 * b;
+                for (int i = 0; i < 4 * n; i++) {
+                    int v = src.getInt(p + 4 * i);
+                    w[i] = srcSwap ? Integer.reverseBytes(v) : v;
+                }
+                if (encrypt) {
+                    engine.encryptBlocks(engineKey, w, w, n);
+                } else {
+                    engine.decryptBlocks(engineKey, w, w, n);
+                }
+                for (int i = 0; i < 4 * n; i++) {
+                    dst.putInt(q + 4 * i, dstSwap ? Integer.reverseBytes(w[i]) : w[i]);
+                }
+            }
+        } finally {
+            words.give(w);
+        }
+    }
+
+    private void crypt(boolean encrypt, byte[] in, int inOff, byte[] out, int outOff, int count) {
+        check(inOff, in.length, outOff, out.length, count);
+        int[] w = words.take();
+        try {
+            for (int b = 0; b < count; b += BATCH) {
+                int n = Math.min(BATCH, count - b);
+                for (int i = 0, p = inOff + 16 * b; i < 4 * n; i++, p += 4) {
+                    w[i] = in[p] << 24 | (in[p + 1] & 0xff) << 16 | (in[p + 2] & 0xff) << 8 | (in[p + 3] & 0xff);
+                }
+                if (encrypt) {
+                    engine.encryptBlocks(engineKey, w, w, n);
+                } else {
+                    engine.decryptBlocks(engineKey, w, w, n);
+                }
+                for (int i = 0, q = outOff + 16 * b; i < 4 * n; i++, q += 4) {
+                    out[q] = (byte) (w[i] >>> 24);
+                    out[q + 1] = (byte) (w[i] >>> 16);
+                    out[q + 2] = (byte) (w[i] >>> 8);
+                    out[q + 3] = (byte) w[i];
+                }
+            }
+        } finally {
+            words.give(w);
+        }
+    }
+
+    /**
+     * Checks both ranges before any block is written, so that a bad call changes nothing.
+     */
+    private static void check(int inOff, int inLength, int outOff, int outLength, int count) {
+        if (count < 0 || inOff < 0 || outOff < 0 || inOff > inLength - 16L * count || outOff > outLength - 16L * count) {
+            throw new IndexOutOfBoundsException("Error: " + count + " blocks at offsets " + inOff + " and " + outOff
+                + " do not fit in " + inLength + " and " + outLength + " bytes.");
+        }
+    }
+
+    /**
+     * The raw key. Callers must not modify it.
+     */
+    byte[] key() {
+        return key;
+    }
+
+    /**
+     * Round keys of the cipher, four words per round. Callers must not modify them.
+     */
+    int[] encryptionKey() {
+        return encryptionKey;
+    }
+
+    /**
+     * Round keys of the equivalent inverse cipher, four words per round. Callers must not modify them.
+     */
+    int[] decryptionKey() {
+        return decryptionKey;
+    }
+
+    static String bytesToHex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (int i = 0; i < b.length; i++) {
+            sb.append(Character.forDigit((b[i] >> 4) & 0xf, 16)).append(Character.forDigit(b[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,46 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/**
+ * An input stream that reads from another stream and returns its data encrypted or
+ * decrypted, in ECB or CBC mode with PKCS#7 padding. See AESReadableChannel, which does
+ * the work in the caller's array.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class AESInputStream extends InputStream {
+
+    private final AESReadableChannel channel;
+    private final byte[] one = new byte[1];
+
+    /**
+     * @param in where the data is read from.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @param encrypt true to encrypt, false to decrypt.
+     */
+    public AESInputStream(InputStream in, AESCipher cipher, int[] iv, boolean encrypt) {
+        this.channel = new AESReadableChannel(Channels.newChannel(in), cipher, iv, encrypt);
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        return channel.read(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
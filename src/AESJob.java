@@ -0,0 +1,222 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * One run of the command line tool: the options parsed from one argument list, the key and
+ * IV read from its key file, and the input file they apply to. Keeping these in an object
+ * rather than in static fields of AES lets one JVM run many jobs, one after another or at
+ * the same time.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class AESJob {
+
+    boolean encrypt;
+    int keysize = 128;
+    AES.Mode mode = AES.Mode.ECB;
+    BlockEngine engine; //Set by parse(), from -engine or else by BlockEngines.selected().
+    boolean autoEngine; //True if engine was picked by BlockEngines.selected().
+    AES.Format format = AES.Format.HEX;
+    AES.IO io = AES.IO.STREAM;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int workers; //Number of batch workers; 0 unless -batch was given.
+    long checkpoint; //Bytes of input between checkpoints; 0 unless -checkpoint was given.
+    boolean resume; //True if -resume was given.
+    boolean mac; //True if -mac was given.
+    int compress = -1; //The Deflate level from -compress, or -1.
+    String aadFile;
+    String keyFile;
+    String key;
+    String iv;
+    String inputFile;
+
+    private AESJob() {
+        //Built by parse() and withInput().
+    }
+
+    /**
+     * Parses one argument list: e|d, then option/value pairs in any order, then the keyFile
+     * and the inputFile. The key file is read and checked here, and if no engine was given,
+     * the calibrated one is picked.
+     * @param args the arguments, as given to AES.main.
+     * @return the job.
+     * @throws Exception with a message for the user if the arguments or the key file are invalid.
+     */
+    public static AESJob parse(String[] args) throws Exception {
+        AESJob job = new AESJob();
+        job.encrypt = args[0].equalsIgnoreCase("e");
+        int keyFileIndex = 1; //Index where the keyFile argument should be. Used to determines the index of other arguments.
+        while (args[keyFileIndex].startsWith("-")) {
+            String option = args[keyFileIndex];
+            if (option.equals("-resume") || option.equals("-mac")) { //The options without a value.
+                job.resume |= option.equals("-resume");
+                job.mac |= option.equals("-mac");
+                keyFileIndex++;
+                continue;
+            }
+            String value = args[keyFileIndex + 1];
+            if (option.equals("-length")) {
+                job.keysize = Integer.parseInt(value);
+            } else if (option.equals("-mode")) {
+                job.mode = value.equals("ecb") ? AES.Mode.ECB : value.equals("ctr") ? AES.Mode.CTR : value.equals("gcm") ? AES.Mode.GCM : value.equals("xts") ? AES.Mode.XTS : AES.Mode.CBC;
+            } else if (option.equals("-engine")) {
+                job.engine = value.equals("auto") ? null : BlockEngines.forName(value);
+            } else if (option.equals("-format")) {
+                job.format = value.equals("bin") ? AES.Format.BIN : value.equals("chunked") ? AES.Format.CHUNKED : AES.Format.HEX;
+            } else if (option.equals("-io")) {
+                job.io = value.equals("mmap") ? AES.IO.MMAP : AES.IO.STREAM;
+            } else if (option.equals("-threads")) {
+                job.threads = Integer.parseInt(value);
+            } else if (option.equals("-aad")) {
+                job.aadFile = value;
+            } else if (option.equals("-batch")) {
+                job.workers = Integer.parseInt(value);
+            } else if (option.equals("-checkpoint")) {
+                job.checkpoint = Long.parseLong(value) << 20;
+            } else if (option.equals("-compress")) {
+                job.compress = Integer.parseInt(value);
+            } else {
+                throw new Exception("Error: Unknown option " + option);
+            }
+            keyFileIndex += 2;
+        }
+        if (job.io == AES.IO.MMAP && job.format != AES.Format.BIN) {
+            throw new Exception("Error: -io mmap requires -format bin.");
+        }
+        if ((job.mode == AES.Mode.CTR || job.mode == AES.Mode.GCM) && job.format != AES.Format.BIN) {
+            throw new Exception("Error: -mode " + job.mode.toString().toLowerCase() + " requires -format bin.");
+        }
+        if (job.mode == AES.Mode.XTS && (job.format != AES.Format.BIN || (job.keysize != 256 && job.keysize != 512))) {
+            throw new Exception("Error: -mode xts requires -format bin and -length 256 or 512.");
+        }
+        if (job.keysize == 512 && job.mode != AES.Mode.XTS) {
+            throw new Exception("Error: -length 512 is only for -mode xts.");
+        }
+        if (job.format == AES.Format.CHUNKED && job.mode != AES.Mode.CBC) {
+            throw new Exception("Error: -format chunked requires -mode cbc.");
+        }
+        if ((job.checkpoint > 0 || job.resume) && !(job.encrypt && job.format == AES.Format.BIN && job.io == AES.IO.STREAM
+                && (job.mode == AES.Mode.ECB || job.mode == AES.Mode.CBC) && job.workers == 0)) {
+            throw new Exception("Error: -checkpoint and -resume require encryption with -format bin, -mode ecb or cbc and -io stream, without -batch.");
+        }
+        if (job.mac && !(job.format == AES.Format.BIN && job.io == AES.IO.STREAM && (job.mode == AES.Mode.ECB || job.mode == AES.Mode.CBC)
+                && job.checkpoint == 0 && !job.resume)) {
+            throw new Exception("Error: -mac requires -format bin, -mode ecb or cbc and -io stream, without -checkpoint or -resume.");
+        }
+        if (job.compress >= 0 && !(job.format == AES.Format.BIN && job.io == AES.IO.STREAM && (job.mode == AES.Mode.ECB || job.mode == AES.Mode.CBC)
+                && job.checkpoint == 0 && !job.resume)) {
+            throw new Exception("Error: -compress requires -format bin, -mode ecb or cbc and -io stream, without -checkpoint or -resume.");
+        }
+        if (job.compress < -1 || job.compress > 9) {
+            throw new Exception("Error: -compress needs a level from 0 to 9.");
+        }
+        if (job.checkpoint < 0) {
+            throw new Exception("Error: -checkpoint needs a positive number.");
+        }
+        if (job.threads < 1 || job.workers < 0) {
+            throw new Exception("Error: -threads and -batch need a positive number.");
+        }
+        if (job.engine == null) {
+            job.engine = BlockEngines.selected(job.isBatched());
+            job.autoEngine = true;
+        }
+        job.keyFile = args[keyFileIndex];
+        job.readKeyFile();
+        job.inputFile = args[keyFileIndex + 1];
+        File input = new File(job.inputFile);
+        if (job.workers > 0 ? !input.exists() : !input.isFile()) {
+            throw new Exception("Error: Cannot find " + job.inputFile);
+        }
+        return job;
+    }
+
+    /**
+     * Reads the key, and the IV if the mode needs one, and checks their lengths.
+     */
+    private void readKeyFile() throws Exception {
+        BufferedReader keyreader = new BufferedReader(new FileReader(keyFile));
+        try {
+            key = keyreader.readLine();
+            if (key == null || key.length() * 4 != keysize) { //Check to see if user's intended key size matches the size of key in file.
+                throw new Exception("Error: Attemping to use a " + (key == null ? 0 : key.length() * 4) + "-bit key with AES-" + keysize);
+            }
+            if (mode == AES.Mode.XTS && key.substring(0, key.length() / 2).equalsIgnoreCase(key.substring(key.length() / 2))) {
+                throw new Exception("Error: The two halves of an XTS key must differ.");
+            }
+            if ((mode == AES.Mode.CBC && format != AES.Format.CHUNKED) || mode == AES.Mode.CTR) { //Chunks have their own IVs, and GCM files their own nonces.
+                iv = keyreader.readLine();
+                if (iv == null) {
+                    throw new Exception("Error: Initialization Vector required for " + mode + " Mode.");
+                } else if (iv.length() != 32) {
+                    throw new Exception("Error: Size of Initialization Vector must be 32 bytes.");
+                }
+            }
+        } catch (IOException e) {
+            throw new Exception("Error: Cannot read key file " + keyFile + ": " + e.getMessage());
+        } finally {
+            keyreader.close();
+        }
+    }
+
+    /**
+     * @param file another input file.
+     * @return a copy of this job, with the same options and key, for file.
+     */
+    AESJob withInput(String file) {
+        AESJob job = new AESJob();
+        job.encrypt = encrypt;
+        job.keysize = keysize;
+        job.mode = mode;
+        job.engine = engine;
+        job.autoEngine = autoEngine;
+        job.format = format;
+        job.io = io;
+        job.threads = threads;
+        job.checkpoint = checkpoint;
+        job.resume = resume;
+        job.mac = mac;
+        job.compress = compress;
+        job.aadFile = aadFile;
+        job.keyFile = keyFile;
+        job.key = key;
+        job.iv = iv;
+        job.inputFile = file;
+        return job;
+    }
+
+    /**
+     * @return true if this job passes blocks to the cipher in batches: bin ECB, CTR, GCM, XTS,
+     *         and CBC decryption of bin and chunked files. The hex format and CBC encryption
+     *         pass one at a time.
+     */
+    boolean isBatched() {
+        return (format == AES.Format.BIN && (mode == AES.Mode.ECB || mode == AES.Mode.CTR || mode == AES.Mode.GCM || mode == AES.Mode.XTS
+            || (mode == AES.Mode.CBC && !encrypt)))
+            || (format == AES.Format.CHUNKED && !encrypt);
+    }
+
+    /**
+     * @return the expanded key, on the job's engine. For XTS, the first half of the key,
+     *         which encrypts the data.
+     */
+    public AESCipher cipher() {
+        return AESCipher.getInstance(mode == AES.Mode.XTS ? key.substring(0, key.length() / 2) : key).withEngine(engine);
+    }
+
+    /**
+     * @return the second half of an XTS key, which encrypts the sector numbers, on the job's engine.
+     */
+    public AESCipher tweakCipher() {
+        return AESCipher.getInstance(key.substring(key.length() / 2)).withEngine(engine);
+    }
+
+    /**
+     * @return the name of the file this job writes: [inputFile].enc or [inputFile].dec
+     */
+    public String outputFile() {
+        return inputFile + (encrypt ? ".enc" : ".dec");
+    }
+}
@@ -0,0 +1,321 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Counters and timings for cipher jobs, turned on with -Daes.metrics=true. Each file
+ * processed by AES.process() gets an AESMetrics that collects its blocks, sizes, skipped
+ * hex lines, key schedule time, and the time spent reading, in the cipher and writing.
+ * The totals over all files are published over JMX as AES:type=Metrics (see
+ * AESMetricsMBean) and printed on standard error at the end of a run.
+ *
+ * The file loops report once per buffer, mapped window or group of hex lines, never per
+ * block. Every method returns at once when metrics are off; ENABLED is a constant, so the
+ * JIT removes the calls altogether.
+ *
+ * When the JVM has Flight Recorder (Java 11 or later), RECORDER holds JfrRecorder, which
+ * commits an aes.File event for each file and an aes.Chunk event for each buffer or window.
+ * The events are recorded only while a recording that enables them is running, e.g.
+ * java -XX:StartFlightRecording=filename=aes.jfr -Daes.metrics=true AES ...
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public final class AESMetrics {
+
+    /**
+     * True if -Daes.metrics=true was given.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("aes.metrics");
+
+    private static final Totals TOTALS = new Totals();
+
+    /**
+     * The metrics of the file being processed on each thread. The file loops run on the
+     * thread that called AES.process(), so they find their file here.
+     */
+    private static final ThreadLocal<AESMetrics> current = new ThreadLocal<AESMetrics>();
+
+    /**
+     * The Flight Recorder events, or null if they are not available.
+     */
+    static final Recorder RECORDER = ENABLED ? loadRecorder() : null;
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(TOTALS, AESMetricsMBean.class), new ObjectName("AES:type=Metrics"));
+            } catch (Exception e) {
+                System.err.println("Warning: Cannot register the metrics MBean: " + e);
+            }
+        }
+    }
+
+    /**
+     * Commits the events of one file and of its chunks.
+     */
+    interface Recorder {
+
+        /**
+         * @return an event started for a file, passed back to end().
+         */
+        Object begin();
+
+        void chunk(AESMetrics file, long blocks, long readNanos, long cipherNanos, long writeNanos);
+
+        void end(Object event, AESMetrics file);
+    }
+
+    final String file;
+    final String mode;
+    final String engine;
+    final boolean encrypt;
+    long blocks;
+    long bytesIn;
+    long bytesOut;
+    long skippedLines;
+    long keyScheduleNanos;
+    long readNanos;
+    long cipherNanos;
+    long writeNanos;
+    long elapsedNanos;
+    boolean failed;
+    private final Object event;
+    private final long startNanos = System.nanoTime();
+
+    private AESMetrics(AESJob job) {
+        file = job.inputFile;
+        mode = job.format.toString().toLowerCase() + " " + job.mode.toString().toLowerCase();
+        engine = job.engine.name();
+        encrypt = job.encrypt;
+        event = RECORDER != null ? RECORDER.begin() : null;
+    }
+
+    /**
+     * Starts collecting the metrics of one file on the calling thread.
+     * @param job the job about to be processed.
+     * @return the metrics of the file, passed to finish(), or null if metrics are off.
+     */
+    public static AESMetrics start(AESJob job) {
+        if (!ENABLED) {
+            return null;
+        }
+        AESMetrics m = new AESMetrics(job);
+        current.set(m);
+        return m;
+    }
+
+    /**
+     * Adds the metrics of one file to the totals and commits its event.
+     * @param m the metrics from start(), or null.
+     * @param job the job that was processed.
+     * @param ok false if the job failed.
+     */
+    public static void finish(AESMetrics m, AESJob job, boolean ok) {
+        if (m == null) {
+            return;
+        }
+        current.remove();
+        m.failed = !ok;
+        m.elapsedNanos = System.nanoTime() - m.startNanos;
+        m.bytesIn = new File(job.inputFile).length();
+        m.bytesOut = new File(job.outputFile()).length();
+        TOTALS.files.increment();
+        if (!ok) {
+            TOTALS.failedFiles.increment();
+        }
+        TOTALS.bytesIn.add(m.bytesIn);
+        TOTALS.bytesOut.add(m.bytesOut);
+        TOTALS.elapsedNanos.add(m.elapsedNanos);
+        if (RECORDER != null) {
+            RECORDER.end(m.event, m);
+        }
+    }
+
+    /**
+     * Makes m the file whose chunks are recorded on the calling thread, for code that works
+     * on several files at once on one thread.
+     * @param m the metrics from start(), or null.
+     */
+    static void attach(AESMetrics m) {
+        if (m != null) {
+            current.set(m);
+        }
+    }
+
+    /**
+     * @return System.nanoTime() if metrics are on, or else 0 without reading the clock.
+     */
+    public static long time() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records one chunk of a file: a buffer, a mapped window or a group of hex lines. The
+     * times are from time(), taken before reading, after reading, after the cipher and after
+     * writing; a step that does not apply takes no time. Chunks of a Pipeline pass the time
+     * of each step as if the steps had run one after another, from 0.
+     * @param start when reading started.
+     * @param read when reading ended and the cipher started.
+     * @param cipher when the cipher ended and writing started.
+     * @param end when writing ended.
+     * @param blocks the number of blocks passed to the cipher.
+     */
+    public static void chunk(long start, long read, long cipher, long end, long blocks) {
+        if (!ENABLED) {
+            return;
+        }
+        TOTALS.blocks.add(blocks);
+        TOTALS.readNanos.add(read - start);
+        TOTALS.cipherNanos.add(cipher - read);
+        TOTALS.writeNanos.add(end - cipher);
+        AESMetrics m = current.get();
+        if (m != null) {
+            m.blocks += blocks;
+            m.readNanos += read - start;
+            m.cipherNanos += cipher - read;
+            m.writeNanos += end - cipher;
+        }
+        if (RECORDER != null) {
+            RECORDER.chunk(m, blocks, read - start, cipher - read, end - cipher);
+        }
+    }
+
+    /**
+     * Records hex lines that were skipped because they were not valid plaintext.
+     * @param lines the number of lines.
+     */
+    public static void skippedLines(long lines) {
+        if (!ENABLED) {
+            return;
+        }
+        TOTALS.skippedLines.add(lines);
+        AESMetrics m = current.get();
+        if (m != null) {
+            m.skippedLines += lines;
+        }
+    }
+
+    /**
+     * Records the expansion of one key.
+     * @param start when the expansion started, from time().
+     */
+    public static void keySchedule(long start) {
+        if (!ENABLED) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        TOTALS.keySchedules.increment();
+        TOTALS.keyScheduleNanos.add(nanos);
+        AESMetrics m = current.get();
+        if (m != null) {
+            m.keyScheduleNanos += nanos;
+        }
+    }
+
+    /**
+     * @return the totals since the JVM started.
+     */
+    public static AESMetricsMBean totals() {
+        return TOTALS;
+    }
+
+    /**
+     * @return a line with the totals, followed by a line for the ECB cache if it is on; or
+     *         only the cache line, or null, if metrics are off.
+     */
+    public static String report() {
+        String cache = BlockCache.report(); //Shown with or without the other metrics.
+        if (!ENABLED) {
+            return cache;
+        }
+        String report = String.format("Metrics: %d files (%d failed), %d blocks, %d bytes in, %d bytes out, %d hex lines skipped; "
+                + "key schedule %.1f ms, read %.1f ms, cipher %.1f ms, write %.1f ms, elapsed %.1f ms",
+                TOTALS.getFiles(), TOTALS.getFailedFiles(), TOTALS.getBlocks(), TOTALS.getBytesIn(), TOTALS.getBytesOut(), TOTALS.getSkippedLines(),
+                TOTALS.getKeyScheduleNanos() / 1e6, TOTALS.getReadNanos() / 1e6, TOTALS.getCipherNanos() / 1e6, TOTALS.getWriteNanos() / 1e6, TOTALS.getElapsedNanos() / 1e6);
+        return cache == null ? report : report + System.lineSeparator() + cache;
+    }
+
+    private static Recorder loadRecorder() {
+        if (!Boolean.parseBoolean(System.getProperty("aes.jfr", "true"))) {
+            return null;
+        }
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Recorder) Class.forName("JfrRecorder").getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * The totals, added to by every thread.
+     */
+    private static final class Totals implements AESMetricsMBean {
+
+        final LongAdder files = new LongAdder();
+        final LongAdder failedFiles = new LongAdder();
+        final LongAdder blocks = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder skippedLines = new LongAdder();
+        final LongAdder keySchedules = new LongAdder();
+        final LongAdder keyScheduleNanos = new LongAdder();
+        final LongAdder readNanos = new LongAdder();
+        final LongAdder cipherNanos = new LongAdder();
+        final LongAdder writeNanos = new LongAdder();
+        final LongAdder elapsedNanos = new LongAdder();
+
+        public long getFiles() {
+            return files.sum();
+        }
+
+        public long getFailedFiles() {
+            return failedFiles.sum();
+        }
+
+        public long getBlocks() {
+            return blocks.sum();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        public long getSkippedLines() {
+            return skippedLines.sum();
+        }
+
+        public long getKeySchedules() {
+            return keySchedules.sum();
+        }
+
+        public long getKeyScheduleNanos() {
+            return keyScheduleNanos.sum();
+        }
+
+        public long getReadNanos() {
+            return readNanos.sum();
+        }
+
+        public long getCipherNanos() {
+            return cipherNanos.sum();
+        }
+
+        public long getWriteNanos() {
+            return writeNanos.sum();
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos.sum();
+        }
+    }
+}
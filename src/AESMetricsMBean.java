@@ -0,0 +1,72 @@
+/**
+ * Totals kept by AESMetrics since the JVM started, published over JMX as AES:type=Metrics
+ * when -Daes.metrics=true. Times are in nanoseconds, summed over all files, so they may
+ * add up to more than the elapsed time when files run at the same time.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public interface AESMetricsMBean {
+
+    /**
+     * @return the number of files processed, including failed ones.
+     */
+    long getFiles();
+
+    /**
+     * @return the number of files that failed.
+     */
+    long getFailedFiles();
+
+    /**
+     * @return the number of blocks passed to the cipher.
+     */
+    long getBlocks();
+
+    /**
+     * @return the size of the input files in bytes.
+     */
+    long getBytesIn();
+
+    /**
+     * @return the size of the output files in bytes.
+     */
+    long getBytesOut();
+
+    /**
+     * @return the number of hex lines skipped because they were not valid plaintext.
+     */
+    long getSkippedLines();
+
+    /**
+     * @return the number of keys expanded, for any engine; keys taken from the cache are not counted.
+     */
+    long getKeySchedules();
+
+    /**
+     * @return the time spent expanding keys.
+     */
+    long getKeyScheduleNanos();
+
+    /**
+     * @return the time spent reading the input and, for the hex format, parsing it.
+     */
+    long getReadNanos();
+
+    /**
+     * @return the time spent in the cipher.
+     */
+    long getCipherNanos();
+
+    /**
+     * @return the time spent writing the output, including hex formatting.
+     */
+    long getWriteNanos();
+
+    /**
+     * @return the time from the start to the end of each file, added up. Reading, the cipher
+     *         and writing overlap when a file runs through a Pipeline, so their times can add
+     *         up to more than this; the difference is the time saved by the overlap.
+     */
+    long getElapsedNanos();
+}
@@ -0,0 +1,54 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/**
+ * An output stream that encrypts or decrypts everything written to it, in ECB or CBC mode
+ * with PKCS#7 padding, and writes the result to another stream. See AESWritableChannel,
+ * which does the work. close() must be called to write out the end of the data.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class AESOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final AESWritableChannel channel;
+    private final byte[] one = new byte[1];
+
+    /**
+     * @param out where the result is written.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @param encrypt true to encrypt, false to decrypt.
+     */
+    public AESOutputStream(OutputStream out, AESCipher cipher, int[] iv, boolean encrypt) {
+        this.out = out;
+        this.channel = new AESWritableChannel(Channels.newChannel(out), cipher, iv, encrypt);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        one[0] = (byte) b;
+        write(one, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        channel.write(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Flushes the underlying stream. A partial block stays buffered until more data or close().
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A channel that reads from another channel and returns its data encrypted or decrypted,
+ * in ECB or CBC mode with PKCS#7 padding. Data is read straight into the caller's buffer
+ * and processed there, so apart from buffers smaller than two blocks, nothing is copied;
+ * only a partial block is kept back between reads, or when decrypting the last whole
+ * block, since it may hold the padding.
+ *
+ * The underlying channel should be in blocking mode.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class AESReadableChannel implements ReadableByteChannel {
+
+    private final ReadableByteChannel in;
+    private final AESCipher cipher;
+    private final int[] chain;
+    private final boolean encrypt;
+    private final ByteBuffer carry = ByteBuffer.allocate(16); //Input read but not yet processed.
+    private final ByteBuffer spill = ByteBuffer.allocate(16); //The padded last block, where it did not fit in the caller's buffer.
+    private final ByteBuffer small = ByteBuffer.allocate(32); //Output for callers whose buffer is smaller than 32 bytes.
+    private boolean eof;
+    private boolean open = true;
+
+    /**
+     * @param in where the data is read from.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @param encrypt true to encrypt, false to decrypt.
+     */
+    public AESReadableChannel(ReadableByteChannel in, AESCipher cipher, int[] iv, boolean encrypt) {
+        this.in = in;
+        this.cipher = cipher;
+        this.chain = iv == null ? null : iv.clone();
+        this.encrypt = encrypt;
+        spill.flip();
+        small.flip();
+    }
+
+    /**
+     * Reads at least one byte, unless the end of the data has been reached.
+     * @throws IOException if the input cannot be read, or the encrypted data is not a whole
+     *         number of blocks or has invalid padding.
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (small.hasRemaining() || spill.hasRemaining()) {
+            return transfer(dst);
+        }
+        if (eof) {
+            return -1;
+        }
+        if (dst.remaining() < small.capacity()) {
+            small.clear();
+            int n = readBlocks(small);
+            small.flip();
+            return n < 0 ? -1 : transfer(dst);
+        }
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.BIG_ENDIAN); //The blocks are read as big endian words.
+        try {
+            return readBlocks(dst);
+        } finally {
+            dst.order(order);
+        }
+    }
+
+    /**
+     * Fills dst, which has room for at least 32 bytes, with processed data.
+     */
+    private int readBlocks(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        carry.flip();
+        dst.put(carry);
+        carry.clear();
+        while (true) {
+            if (in.read(dst) < 0) {
+                eof = true;
+            }
+            int end = dst.position();
+            int avail = end - start;
+            int whole = avail & ~15;
+            if (!eof) {
+                if (!encrypt && whole == avail) {
+                    whole -= 16; //Keeps the last block, which may be the padding.
+                }
+                if (whole <= 0) {
+                    continue;
+                }
+                process(dst, start, start + whole);
+                for (int i = start + whole; i < end; i++) {
+                    carry.put(dst.get(i));
+                }
+                dst.position(start + whole);
+                return whole;
+            }
+            if (encrypt) {
+                process(dst, start, start + whole);
+                for (int i = start + whole; i < end; i++) {
+                    carry.put(dst.get(i));
+                }
+                int pad = 16 - carry.position();
+                for (int i = 0; i < pad; i++) {
+                    carry.put((byte) pad);
+                }
+                process(carry, 0, 16);
+                dst.position(start + whole);
+                carry.flip();
+                while (dst.hasRemaining() && carry.hasRemaining()) {
+                    dst.put(carry.get());
+                }
+                spill.clear();
+                spill.put(carry);
+                spill.flip();
+                carry.clear();
+                return dst.position() - start;
+            }
+            if (avail == 0 || avail % 16 != 0) {
+                throw new IOException("Error: Encrypted data length is not a multiple of 16 bytes.");
+            }
+            process(dst, start, end);
+            int n = avail - BinaryFile.padding(dst, end);
+            dst.position(start + n);
+            return n == 0 ? -1 : n;
+        }
+    }
+
+    private void process(ByteBuffer buf, int from, int to) {
+        if (encrypt) {
+            BinaryFile.encryptBlocks(cipher, chain, buf, from, to);
+        } else {
+            BinaryFile.decryptBlocks(cipher, chain, buf, from, to);
+        }
+    }
+
+    /**
+     * Moves buffered output into dst.
+     */
+    private int transfer(ByteBuffer dst) {
+        int n = 0;
+        while (dst.hasRemaining() && small.hasRemaining()) {
+            dst.put(small.get());
+            n++;
+        }
+        while (dst.hasRemaining() && spill.hasRemaining()) {
+            dst.put(spill.get());
+            n++;
+        }
+        return n;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void close() throws IOException {
+        open = false;
+        in.close();
+    }
+}
@@ -0,0 +1,394 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server mode (java AES server [-engine] address): one JVM that encrypts and decrypts
+ * byte arrays sent over a socket, so that a client does not pay for starting a JVM, loading
+ * the tables and expanding its key on every request. Keys are taken from the AESCipher
+ * cache, and the blocks of small ECB, CTR and CBC decryption requests arriving at the same
+ * time on different connections are combined into full batches by a BlockCombiner.
+ *
+ * The address is a port number, which listens on localhost; host:port; or a path, which
+ * listens on a Unix domain socket (Java 16 or later). There is no authentication, so a
+ * TCP port should only be reachable by trusted clients. Each connection is served on its
+ * own thread, a virtual thread where the JVM has them (Java 21 or later).
+ *
+ * A connection carries any number of requests, which may be sent before the responses to
+ * earlier ones are read; responses come back in order. All integers are big-endian.
+ *
+ * Request: byte op ('e' or 'd'), byte mode (0 ECB, 1 CBC, 2 CTR, 3 GCM), short key length
+ * (16 or 32) and the key, short IV length and the IV (none for ECB, 16 bytes for CBC and
+ * CTR, any length for GCM), int AAD length and the AAD (GCM only, otherwise 0), int data
+ * length and the data.
+ *
+ * Response: byte status (0 for success, 1 for an error), int length, and then the result
+ * or a UTF-8 error message. ECB and CBC use PKCS#7 padding and GCM appends a 16-byte tag,
+ * as with -format bin. After an error in the framing itself, such as a length out of
+ * range, the connection is closed.
+ *
+ * The AAD and data of one request may total MAX_LENGTH bytes. Requests on all connections
+ * share a budget of MAX_MEMORY bytes: each reserves its fields, and room for its result,
+ * before they are allocated, and waits while the budget is spent, so any number of
+ * clients cannot run the heap out. A request that waits longer than BUSY_SECONDS for the
+ * budget is answered by closing its connection.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class AESServer {
+
+    /**
+     * Largest length of the AAD and data of one request together. Can be set with -Daes.server.max.
+     */
+    public static final int MAX_LENGTH = Integer.getInteger("aes.server.max", 64 << 20);
+
+    /**
+     * Bytes that the requests in progress may hold at once. Can be set with -Daes.server.memory;
+     * a quarter of the heap by default, and never less than the largest request needs.
+     */
+    public static final long MAX_MEMORY = Math.max(Long.getLong("aes.server.memory", Runtime.getRuntime().maxMemory() / 4), 3L * MAX_LENGTH + (256 << 10));
+
+    private static final int BUSY_SECONDS = 30;
+
+    private static final int STATUS_OK = 0;
+    private static final int STATUS_ERROR = 1;
+
+    private final BlockEngine single;
+    private final BlockEngine batch;
+    private final BlockCombiner combiner = new BlockCombiner();
+    private final Semaphore memory = new Semaphore((int) Math.min(Integer.MAX_VALUE, MAX_MEMORY >> 10)); //In kilobytes.
+
+    private AESServer(BlockEngine single, BlockEngine batch) {
+        this.single = single;
+        this.batch = batch;
+    }
+
+    /**
+     * Runs the server until the JVM is stopped.
+     * @param args "server", then -engine name if given, then the address.
+     * @throws Exception with a message for the user if the arguments are invalid or the
+     *         address cannot be bound.
+     */
+    public static void run(String[] args) throws Exception {
+        BlockEngine engine = null;
+        int i = 1;
+        while (i < args.length - 1 && args[i].startsWith("-")) {
+            if (args[i].equals("-engine")) {
+                engine = args[i + 1].equals("auto") ? null : BlockEngines.forName(args[i + 1]);
+            } else {
+                throw new Exception("Error: Unknown option " + args[i]);
+            }
+            i += 2;
+        }
+        if (i != args.length - 1) {
+            throw new Exception("Usage for the server: java AES server [-engine] port|host:port|socketPath");
+        }
+        AESServer server = engine != null ? new AESServer(engine, engine)
+                : new AESServer(BlockEngines.selected(false), BlockEngines.selected(true));
+        if (AESMetrics.ENABLED && BlockEngines.report() != null) { //As in AES.main, only with the other metrics.
+            System.err.println(BlockEngines.report());
+        }
+        final String address = args[i];
+        ServerSocketChannel listener = bind(address);
+        if (listener.getLocalAddress() instanceof InetSocketAddress) {
+            System.err.println("Listening on " + listener.getLocalAddress());
+        } else {
+            System.err.println("Listening on " + address);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    new File(address).delete();
+                }
+            });
+        }
+        server.serve(listener);
+    }
+
+    /**
+     * Opens a listening channel on a port, host:port or Unix domain socket path.
+     */
+    private static ServerSocketChannel bind(String address) throws Exception {
+        SocketAddress local;
+        ServerSocketChannel listener;
+        int colon = address.lastIndexOf(':');
+        if (address.matches("\\d+")) {
+            local = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+            listener = ServerSocketChannel.open();
+        } else if (colon > 0 && address.substring(colon + 1).matches("\\d+") && address.indexOf('/') < 0) {
+            local = new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+            listener = ServerSocketChannel.open();
+        } else {
+            if (new File(address).exists()) {
+                throw new Exception("Error: " + address + " already exists.");
+            }
+            try { //Java 16 API, called by name so that the server still builds for Java 8.
+                local = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, address);
+                listener = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+                        .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+            } catch (ReflectiveOperationException e) {
+                throw new Exception("Error: Unix domain sockets need Java 16 or later; give a port instead.");
+            } catch (IllegalArgumentException e) {
+                throw new Exception("Error: Unix domain sockets need Java 16 or later; give a port instead.");
+            }
+        }
+        try {
+            listener.bind(local);
+        } catch (IOException e) {
+            listener.close();
+            throw new Exception("Error: Cannot listen on " + address + ": " + e.getMessage());
+        }
+        return listener;
+    }
+
+    /**
+     * Accepts connections until the listener is closed.
+     */
+    private void serve(ServerSocketChannel listener) throws IOException {
+        ExecutorService connections = connectionThreads();
+        try {
+            while (true) {
+                final SocketChannel channel = listener.accept();
+                if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true); //Responses are small and sent one at a time.
+                }
+                connections.execute(new Runnable() {
+                    public void run() {
+                        connection(channel);
+                    }
+                });
+            }
+        } finally {
+            connections.shutdownNow();
+            listener.close();
+        }
+    }
+
+    /**
+     * @return an executor that starts a virtual thread per task where the JVM has them, or
+     *         else a pool of platform threads.
+     */
+    private static ExecutorService connectionThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Serves the requests of one connection until the client closes it.
+     */
+    private void connection(SocketChannel channel) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            int op;
+            while ((op = in.read()) >= 0) {
+                int held = 0; //Kilobytes of the budget taken by this request.
+                try {
+                    int mode = in.readUnsignedByte();
+                    byte[] key = read(in, length(in.readUnsignedShort(), MAX_LENGTH));
+                    byte[] iv = read(in, length(in.readUnsignedShort(), MAX_LENGTH));
+                    int aadLength = length(in.readInt(), MAX_LENGTH);
+                    held += reserve(key.length + iv.length + (long) aadLength);
+                    byte[] aad = read(in, aadLength);
+                    int dataLength = length(in.readInt(), MAX_LENGTH - aadLength);
+                    held += reserve(2L * dataLength + GCMMode.TAG_LENGTH); //The data and its result.
+                    byte[] data = read(in, dataLength);
+                    byte[] result;
+                    int status = STATUS_OK;
+                    try {
+                        if ((op != 'e' && op != 'd') || mode > AES.Mode.GCM.ordinal()) { //XTS is for whole disk images, not requests.
+                            throw new IOException("Error: Unknown operation or mode.");
+                        }
+                        result = process(op == 'e', AES.Mode.values()[mode], key, iv, aad, data);
+                    } catch (IOException e) {
+                        status = STATUS_ERROR;
+                        result = e.getMessage().getBytes("UTF-8");
+                    } catch (IllegalArgumentException e) {
+                        status = STATUS_ERROR;
+                        result = e.getMessage().getBytes("UTF-8");
+                    }
+                    out.writeByte(status);
+                    out.writeInt(result.length);
+                    out.write(result);
+                    if (in.available() == 0) { //Pipelined requests get their responses in one write.
+                        out.flush();
+                    }
+                } finally {
+                    memory.release(held);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            //The client went away or broke the framing; there is nobody to tell.
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //Already closed.
+            }
+        }
+    }
+
+    /**
+     * Takes bytes from the budget, rounded up to kilobytes, waiting up to BUSY_SECONDS.
+     * @return the kilobytes taken, to release once the request is answered.
+     * @throws IOException if the budget stays spent.
+     */
+    private int reserve(long bytes) throws IOException {
+        int kb = (int) ((bytes + 1023) >> 10);
+        try {
+            if (!memory.tryAcquire(kb, BUSY_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("Error: The server is busy.");
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        return kb;
+    }
+
+    /**
+     * @return length, if it is from 0 to max.
+     * @throws IOException if it is not.
+     */
+    private static int length(int length, int max) throws IOException {
+        if (length < 0 || length > max) {
+            throw new IOException("Error: Request field of " + length + " bytes.");
+        }
+        return length;
+    }
+
+    private static byte[] read(DataInputStream in, int length) throws IOException {
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return b;
+    }
+
+    /**
+     * Encrypts or decrypts the data of one request.
+     * @return the result.
+     * @throws IOException if the data, IV or padding is invalid, or a GCM tag does not match.
+     * @throws IllegalArgumentException if the key length is invalid.
+     */
+    byte[] process(boolean encrypt, AES.Mode mode, byte[] key, byte[] iv, byte[] aad, byte[] data) throws IOException {
+        AESCipher cipher = AESCipher.getInstance(key);
+        if (mode == AES.Mode.GCM ? iv.length == 0 : mode == AES.Mode.ECB ? iv.length != 0 : iv.length != 16) {
+            throw new IOException("Error: Invalid Initialization Vector length for " + mode + " Mode.");
+        }
+        if (mode != AES.Mode.GCM && aad.length != 0) {
+            throw new IOException("Error: AAD is only used by GCM.");
+        }
+        if (mode == AES.Mode.GCM) {
+            return gcm(cipher.withEngine(batch), encrypt, iv, aad, data);
+        }
+        if (mode == AES.Mode.CTR) {
+            return ctr(cipher.withEngine(batch), words(iv), data);
+        }
+        byte[] padded = data;
+        if (encrypt) {
+            int pad = 16 - data.length % 16;
+            padded = Arrays.copyOf(data, data.length + pad);
+            Arrays.fill(padded, data.length, padded.length, (byte) pad);
+        } else if (data.length == 0 || data.length % 16 != 0) {
+            throw new IOException("Error: Encrypted data length is not a multiple of 16 bytes.");
+        }
+        int[] w = words(padded);
+        int blocks = w.length / 4;
+        if (mode == AES.Mode.ECB) {
+            if (encrypt) {
+                combiner.encryptBlocks(cipher.withEngine(batch), w, blocks);
+            } else {
+                combiner.decryptBlocks(cipher.withEngine(batch), w, blocks);
+            }
+        } else if (encrypt) { //CBC: each block depends on the one before.
+            AESCipher c = cipher.withEngine(single);
+            int[] chain = words(iv), block = new int[4];
+            for (int b = 0; b < w.length; b += 4) {
+                for (int i = 0; i < 4; i++) {
+                    block[i] = w[b + i] ^ chain[i];
+                }
+                c.encryptBlock(block, chain);
+                System.arraycopy(chain, 0, w, b, 4);
+            }
+        } else {
+            int[] ciphertext = w.clone();
+            int[] chain = words(iv);
+            combiner.decryptBlocks(cipher.withEngine(batch), w, blocks);
+            for (int i = 0; i < w.length; i++) {
+                w[i] ^= i < 4 ? chain[i] : ciphertext[i - 4];
+            }
+        }
+        ByteBuffer result = ByteBuffer.allocate(padded.length);
+        result.asIntBuffer().put(w);
+        if (encrypt) {
+            return result.array();
+        }
+        return Arrays.copyOf(result.array(), padded.length - BinaryFile.padding(result, padded.length));
+    }
+
+    private byte[] ctr(AESCipher cipher, int[] iv, byte[] data) {
+        int blocks = (data.length + 15) / 16;
+        int[] keystream = new int[4 * blocks], counter = new int[4];
+        for (int b = 0; b < blocks; b++) {
+            CTRMode.counterAt(iv, b, counter);
+            System.arraycopy(counter, 0, keystream, 4 * b, 4);
+        }
+        combiner.encryptBlocks(cipher, keystream, blocks);
+        byte[] result = new byte[data.length];
+        for (int j = 0; j < data.length; j++) {
+            result[j] = (byte) (data[j] ^ (keystream[j >> 2] >>> (24 - 8 * (j & 3))));
+        }
+        return result;
+    }
+
+    private static byte[] gcm(AESCipher cipher, boolean encrypt, byte[] iv, byte[] aad, byte[] data) throws IOException {
+        GCMMode gcm = new GCMMode(cipher, iv);
+        gcm.updateAAD(aad, 0, aad.length);
+        if (encrypt) {
+            byte[] result = Arrays.copyOf(data, data.length + GCMMode.TAG_LENGTH);
+            gcm.encrypt(ByteBuffer.wrap(result), 0, data.length);
+            System.arraycopy(gcm.tag(), 0, result, data.length, GCMMode.TAG_LENGTH);
+            return result;
+        }
+        int length = data.length - GCMMode.TAG_LENGTH;
+        if (length < 0) {
+            throw new IOException("Error: Encrypted data is shorter than the tag.");
+        }
+        byte[] result = Arrays.copyOf(data, length);
+        gcm.decrypt(ByteBuffer.wrap(result), 0, length);
+        if (!MessageDigest.isEqual(Arrays.copyOfRange(data, length, data.length), gcm.tag())) {
+            throw new IOException("Error: Authentication tag does not match; the data or its AAD was modified.");
+        }
+        return result;
+    }
+
+    /**
+     * @return b as big-endian words; its length must be a multiple of 4.
+     */
+    private static int[] words(byte[] b) {
+        int[] w = new int[b.length / 4];
+        ByteBuffer.wrap(b).asIntBuffer().get(w);
+        return w;
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A channel that encrypts or decrypts everything written to it, in ECB or CBC mode with
+ * PKCS#7 padding, and writes the result to another channel. Whole blocks are passed on as
+ * soon as they arrive; only a partial block is kept back, or when decrypting the last
+ * whole block, since it may hold the padding. close() pads or unpads the end of the data.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class AESWritableChannel implements WritableByteChannel {
+
+    /**
+     * Size of the buffer the data is copied into and processed in.
+     */
+    public static final int BUFFER_SIZE = 8192;
+
+    private final WritableByteChannel out;
+    private final AESCipher cipher;
+    private final int[] chain;
+    private final boolean encrypt;
+    private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+    private boolean open = true;
+
+    /**
+     * @param out where the result is written.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @param encrypt true to encrypt, false to decrypt.
+     */
+    public AESWritableChannel(WritableByteChannel out, AESCipher cipher, int[] iv, boolean encrypt) {
+        this.out = out;
+        this.cipher = cipher;
+        this.chain = iv == null ? null : iv.clone();
+        this.encrypt = encrypt;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        int n = src.remaining();
+        while (src.hasRemaining()) {
+            int limit = src.limit();
+            src.limit(src.position() + Math.min(buf.remaining(), src.remaining()));
+            buf.put(src);
+            src.limit(limit);
+            int end = buf.position();
+            int whole = end & ~15;
+            if (!encrypt && whole == end) {
+                whole -= 16; //Keeps the last block, which may be the padding.
+            }
+            if (whole > 0) {
+                if (encrypt) {
+                    BinaryFile.encryptBlocks(cipher, chain, buf, 0, whole);
+                } else {
+                    BinaryFile.decryptBlocks(cipher, chain, buf, 0, whole);
+                }
+                buf.position(0);
+                buf.limit(whole);
+                BinaryFile.drain(out, buf);
+                buf.limit(end);
+                buf.compact();
+            }
+        }
+        return n;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Writes the padded last block when encrypting, or checks and removes the padding when
+     * decrypting, then closes the underlying channel.
+     * @throws IOException if the output cannot be written, or the encrypted data is not
+     *         a whole number of blocks or has invalid padding.
+     */
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            int end = buf.position();
+            if (encrypt) {
+                int pad = 16 - end;
+                for (int i = 0; i < pad; i++) {
+                    buf.put((byte) pad);
+                }
+                BinaryFile.encryptBlocks(cipher, chain, buf, 0, 16);
+                end = 16;
+            } else {
+                if (end % 16 != 0) {
+                    throw new IOException("Error: Encrypted data length is not a multiple of 16 bytes.");
+                }
+                BinaryFile.decryptBlocks(cipher, chain, buf, 0, end);
+                end -= BinaryFile.padding(buf, end);
+            }
+            buf.position(0);
+            buf.limit(end);
+            BinaryFile.drain(out, buf);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,498 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Raw byte file format. Files are read and written through a FileChannel with one
+ * large direct buffer and are padded with PKCS#7, so the encrypted file is always
+ * 1 to 16 bytes longer than the plaintext. With a CMAC, a 16-byte tag of the encrypted
+ * blocks follows them. Data may also be compressed before it is encrypted (see
+ * DeflatingChannel), and decompressed as it is decrypted; such a file starts with the
+ * header of DeflatingChannel in the clear, which holds the compression flag and the
+ * original length, so a file that was not compressed is never mistaken for one.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class BinaryFile {
+
+    /**
+     * Size of the I/O buffer in bytes. Can be set with -Daes.buffer.size, rounded down to whole blocks.
+     */
+    public static final int BUFFER_SIZE = Math.max(32, Integer.getInteger("aes.buffer.size", 1 << 20) & ~15);
+
+    private BinaryFile() {
+        //Only static methods.
+    }
+
+    /**
+     * Encrypts a whole file.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @param inputFile name of the plaintext file.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written.
+     */
+    public static void encrypt(AESCipher cipher, int[] iv, String inputFile, String outputFile) throws IOException {
+        encrypt(null, cipher, iv, inputFile, outputFile);
+    }
+
+    /**
+     * Encrypts a whole file. For ECB, pool gives the number of cipher workers.
+     * @param pool the pool whose parallelism is used, or null for one worker.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @param inputFile name of the plaintext file.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written.
+     */
+    public static void encrypt(ForkJoinPool pool, AESCipher cipher, int[] iv, String inputFile, String outputFile) throws IOException {
+        encrypt(pool, cipher, iv, null, inputFile, outputFile);
+    }
+
+    /**
+     * Encrypts a whole file and appends the tag of the encrypted blocks. The tag is computed
+     * by the writer as each buffer is written, so the file is read once.
+     * @param pool the pool whose parallelism is used for ECB, or null for one worker.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @param mac a new CMAC, or null for no tag.
+     * @param inputFile name of the plaintext file.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written.
+     */
+    public static void encrypt(ForkJoinPool pool, AESCipher cipher, int[] iv, CMAC mac, String inputFile, String outputFile) throws IOException {
+        encrypt(pool, cipher, iv, mac, -1, inputFile, outputFile);
+    }
+
+    /**
+     * Encrypts a whole file, compressing it first if a level is given. The compression runs
+     * on the pipeline's reader as each buffer is filled, so it overlaps the cipher and the
+     * writes, and the file is never held whole. The header is written before the encrypted
+     * blocks once the last of them is, when the original length is known.
+     * @param pool the pool whose parallelism is used for ECB, or null for one worker.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @param mac a new CMAC, or null for no tag.
+     * @param level the Deflate level, 0 to 9, or -1 to encrypt the data as it is.
+     * @param inputFile name of the plaintext file.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written.
+     */
+    public static void encrypt(ForkJoinPool pool, AESCipher cipher, int[] iv, CMAC mac, int level, String inputFile, String outputFile) throws IOException {
+        FileChannel in = new FileInputStream(inputFile).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(outputFile).getChannel();
+            try {
+                if (level < 0) {
+                    encrypt(cipher, iv == null ? null : iv.clone(), null, mac, workers(pool), in, in.size(), out);
+                } else {
+                    DeflatingChannel data = new DeflatingChannel(in, level);
+                    out.position(DeflatingChannel.HEADER_SIZE);
+                    encrypt(cipher, iv == null ? null : iv.clone(), null, mac, workers(pool), data, in.size(), out);
+                    ByteBuffer header = data.header();
+                    while (header.hasRemaining()) {
+                        out.write(header, header.position());
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Encrypts a whole file, recording checkpoints as it goes. If cp continues an earlier
+     * run, the output is truncated to the checkpoint and only the rest of the input is read.
+     * @param pool the pool whose parallelism is used for ECB, or null for one worker.
+     * @param cipher the expanded key.
+     * @param cp the checkpoint state, from Checkpoint.open(); it holds the chaining block.
+     * @param inputFile name of the plaintext file.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file or the checkpoint cannot be read or written.
+     */
+    public static void encrypt(ForkJoinPool pool, AESCipher cipher, Checkpoint cp, String inputFile, String outputFile) throws IOException {
+        FileChannel in = new FileInputStream(inputFile).getChannel();
+        try {
+            FileChannel out = new RandomAccessFile(outputFile, "rw").getChannel(); //Not truncated on open; the checkpointed output is kept.
+            try {
+                in.position(cp.inputOffset());
+                out.truncate(cp.outputOffset());
+                out.position(cp.outputOffset());
+                encrypt(cipher, cp.chain(), cp, null, workers(pool), in, in.size() - in.position(), out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        cp.finish();
+    }
+
+    /**
+     * Decrypts a whole file and removes its padding.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @param inputFile name of the encrypted file.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written, or the padding is invalid.
+     */
+    public static void decrypt(AESCipher cipher, int[] iv, String inputFile, String outputFile) throws IOException {
+        decrypt(null, cipher, iv, inputFile, outputFile);
+    }
+
+    /**
+     * Decrypts a whole file and removes its padding. Large files are decrypted by as many
+     * cipher workers as pool has threads; a file read on the calling thread has each buffer
+     * decrypted on pool.
+     * @param pool the pool the blocks are decrypted on, or null to decrypt on the calling thread.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @param inputFile name of the encrypted file.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written, or the padding is invalid.
+     */
+    public static void decrypt(ForkJoinPool pool, AESCipher cipher, int[] iv, String inputFile, String outputFile) throws IOException {
+        decrypt(pool, cipher, iv, null, false, inputFile, outputFile);
+    }
+
+    /**
+     * Decrypts a whole file that ends in a tag, and checks the tag. The reader adds each
+     * buffer to the CMAC before it is decrypted, so the file is read once; the plaintext is
+     * written to [outputFile].part, which is moved to outputFile only if the tag matches and
+     * is deleted otherwise, so no unverified plaintext is left under outputFile.
+     * @param pool the pool the blocks are decrypted on, or null to decrypt on the calling thread.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @param mac a new CMAC with the key the tag was made with.
+     * @param inputFile name of the encrypted file.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written, the tag does not match, or the padding is invalid.
+     */
+    public static void decrypt(ForkJoinPool pool, AESCipher cipher, int[] iv, CMAC mac, String inputFile, String outputFile) throws IOException {
+        decrypt(pool, cipher, iv, mac, false, inputFile, outputFile);
+    }
+
+    /**
+     * Decrypts a whole file, checking its tag if mac is given (as above), and decompressing
+     * it if it was compressed, which the header before the encrypted blocks tells; inflate
+     * makes that header required. The decompression runs on the pipeline's writer as each
+     * buffer is written; the length and CRC-32 recorded in the data are checked after the
+     * last block.
+     * @param pool the pool the blocks are decrypted on, or null to decrypt on the calling thread.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @param mac a new CMAC with the key the tag was made with, or null if the file has no tag.
+     * @param inflate true if the file must have been compressed before it was encrypted.
+     * @param inputFile name of the encrypted file.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written, the tag does not match, the padding
+     *         is invalid, or the file was not compressed when inflate is set or its compressed data is not valid.
+     */
+    public static void decrypt(ForkJoinPool pool, AESCipher cipher, int[] iv, CMAC mac, boolean inflate, String inputFile, String outputFile) throws IOException {
+        File part = new File(mac == null ? outputFile : outputFile + ".part");
+        boolean done = false;
+        FileChannel in = new FileInputStream(inputFile).getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(DeflatingChannel.HEADER_SIZE);
+            while (header.hasRemaining() && in.read(header, header.position()) >= 0) {
+                //Reads the header, if the file has one.
+            }
+            long original = DeflatingChannel.originalLength(header);
+            if (original >= 0) {
+                in.position(DeflatingChannel.HEADER_SIZE);
+            } else if (inflate) {
+                throw new IOException("Error: " + inputFile + " was not encrypted with -compress.");
+            }
+            FileChannel file = new FileOutputStream(part).getChannel();
+            try {
+                WritableByteChannel out = original < 0 ? file : new InflatingChannel(file, original);
+                decrypt(pool, cipher, iv, mac, in, out);
+                out.close(); //Checks the end of the compressed data.
+                done = true;
+            } finally {
+                file.close();
+            }
+        } finally {
+            in.close();
+            if (!done && mac != null) {
+                part.delete();
+            }
+        }
+        if (mac != null) {
+            Files.move(part.toPath(), new File(outputFile).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static int workers(ForkJoinPool pool) {
+        return pool == null ? 1 : pool.getParallelism();
+    }
+
+    /**
+     * @param chain the chaining block for CBC, updated as blocks are encrypted, or null for ECB.
+     * @param cp the checkpoints to record after each full buffer, or null.
+     * @param mac the CMAC of the encrypted blocks, appended after them, or null.
+     * @param workers the number of cipher workers for ECB; CBC has one.
+     * @param in the data to encrypt, from the checkpoint's input offset if there is one.
+     * @param length the bytes of the input file left, to size the pipeline.
+     */
+    private static void encrypt(final AESCipher cipher, final int[] chain, final Checkpoint cp, final CMAC mac, int workers, final ReadableByteChannel in, long length, final FileChannel out) throws IOException {
+        if (chain != null) {
+            workers = 1; //Each block depends on the one before.
+        }
+        ByteBuffer[] bufs = new ByteBuffer[Pipeline.slots(workers, length, BUFFER_SIZE)];
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        Pipeline.run(bufs, workers, new Pipeline.Stages<ByteBuffer>() {
+            private long position = cp == null ? 0 : cp.inputOffset(); //Bytes of the input read.
+
+            public boolean read(Pipeline.Slot<ByteBuffer> slot) throws IOException {
+                ByteBuffer buf = slot.data;
+                buf.clear();
+                buf.limit(BUFFER_SIZE - 16); //Leaves room for the padding block.
+                boolean eof = fill(in, buf);
+                int end = buf.position();
+                position += end;
+                if (eof) {
+                    int pad = 16 - end % 16;
+                    buf.limit(end + pad);
+                    for (int i = 0; i < pad; i++) {
+                        buf.put((byte) pad);
+                    }
+                    end += pad;
+                }
+                slot.length = end;
+                slot.blocks = end / 16;
+                slot.position = position;
+                return eof;
+            }
+
+            public void crypt(Pipeline.Slot<ByteBuffer> slot) {
+                encryptBlocks(cipher, chain, slot.data, 0, slot.length);
+                if (chain != null) {
+                    System.arraycopy(chain, 0, slot.chain, 0, 4); //The chaining block after this slot, for its checkpoint.
+                }
+            }
+
+            public void write(Pipeline.Slot<ByteBuffer> slot) throws IOException {
+                ByteBuffer buf = slot.data;
+                buf.position(0);
+                buf.limit(slot.length);
+                drain(out, buf);
+                if (mac != null) { //On the writer, while the workers encrypt the next buffers.
+                    mac.update(buf, 0, slot.length);
+                }
+                if (cp != null && !slot.last) { //Full buffers end on a block boundary of the input.
+                    cp.reached(out, slot.position, out.position(), chain == null ? null : slot.chain);
+                }
+            }
+        });
+        if (mac != null) {
+            drain(out, ByteBuffer.wrap(mac.tag()));
+        }
+    }
+
+    /**
+     * @param mac the CMAC to check against the tag at the end of in, or null if in has no tag.
+     * @throws IOException if the tag does not match; out then holds unverified plaintext.
+     */
+    static void decrypt(final ForkJoinPool pool, final AESCipher cipher, int[] iv, final CMAC mac, final FileChannel in, final WritableByteChannel out) throws IOException {
+        final long size = mac == null ? in.size() : in.size() - CMAC.TAG_LENGTH; //Where the encrypted blocks end.
+        if (size < 0) {
+            throw new IOException("Error: Encrypted file is shorter than the tag.");
+        }
+        final ByteBuffer[] bufs = new ByteBuffer[Pipeline.slots(workers(pool), size - in.position(), BUFFER_SIZE)];
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        final int[] prev = iv == null ? null : iv.clone(); //The last ciphertext block read.
+        Pipeline.run(bufs, workers(pool), new Pipeline.Stages<ByteBuffer>() {
+            public boolean read(Pipeline.Slot<ByteBuffer> slot) throws IOException {
+                ByteBuffer buf = slot.data;
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), size - in.position()));
+                boolean eof = fill(in, buf) || in.position() >= size; //So that the last slot holds the padding.
+                int end = buf.position();
+                if (end % 16 != 0) {
+                    throw new IOException("Error: Encrypted file length is not a multiple of 16 bytes.");
+                }
+                if (mac != null) { //On the reader, while the workers decrypt the buffers before.
+                    mac.update(buf, 0, end);
+                    if (eof) { //Checked before the last slot, and its padding, reach the writer.
+                        ByteBuffer tag = ByteBuffer.allocate(CMAC.TAG_LENGTH);
+                        while (tag.hasRemaining() && in.read(tag, size + tag.position()) >= 0) {
+                            //Reads the tag after the blocks.
+                        }
+                        if (!MessageDigest.isEqual(tag.array(), mac.tag())) {
+                            throw new IOException("Error: CMAC tag does not match; the file was modified or the key is wrong.");
+                        }
+                    }
+                }
+                if (prev != null) { //Each slot starts from the ciphertext block before it, so slots can be decrypted at once.
+                    System.arraycopy(prev, 0, slot.chain, 0, 4);
+                    if (end > 0) {
+                        for (int i = 0; i < 4; i++) {
+                            prev[i] = buf.getInt(end - 16 + 4 * i);
+                        }
+                    }
+                }
+                slot.length = end;
+                slot.blocks = end / 16;
+                return eof;
+            }
+
+            public void crypt(Pipeline.Slot<ByteBuffer> slot) {
+                int[] chain = prev == null ? null : slot.chain;
+                if (pool == null || bufs.length > 1) {
+                    decryptBlocks(cipher, chain, slot.data, 0, slot.length);
+                } else {
+                    CBCMode.decryptParallel(pool, cipher, chain, slot.data, slot.data, 0, slot.length);
+                }
+            }
+
+            public void write(Pipeline.Slot<ByteBuffer> slot) throws IOException {
+                ByteBuffer buf = slot.data;
+                int end = slot.length;
+                if (slot.last) {
+                    end -= padding(buf, end);
+                }
+                buf.position(0);
+                buf.limit(end);
+                drain(out, buf);
+            }
+        });
+    }
+
+    /**
+     * Encrypts the blocks of buf between from and to in place.
+     * @param cipher the expanded key.
+     * @param chain the previous ciphertext block for CBC, updated as blocks are encrypted, or null for ECB.
+     * @param buf the buffer holding the blocks.
+     * @param from offset of the first block.
+     * @param to offset after the last block.
+     */
+    static void encryptBlocks(AESCipher cipher, int[] chain, ByteBuffer buf, int from, int to) {
+        encryptBlocks(cipher, chain, buf, buf, from, to);
+    }
+
+    /**
+     * Encrypts the blocks of src between from and to into the same offsets of dst.
+     * src and dst may be the same buffer.
+     */
+    static void encryptBlocks(AESCipher cipher, int[] chain, ByteBuffer src, ByteBuffer dst, int from, int to) {
+        if (chain == null) {
+            cipher.encryptBlocks(src, from, dst, from, (to - from) / 16);
+            return;
+        }
+        int[] block = new int[4]; //CBC: each block depends on the one before.
+        for (int p = from; p < to; p += 16) {
+            for (int i = 0; i < 4; i++) {
+                block[i] = src.getInt(p + 4 * i);
+            }
+            for (int i = 0; i < 4; i++) {
+                block[i] ^= chain[i];
+            }
+            cipher.encryptBlock(block, block);
+            System.arraycopy(block, 0, chain, 0, 4);
+            for (int i = 0; i < 4; i++) {
+                dst.putInt(p + 4 * i, block[i]);
+            }
+        }
+    }
+
+    /**
+     * Decrypts the blocks of buf between from and to in place.
+     * @param cipher the expanded key.
+     * @param chain the previous ciphertext block for CBC, updated as blocks are decrypted, or null for ECB.
+     * @param buf the buffer holding the blocks.
+     * @param from offset of the first block.
+     * @param to offset after the last block.
+     */
+    static void decryptBlocks(AESCipher cipher, int[] chain, ByteBuffer buf, int from, int to) {
+        decryptBlocks(cipher, chain, buf, buf, from, to);
+    }
+
+    /**
+     * Decrypts the blocks of src between from and to into the same offsets of dst.
+     * src and dst may be the same buffer.
+     */
+    static void decryptBlocks(AESCipher cipher, int[] chain, ByteBuffer src, ByteBuffer dst, int from, int to) {
+        if (chain == null) {
+            cipher.decryptBlocks(src, from, dst, from, (to - from) / 16);
+            return;
+        }
+        int[] blocks = new int[4 * AESCipher.BATCH];
+        int[] next = new int[4];
+        for (int p = from; p < to; p += 16 * AESCipher.BATCH) {
+            int n = Math.min(AESCipher.BATCH, (to - p) / 16);
+            for (int i = 0; i < 4 * n; i++) {
+                blocks[i] = src.getInt(p + 4 * i);
+            }
+            System.arraycopy(blocks, 4 * (n - 1), next, 0, 4);
+            cipher.decryptBlocks(blocks, blocks, n);
+            for (int i = 0; i < 4; i++) {
+                blocks[i] ^= chain[i];
+            }
+            for (int i = 4; i < 4 * n; i++) {
+                blocks[i] ^= src.getInt(p + 4 * i - 16); //The previous ciphertext block; dst is not yet written.
+            }
+            System.arraycopy(next, 0, chain, 0, 4);
+            for (int i = 0; i < 4 * n; i++) {
+                dst.putInt(p + 4 * i, blocks[i]);
+            }
+        }
+    }
+
+    /**
+     * Checks the PKCS#7 padding of the decrypted block that ends at offset end of buf.
+     * @return the number of padding bytes, 1 to 16.
+     * @throws IOException if there is no block or the padding is invalid.
+     */
+    static int padding(ByteBuffer buf, int end) throws IOException {
+        int pad = end < 16 ? 0 : buf.get(end - 1) & 0xff;
+        if (pad < 1 || pad > 16) {
+            throw new IOException("Error: Invalid padding in encrypted file.");
+        }
+        for (int i = end - pad; i < end; i++) {
+            if ((buf.get(i) & 0xff) != pad) {
+                throw new IOException("Error: Invalid padding in encrypted file.");
+            }
+        }
+        return pad;
+    }
+
+    /**
+     * Reads until buf has no space left or the channel is exhausted.
+     * @return true if the end of the channel was reached.
+     */
+    static boolean fill(ReadableByteChannel in, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (in.read(buf) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes everything between the position and limit of buf.
+     */
+    static void drain(WritableByteChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+}
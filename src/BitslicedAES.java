@@ -0,0 +1,537 @@
+/**
+ * Bitsliced, constant-time AES engine. Four blocks are processed at once, spread over
+ * eight 64-bit words so that word i holds bit i of every byte of the four blocks. The
+ * S-box is computed as a boolean circuit of 113 gates (Boyar and Peralta) on those words,
+ * and ShiftRows and MixColumns become shifts and rotations, so no memory access and no
+ * branch depends on the key or the data. The layout is the one used by BearSSL's aes_ct64.
+ *
+ * Blocks are passed in and out as four column words per block, the same format as
+ * TTableAES; fewer than four blocks cost as much as four. The eight words of the state
+ * are taken from a ScratchPool, so no call allocates.
+ *
+ * When the jdk.incubator.vector module is present (java --add-modules jdk.incubator.vector)
+ * and the CPU has vectors of at least 256 bits, LANES holds VectorAES, which applies the
+ * same circuit to one group of four blocks in each 64-bit vector lane; the vector engine
+ * in BlockEngines runs on it. It can be turned off with -Daes.vector=false.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class BitslicedAES {
+
+    /**
+     * Number of blocks held in one set of eight words.
+     */
+    static final int GROUP = 4;
+
+    /**
+     * The vector engine, or null if it is not available.
+     */
+    static final Lanes LANES = loadLanes();
+
+    /**
+     * Number of blocks worth passing at once: GROUP on the scalar path, and one group per
+     * vector lane when LANES is available.
+     */
+    public static final int BATCH = LANES != null ? LANES.batch() : GROUP;
+
+    private static final ScratchPool<long[]> states = new ScratchPool<long[]>() {
+        @Override
+        protected long[] create() {
+            return new long[8];
+        }
+    };
+
+    /**
+     * An engine that runs the circuit on many groups of blocks at once.
+     */
+    interface Lanes {
+
+        /**
+         * @return the number of blocks processed together, a multiple of GROUP.
+         */
+        int batch();
+
+        void encryptBlocks(long[] sk, int[] in, int[] out, int blocks);
+
+        void decryptBlocks(long[] sk, int[] in, int[] out, int blocks);
+    }
+
+    private BitslicedAES() {
+        //Only static methods.
+    }
+
+    /**
+     * Converts round keys to bitsliced form, eight words per round.
+     * @param rk round keys from TTableAES.expandEncryptionKey(), four words per round.
+     * @return the bitsliced round keys, used for both encryption and decryption.
+     */
+    public static long[] expandKey(int[] rk) {
+        long[] sk = new long[rk.length * 2];
+        long[] q = new long[8];
+        for (int i = 0; i < rk.length; i += 4) {
+            interleaveIn(q, 0, rk, i);
+            q[1] = q[2] = q[3] = q[0]; //The same round key for each of the four blocks.
+            q[5] = q[6] = q[7] = q[4];
+            ortho(q);
+            System.arraycopy(q, 0, sk, i * 2, 8);
+        }
+        return sk;
+    }
+
+    /**
+     * Encrypts any number of blocks, four at a time. in and out may be the same array.
+     * @param sk bitsliced round keys from expandKey().
+     * @param in the input blocks, four words each.
+     * @param out receives the output blocks.
+     * @param blocks the number of blocks.
+     */
+    public static void encryptBlocks(long[] sk, int[] in, int[] out, int blocks) {
+        long[] q = states.take();
+        try {
+            for (int b = 0; b < blocks; b += GROUP) {
+                encryptGroup(sk, q, in, out, 4 * b, Math.min(GROUP, blocks - b));
+            }
+        } finally {
+            states.give(q);
+        }
+    }
+
+    /**
+     * Decrypts any number of blocks, four at a time. in and out may be the same array.
+     * @param sk bitsliced round keys from expandKey().
+     * @param in the input blocks, four words each.
+     * @param out receives the output blocks.
+     * @param blocks the number of blocks.
+     */
+    public static void decryptBlocks(long[] sk, int[] in, int[] out, int blocks) {
+        long[] q = states.take();
+        try {
+            for (int b = 0; b < blocks; b += GROUP) {
+                decryptGroup(sk, q, in, out, 4 * b, Math.min(GROUP, blocks - b));
+            }
+        } finally {
+            states.give(q);
+        }
+    }
+
+    /**
+     * Encrypts up to four blocks starting at word off, using q for the state.
+     */
+    private static void encryptGroup(long[] sk, long[] q, int[] in, int[] out, int off, int blocks) {
+        load(q, in, off, blocks);
+        int rounds = sk.length / 8 - 1;
+        addRoundKey(q, sk, 0);
+        for (int r = 1; r < rounds; r++) {
+            sbox(q);
+            shiftRows(q);
+            mixColumns(q);
+            addRoundKey(q, sk, r);
+        }
+        sbox(q);
+        shiftRows(q);
+        addRoundKey(q, sk, rounds);
+        store(q, out, off, blocks);
+    }
+
+    /**
+     * Decrypts up to four blocks starting at word off, using q for the state.
+     */
+    private static void decryptGroup(long[] sk, long[] q, int[] in, int[] out, int off, int blocks) {
+        load(q, in, off, blocks);
+        int rounds = sk.length / 8 - 1;
+        addRoundKey(q, sk, rounds);
+        for (int r = rounds - 1; r > 0; r--) {
+            invShiftRows(q);
+            invSbox(q);
+            addRoundKey(q, sk, r);
+            invMixColumns(q);
+        }
+        invShiftRows(q);
+        invSbox(q);
+        addRoundKey(q, sk, 0);
+        store(q, out, off, blocks);
+    }
+
+    /**
+     * Loads VectorAES if the vector module is present and the vectors hold at least four
+     * groups. A JVM without the module, or older than the class, gets a LinkageError.
+     */
+    private static Lanes loadLanes() {
+        if (!Boolean.parseBoolean(System.getProperty("aes.vector", "true"))) {
+            return null;
+        }
+        try {
+            Class.forName("jdk.incubator.vector.LongVector");
+            Lanes lanes = (Lanes) Class.forName("VectorAES").getDeclaredConstructor().newInstance();
+            return lanes.batch() >= 4 * GROUP ? lanes : null;
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Moves up to four blocks starting at word off into bitsliced form; missing blocks are zero.
+     */
+    static void load(long[] q, int[] in, int off, int blocks) {
+        for (int b = 0; b < GROUP; b++) {
+            if (b < blocks) {
+                interleaveIn(q, b, in, off + 4 * b);
+            } else {
+                q[b] = q[b + 4] = 0;
+            }
+        }
+        ortho(q);
+    }
+
+    /**
+     * Inverse of load().
+     */
+    static void store(long[] q, int[] out, int off, int blocks) {
+        ortho(q);
+        for (int b = 0; b < blocks; b++) {
+            interleaveOut(out, off + 4 * b, q[b], q[b + 4]);
+        }
+    }
+
+    /**
+     * Spreads the four column words of one block, at w[off], over q[b] and q[b + 4], as
+     * little endian words.
+     */
+    private static void interleaveIn(long[] q, int b, int[] w, int off) {
+        long x0 = Integer.reverseBytes(w[off]) & 0xffffffffL;
+        long x1 = Integer.reverseBytes(w[off + 1]) & 0xffffffffL;
+        long x2 = Integer.reverseBytes(w[off + 2]) & 0xffffffffL;
+        long x3 = Integer.reverseBytes(w[off + 3]) & 0xffffffffL;
+        x0 |= x0 << 16;
+        x1 |= x1 << 16;
+        x2 |= x2 << 16;
+        x3 |= x3 << 16;
+        x0 &= 0x0000FFFF0000FFFFL;
+        x1 &= 0x0000FFFF0000FFFFL;
+        x2 &= 0x0000FFFF0000FFFFL;
+        x3 &= 0x0000FFFF0000FFFFL;
+        x0 |= x0 << 8;
+        x1 |= x1 << 8;
+        x2 |= x2 << 8;
+        x3 |= x3 << 8;
+        x0 &= 0x00FF00FF00FF00FFL;
+        x1 &= 0x00FF00FF00FF00FFL;
+        x2 &= 0x00FF00FF00FF00FFL;
+        x3 &= 0x00FF00FF00FF00FFL;
+        q[b] = x0 | (x2 << 8);
+        q[b + 4] = x1 | (x3 << 8);
+    }
+
+    /**
+     * Inverse of interleaveIn(): writes the four column words of a block to w[off].
+     */
+    private static void interleaveOut(int[] w, int off, long q0, long q1) {
+        long x0 = q0 & 0x00FF00FF00FF00FFL;
+        long x1 = q1 & 0x00FF00FF00FF00FFL;
+        long x2 = (q0 >>> 8) & 0x00FF00FF00FF00FFL;
+        long x3 = (q1 >>> 8) & 0x00FF00FF00FF00FFL;
+        x0 |= x0 >>> 8;
+        x1 |= x1 >>> 8;
+        x2 |= x2 >>> 8;
+        x3 |= x3 >>> 8;
+        x0 &= 0x0000FFFF0000FFFFL;
+        x1 &= 0x0000FFFF0000FFFFL;
+        x2 &= 0x0000FFFF0000FFFFL;
+        x3 &= 0x0000FFFF0000FFFFL;
+        w[off] = Integer.reverseBytes((int) x0 | (int) (x0 >>> 16));
+        w[off + 1] = Integer.reverseBytes((int) x1 | (int) (x1 >>> 16));
+        w[off + 2] = Integer.reverseBytes((int) x2 | (int) (x2 >>> 16));
+        w[off + 3] = Integer.reverseBytes((int) x3 | (int) (x3 >>> 16));
+    }
+
+    /**
+     * Transposes the eight words as 8x8 bit matrices, moving between byte order and bit
+     * plane order. It is its own inverse.
+     */
+    private static void ortho(long[] q) {
+        swap(q, 0, 1, 0x5555555555555555L, 1);
+        swap(q, 2, 3, 0x5555555555555555L, 1);
+        swap(q, 4, 5, 0x5555555555555555L, 1);
+        swap(q, 6, 7, 0x5555555555555555L, 1);
+
+        swap(q, 0, 2, 0x3333333333333333L, 2);
+        swap(q, 1, 3, 0x3333333333333333L, 2);
+        swap(q, 4, 6, 0x3333333333333333L, 2);
+        swap(q, 5, 7, 0x3333333333333333L, 2);
+
+        swap(q, 0, 4, 0x0F0F0F0F0F0F0F0FL, 4);
+        swap(q, 1, 5, 0x0F0F0F0F0F0F0F0FL, 4);
+        swap(q, 2, 6, 0x0F0F0F0F0F0F0F0FL, 4);
+        swap(q, 3, 7, 0x0F0F0F0F0F0F0F0FL, 4);
+    }
+
+    private static void swap(long[] q, int x, int y, long cl, int s) {
+        long a = q[x];
+        long b = q[y];
+        long ch = ~cl;
+        q[x] = (a & cl) | ((b & cl) << s);
+        q[y] = ((a & ch) >>> s) | (b & ch);
+    }
+
+    private static void addRoundKey(long[] q, long[] sk, int round) {
+        for (int i = 0; i < 8; i++) {
+            q[i] ^= sk[8 * round + i];
+        }
+    }
+
+    /**
+     * The S-box as a circuit of XOR, AND and NOT gates, applied to every byte at once.
+     */
+    private static void sbox(long[] q) {
+        long x0 = q[7];
+        long x1 = q[6];
+        long x2 = q[5];
+        long x3 = q[4];
+        long x4 = q[3];
+        long x5 = q[2];
+        long x6 = q[1];
+        long x7 = q[0];
+
+        //Top linear transformation.
+        long y14 = x3 ^ x5;
+        long y13 = x0 ^ x6;
+        long y9 = x0 ^ x3;
+        long y8 = x0 ^ x5;
+        long t0 = x1 ^ x2;
+        long y1 = t0 ^ x7;
+        long y4 = y1 ^ x3;
+        long y12 = y13 ^ y14;
+        long y2 = y1 ^ x0;
+        long y5 = y1 ^ x6;
+        long y3 = y5 ^ y8;
+        long t1 = x4 ^ y12;
+        long y15 = t1 ^ x5;
+        long y20 = t1 ^ x1;
+        long y6 = y15 ^ x7;
+        long y10 = y15 ^ t0;
+        long y11 = y20 ^ y9;
+        long y7 = x7 ^ y11;
+        long y17 = y10 ^ y11;
+        long y19 = y10 ^ y8;
+        long y16 = t0 ^ y11;
+        long y21 = y13 ^ y16;
+        long y18 = x0 ^ y16;
+
+        //Non-linear section.
+        long t2 = y12 & y15;
+        long t3 = y3 & y6;
+        long t4 = t3 ^ t2;
+        long t5 = y4 & x7;
+        long t6 = t5 ^ t2;
+        long t7 = y13 & y16;
+        long t8 = y5 & y1;
+        long t9 = t8 ^ t7;
+        long t10 = y2 & y7;
+        long t11 = t10 ^ t7;
+        long t12 = y9 & y11;
+        long t13 = y14 & y17;
+        long t14 = t13 ^ t12;
+        long t15 = y8 & y10;
+        long t16 = t15 ^ t12;
+        long t17 = t4 ^ t14;
+        long t18 = t6 ^ t16;
+        long t19 = t9 ^ t14;
+        long t20 = t11 ^ t16;
+        long t21 = t17 ^ y20;
+        long t22 = t18 ^ y19;
+        long t23 = t19 ^ y21;
+        long t24 = t20 ^ y18;
+
+        long t25 = t21 ^ t22;
+        long t26 = t21 & t23;
+        long t27 = t24 ^ t26;
+        long t28 = t25 & t27;
+        long t29 = t28 ^ t22;
+        long t30 = t23 ^ t24;
+        long t31 = t22 ^ t26;
+        long t32 = t31 & t30;
+        long t33 = t32 ^ t24;
+        long t34 = t23 ^ t33;
+        long t35 = t27 ^ t33;
+        long t36 = t24 & t35;
+        long t37 = t36 ^ t34;
+        long t38 = t27 ^ t36;
+        long t39 = t29 & t38;
+        long t40 = t25 ^ t39;
+
+        long t41 = t40 ^ t37;
+        long t42 = t29 ^ t33;
+        long t43 = t29 ^ t40;
+        long t44 = t33 ^ t37;
+        long t45 = t42 ^ t41;
+        long z0 = t44 & y15;
+        long z1 = t37 & y6;
+        long z2 = t33 & x7;
+        long z3 = t43 & y16;
+        long z4 = t40 & y1;
+        long z5 = t29 & y7;
+        long z6 = t42 & y11;
+        long z7 = t45 & y17;
+        long z8 = t41 & y10;
+        long z9 = t44 & y12;
+        long z10 = t37 & y3;
+        long z11 = t33 & y4;
+        long z12 = t43 & y13;
+        long z13 = t40 & y5;
+        long z14 = t29 & y2;
+        long z15 = t42 & y9;
+        long z16 = t45 & y14;
+        long z17 = t41 & y8;
+
+        //Bottom linear transformation.
+        long t46 = z15 ^ z16;
+        long t47 = z10 ^ z11;
+        long t48 = z5 ^ z13;
+        long t49 = z9 ^ z10;
+        long t50 = z2 ^ z12;
+        long t51 = z2 ^ z5;
+        long t52 = z7 ^ z8;
+        long t53 = z0 ^ z3;
+        long t54 = z6 ^ z7;
+        long t55 = z16 ^ z17;
+        long t56 = z12 ^ t48;
+        long t57 = t50 ^ t53;
+        long t58 = z4 ^ t46;
+        long t59 = z3 ^ t54;
+        long t60 = t46 ^ t57;
+        long t61 = z14 ^ t57;
+        long t62 = t52 ^ t58;
+        long t63 = t49 ^ t58;
+        long t64 = z4 ^ t59;
+        long t65 = t61 ^ t62;
+        long t66 = z1 ^ t63;
+        long s0 = t59 ^ t63;
+        long s6 = t56 ^ ~t62;
+        long s7 = t48 ^ ~t60;
+        long t67 = t64 ^ t65;
+        long s3 = t53 ^ t66;
+        long s4 = t51 ^ t66;
+        long s5 = t47 ^ t65;
+        long s1 = t64 ^ ~s3;
+        long s2 = t55 ^ ~t67;
+
+        q[7] = s0;
+        q[6] = s1;
+        q[5] = s2;
+        q[4] = s3;
+        q[3] = s4;
+        q[2] = s5;
+        q[1] = s6;
+        q[0] = s7;
+    }
+
+    /**
+     * The inverse S-box: the inverse affine transformation, the forward S-box, and the
+     * inverse affine transformation again, which cancels the forward one.
+     */
+    private static void invSbox(long[] q) {
+        invAffine(q);
+        sbox(q);
+        invAffine(q);
+    }
+
+    private static void invAffine(long[] q) {
+        long q0 = ~q[0];
+        long q1 = ~q[1];
+        long q2 = q[2];
+        long q3 = q[3];
+        long q4 = q[4];
+        long q5 = ~q[5];
+        long q6 = ~q[6];
+        long q7 = q[7];
+        q[7] = q1 ^ q4 ^ q6;
+        q[6] = q0 ^ q3 ^ q5;
+        q[5] = q7 ^ q2 ^ q4;
+        q[4] = q6 ^ q1 ^ q3;
+        q[3] = q5 ^ q0 ^ q2;
+        q[2] = q4 ^ q7 ^ q1;
+        q[1] = q3 ^ q6 ^ q0;
+        q[0] = q2 ^ q5 ^ q7;
+    }
+
+    private static void shiftRows(long[] q) {
+        for (int i = 0; i < 8; i++) {
+            long x = q[i];
+            q[i] = (x & 0x000000000000FFFFL)
+                | ((x & 0x00000000FFF00000L) >>> 4)
+                | ((x & 0x00000000000F0000L) << 12)
+                | ((x & 0x0000FF0000000000L) >>> 8)
+                | ((x & 0x000000FF00000000L) << 8)
+                | ((x & 0xF000000000000000L) >>> 12)
+                | ((x & 0x0FFF000000000000L) << 4);
+        }
+    }
+
+    private static void invShiftRows(long[] q) {
+        for (int i = 0; i < 8; i++) {
+            long x = q[i];
+            q[i] = (x & 0x000000000000FFFFL)
+                | ((x & 0x000000000FFF0000L) << 4)
+                | ((x & 0x00000000F0000000L) >>> 12)
+                | ((x & 0x000000FF00000000L) << 8)
+                | ((x & 0x0000FF0000000000L) >>> 8)
+                | ((x & 0x000F000000000000L) << 12)
+                | ((x & 0xFFF0000000000000L) >>> 4);
+        }
+    }
+
+    private static long rotr32(long x) {
+        return (x << 32) | (x >>> 32);
+    }
+
+    /**
+     * Each word holds the rows of a column 16 bits apart, so rotating by 16 bits gives
+     * the next row and rotating by 32 bits the row after that.
+     */
+    private static void mixColumns(long[] q) {
+        long q0 = q[0], q1 = q[1], q2 = q[2], q3 = q[3];
+        long q4 = q[4], q5 = q[5], q6 = q[6], q7 = q[7];
+        long r0 = (q0 >>> 16) | (q0 << 48);
+        long r1 = (q1 >>> 16) | (q1 << 48);
+        long r2 = (q2 >>> 16) | (q2 << 48);
+        long r3 = (q3 >>> 16) | (q3 << 48);
+        long r4 = (q4 >>> 16) | (q4 << 48);
+        long r5 = (q5 >>> 16) | (q5 << 48);
+        long r6 = (q6 >>> 16) | (q6 << 48);
+        long r7 = (q7 >>> 16) | (q7 << 48);
+
+        q[0] = q7 ^ r7 ^ r0 ^ rotr32(q0 ^ r0);
+        q[1] = q0 ^ r0 ^ q7 ^ r7 ^ r1 ^ rotr32(q1 ^ r1);
+        q[2] = q1 ^ r1 ^ r2 ^ rotr32(q2 ^ r2);
+        q[3] = q2 ^ r2 ^ q7 ^ r7 ^ r3 ^ rotr32(q3 ^ r3);
+        q[4] = q3 ^ r3 ^ q7 ^ r7 ^ r4 ^ rotr32(q4 ^ r4);
+        q[5] = q4 ^ r4 ^ r5 ^ rotr32(q5 ^ r5);
+        q[6] = q5 ^ r5 ^ r6 ^ rotr32(q6 ^ r6);
+        q[7] = q6 ^ r6 ^ r7 ^ rotr32(q7 ^ r7);
+    }
+
+    private static void invMixColumns(long[] q) {
+        long q0 = q[0], q1 = q[1], q2 = q[2], q3 = q[3];
+        long q4 = q[4], q5 = q[5], q6 = q[6], q7 = q[7];
+        long r0 = (q0 >>> 16) | (q0 << 48);
+        long r1 = (q1 >>> 16) | (q1 << 48);
+        long r2 = (q2 >>> 16) | (q2 << 48);
+        long r3 = (q3 >>> 16) | (q3 << 48);
+        long r4 = (q4 >>> 16) | (q4 << 48);
+        long r5 = (q5 >>> 16) | (q5 << 48);
+        long r6 = (q6 >>> 16) | (q6 << 48);
+        long r7 = (q7 >>> 16) | (q7 << 48);
+
+        q[0] = q5 ^ q6 ^ q7 ^ r0 ^ r5 ^ r7 ^ rotr32(q0 ^ q5 ^ q6 ^ r0 ^ r5);
+        q[1] = q0 ^ q5 ^ r0 ^ r1 ^ r5 ^ r6 ^ r7 ^ rotr32(q1 ^ q5 ^ q7 ^ r1 ^ r5 ^ r6);
+        q[2] = q0 ^ q1 ^ q6 ^ r1 ^ r2 ^ r6 ^ r7 ^ rotr32(q0 ^ q2 ^ q6 ^ r2 ^ r6 ^ r7);
+        q[3] = q0 ^ q1 ^ q2 ^ q5 ^ q6 ^ r0 ^ r2 ^ r3 ^ r5 ^ rotr32(q0 ^ q1 ^ q3 ^ q5 ^ q6 ^ q7 ^ r0 ^ r3 ^ r5 ^ r7);
+        q[4] = q1 ^ q2 ^ q3 ^ q5 ^ r1 ^ r3 ^ r4 ^ r5 ^ r6 ^ r7 ^ rotr32(q1 ^ q2 ^ q4 ^ q5 ^ q7 ^ r1 ^ r4 ^ r5 ^ r6);
+        q[5] = q2 ^ q3 ^ q4 ^ q6 ^ r2 ^ r4 ^ r5 ^ r6 ^ r7 ^ rotr32(q2 ^ q3 ^ q5 ^ q6 ^ r2 ^ r5 ^ r6 ^ r7);
+        q[6] = q3 ^ q4 ^ q5 ^ q7 ^ r3 ^ r5 ^ r6 ^ r7 ^ rotr32(q3 ^ q4 ^ q6 ^ q7 ^ r3 ^ r6 ^ r7);
+        q[7] = q4 ^ q5 ^ q6 ^ r4 ^ r6 ^ r7 ^ rotr32(q4 ^ q5 ^ q7 ^ r4 ^ r7);
+    }
+}
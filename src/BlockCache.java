@@ -0,0 +1,281 @@
+import java.util.Arrays;
+
+/**
+ * A bounded cache of cipher results for single blocks, for ECB hex files that repeat the
+ * same lines (tokenized IDs, fixed-format records): a block that was seen before is looked
+ * up instead of running the rounds again. It is off unless -Daes.ecb.cache gives the number
+ * of entries, which is rounded up to a power of two.
+ *
+ * The entries are held in primitive arrays, two longs for the input block and two for the
+ * result, so nothing is allocated per block. The table is split into sets of WAYS entries;
+ * a block is only ever stored in the set its hash picks, and is found by probing that set.
+ * When a set is full, CLOCK picks the entry to replace: each entry has a referenced bit,
+ * set on every hit, and the hand of the set passes over referenced entries, clearing the
+ * bit, until it finds one that was not used since it last passed.
+ *
+ * Entries are keyed by the key, the direction and the input block, so files under
+ * different keys share the table. The cache holds up to KEYS keys, each a copy of the raw
+ * key and a direction; every entry records which of them it belongs to, and the set of a
+ * block depends on its key too. When one more key is needed, the key used least recently
+ * is evicted: its entries and its copy of the key are overwritten with zeros, so plaintext
+ * and ciphertext of a key that is no longer used do not stay in memory.
+ *
+ * Lookups and inserts take a lock once per group of hex lines; the blocks that miss are
+ * ciphered outside the lock, so several workers can share the cache. A block that repeats
+ * within a group is ciphered once and counted as a hit for its other copies, as it would
+ * be had the group been looked up a block at a time. At the end of a run, AES.main calls
+ * clear(), so no entry outlives the run.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public final class BlockCache {
+
+    /**
+     * Entries in the cache, from -Daes.ecb.cache; 0 turns it off.
+     */
+    public static final int SIZE = Math.max(0, Integer.getInteger("aes.ecb.cache", 0));
+
+    /**
+     * The cache, or null if it is off.
+     */
+    static final BlockCache INSTANCE = SIZE > 0 ? new BlockCache(SIZE) : null;
+
+    private static final int WAYS = 8; //Entries in a set.
+    private static final int KEYS = 16; //Keys held at once.
+    private static final byte VALID = 1, REFERENCED = 2;
+
+    private final long[] blocks; //The input block of each entry, as two longs.
+    private final long[] results; //The output block of each entry, as two longs.
+    private final byte[] flags; //VALID and REFERENCED for each entry.
+    private final byte[] hands; //The CLOCK hand of each set.
+    private final byte[] owners; //The index in keys of each entry.
+    private final int sets;
+    private final byte[][] keys = new byte[KEYS][]; //Copies of the keys held, null where there is none.
+    private final boolean[] directions = new boolean[KEYS]; //True where the key encrypts.
+    private final long[] used = new long[KEYS]; //When each key was last used, for eviction.
+    private long clock;
+    private long lookups;
+    private long hits;
+
+    private BlockCache(int size) {
+        int entries = Math.max(WAYS, Integer.highestOneBit(Math.min(size, 1 << 28) - 1) << 1);
+        sets = entries / WAYS;
+        blocks = new long[2 * entries];
+        results = new long[2 * entries];
+        flags = new byte[entries];
+        hands = new byte[sets];
+        owners = new byte[entries];
+    }
+
+    /**
+     * Encrypts or decrypts the first n blocks of words in place, taking the blocks that are
+     * cached from the cache and adding the others to it.
+     * @param cipher the expanded key.
+     * @param encrypt true to encrypt, false to decrypt.
+     * @param words the blocks, four words each.
+     * @param n the number of blocks.
+     */
+    void crypt(AESCipher cipher, boolean encrypt, int[] words, int n) {
+        int[] missed = new int[n]; //Indices of the distinct blocks that were not cached.
+        int[] copies = new int[n]; //For each block, the index in missed of its result, or -1 if it was cached.
+        int[] seen = new int[Integer.highestOneBit(Math.max(1, n)) << 2]; //Open addressing over missed, 1-based; 0 is empty.
+        int misses = 0;
+        synchronized (this) {
+            int k = use(cipher, encrypt);
+            for (int b = 0; b < n; b++) {
+                long hi = high(words, 4 * b), lo = low(words, 4 * b);
+                int e = find(k, hi, lo);
+                if (e >= 0) {
+                    flags[e] |= REFERENCED;
+                    put(words, 4 * b, results[2 * e], results[2 * e + 1]);
+                    copies[b] = -1;
+                    continue;
+                }
+                int s = (int) (((hi * 0x9e3779b97f4a7c15L) ^ lo) * 0xc2b2ae3d27d4eb4fL >>> 32) & (seen.length - 1);
+                while (seen[s] != 0 && (high(words, 4 * missed[seen[s] - 1]) != hi || low(words, 4 * missed[seen[s] - 1]) != lo)) {
+                    s = (s + 1) & (seen.length - 1);
+                }
+                if (seen[s] == 0) { //The first copy in this group.
+                    missed[misses] = b;
+                    seen[s] = ++misses;
+                }
+                copies[b] = seen[s] - 1;
+            }
+            lookups += n;
+            hits += n - misses;
+        }
+        if (misses == 0) {
+            return;
+        }
+        int[] out = new int[4 * misses];
+        for (int m = 0; m < misses; m++) {
+            System.arraycopy(words, 4 * missed[m], out, 4 * m, 4);
+        }
+        for (int m = 0; m < misses; m += AESCipher.BATCH) {
+            int count = Math.min(AESCipher.BATCH, misses - m);
+            int[] batch = Arrays.copyOfRange(out, 4 * m, 4 * (m + count));
+            if (encrypt) {
+                cipher.encryptBlocks(batch, batch, count);
+            } else {
+                cipher.decryptBlocks(batch, batch, count);
+            }
+            System.arraycopy(batch, 0, out, 4 * m, 4 * count);
+        }
+        synchronized (this) {
+            int k = find(cipher, encrypt); //Another thread may have evicted the key meanwhile.
+            for (int m = 0; k >= 0 && m < misses; m++) {
+                int b = 4 * missed[m];
+                insert(k, high(words, b), low(words, b), high(out, 4 * m), low(out, 4 * m));
+            }
+        }
+        for (int b = 0; b < n; b++) {
+            if (copies[b] >= 0) {
+                System.arraycopy(out, 4 * copies[b], words, 4 * b, 4);
+            }
+        }
+    }
+
+    /**
+     * @return the index in keys of cipher's key in the given direction, or -1.
+     */
+    private int find(AESCipher cipher, boolean encrypt) {
+        for (int k = 0; k < KEYS; k++) {
+            if (keys[k] != null && directions[k] == encrypt && Arrays.equals(keys[k], cipher.key())) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Makes the cache hold the blocks of cipher's key in the given direction, evicting the
+     * key used least recently if all KEYS are taken.
+     * @return the index of the key in keys.
+     */
+    private int use(AESCipher cipher, boolean encrypt) {
+        int k = find(cipher, encrypt);
+        if (k < 0) {
+            k = 0;
+            for (int i = 0; i < KEYS && keys[k] != null; i++) {
+                if (keys[i] == null || used[i] < used[k]) {
+                    k = i;
+                }
+            }
+            if (keys[k] != null) {
+                evict(k);
+            }
+            keys[k] = cipher.key().clone();
+            directions[k] = encrypt;
+        }
+        used[k] = ++clock;
+        return k;
+    }
+
+    /**
+     * Overwrites the entries of keys[k] and the copy of the key with zeros.
+     */
+    private void evict(int k) {
+        for (int e = 0; e < flags.length; e++) {
+            if (owners[e] == k) {
+                blocks[2 * e] = blocks[2 * e + 1] = 0;
+                results[2 * e] = results[2 * e + 1] = 0;
+                flags[e] = 0;
+                owners[e] = 0;
+            }
+        }
+        Arrays.fill(keys[k], (byte) 0);
+        keys[k] = null;
+    }
+
+    /**
+     * Overwrites every entry and every copy of a key with zeros.
+     */
+    synchronized void clear() {
+        Arrays.fill(blocks, 0);
+        Arrays.fill(results, 0);
+        Arrays.fill(flags, (byte) 0);
+        Arrays.fill(hands, (byte) 0);
+        Arrays.fill(owners, (byte) 0);
+        for (int k = 0; k < KEYS; k++) {
+            if (keys[k] != null) {
+                Arrays.fill(keys[k], (byte) 0);
+                keys[k] = null;
+            }
+        }
+    }
+
+    /**
+     * @return the index of the entry for the block under keys[k], or -1.
+     */
+    private int find(int k, long hi, long lo) {
+        int base = WAYS * set(k, hi, lo);
+        for (int e = base; e < base + WAYS; e++) {
+            if ((flags[e] & VALID) != 0 && owners[e] == k && blocks[2 * e] == hi && blocks[2 * e + 1] == lo) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(int k, long hi, long lo, long resultHi, long resultLo) {
+        int set = set(k, hi, lo);
+        int base = WAYS * set;
+        int e = find(k, hi, lo);
+        for (int i = base; e < 0 && i < base + WAYS; i++) {
+            if (flags[i] == 0) {
+                e = i;
+            }
+        }
+        if (e < 0) { //CLOCK: gives referenced entries a second chance.
+            int hand = hands[set];
+            while ((flags[base + hand] & REFERENCED) != 0) {
+                flags[base + hand] &= ~REFERENCED;
+                hand = (hand + 1) % WAYS;
+            }
+            e = base + hand;
+            hands[set] = (byte) ((hand + 1) % WAYS);
+        }
+        blocks[2 * e] = hi;
+        blocks[2 * e + 1] = lo;
+        results[2 * e] = resultHi;
+        results[2 * e + 1] = resultLo;
+        flags[e] = VALID;
+        owners[e] = (byte) k;
+    }
+
+    private int set(int k, long hi, long lo) {
+        long h = ((hi ^ k) * 0x9e3779b97f4a7c15L ^ lo) * 0xc2b2ae3d27d4eb4fL;
+        return (int) (h >>> 32) & (sets - 1);
+    }
+
+    private static long high(int[] w, int off) {
+        return (long) w[off] << 32 | (w[off + 1] & 0xffffffffL);
+    }
+
+    private static long low(int[] w, int off) {
+        return (long) w[off + 2] << 32 | (w[off + 3] & 0xffffffffL);
+    }
+
+    private static void put(int[] w, int off, long hi, long lo) {
+        w[off] = (int) (hi >>> 32);
+        w[off + 1] = (int) hi;
+        w[off + 2] = (int) (lo >>> 32);
+        w[off + 3] = (int) lo;
+    }
+
+    /**
+     * @return the hits, lookups and memory of the cache for the run summary, or null if it is off.
+     */
+    static String report() {
+        if (INSTANCE == null) {
+            return null;
+        }
+        synchronized (INSTANCE) {
+            long bytes = 16L * INSTANCE.blocks.length + 2L * INSTANCE.flags.length + INSTANCE.hands.length;
+            return String.format("ECB cache: %d of %d blocks hit (%.1f%%), %d entries, %.1f KB",
+                    INSTANCE.hits, INSTANCE.lookups, INSTANCE.lookups == 0 ? 0.0 : 100.0 * INSTANCE.hits / INSTANCE.lookups,
+                    INSTANCE.flags.length, bytes / 1024.0);
+        }
+    }
+}
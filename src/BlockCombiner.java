@@ -0,0 +1,161 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Combines the blocks of small requests made on many threads into full batches for the
+ * engine. A thread with fewer than AESCipher.BATCH independent blocks queues them and
+ * tries to take the lock; the thread that holds it runs every queued request, packing
+ * blocks of the same key and direction into one encryptBlocks() or decryptBlocks() call,
+ * and wakes the threads they belong to. A thread that finds the lock free runs at once, so
+ * combining adds no wait when requests come one at a time, and fills batches when they
+ * come together, which is when the engine is busiest.
+ *
+ * Requests of BATCH blocks or more are run on the calling thread without queueing.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public final class BlockCombiner {
+
+    /**
+     * Most requests run by one thread before it lets go of the lock, so that a thread
+     * does not stay busy with other threads' work for long.
+     */
+    private static final int MAX_REQUESTS = 16 * AESCipher.BATCH;
+
+    /**
+     * How long a queued thread waits before it tries the lock again, in case it was queued
+     * just after the thread holding the lock stopped taking requests.
+     */
+    private static final long PARK_NANOS = 50000;
+
+    private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<Request>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int[] words = new int[4 * AESCipher.BATCH]; //Guarded by lock.
+    private final Request[] packed = new Request[AESCipher.BATCH]; //The requests whose blocks are in words.
+
+    /**
+     * Blocks of one thread waiting to be run.
+     */
+    private static final class Request {
+
+        final AESCipher cipher;
+        final boolean encrypt;
+        final int[] data;
+        final int blocks;
+        final Thread thread = Thread.currentThread();
+        volatile boolean done;
+
+        Request(AESCipher cipher, boolean encrypt, int[] data, int blocks) {
+            this.cipher = cipher;
+            this.encrypt = encrypt;
+            this.data = data;
+            this.blocks = blocks;
+        }
+    }
+
+    /**
+     * Encrypts independent blocks in place, possibly in one engine call with blocks of
+     * other threads.
+     * @param cipher the expanded key.
+     * @param data the blocks, four column words each.
+     * @param blocks the number of blocks.
+     */
+    public void encryptBlocks(AESCipher cipher, int[] data, int blocks) {
+        run(cipher, true, data, blocks);
+    }
+
+    /**
+     * Decrypts independent blocks in place, possibly in one engine call with blocks of
+     * other threads.
+     * @param cipher the expanded key.
+     * @param data the blocks, four column words each.
+     * @param blocks the number of blocks.
+     */
+    public void decryptBlocks(AESCipher cipher, int[] data, int blocks) {
+        run(cipher, false, data, blocks);
+    }
+
+    private void run(AESCipher cipher, boolean encrypt, int[] data, int blocks) {
+        if (blocks >= AESCipher.BATCH) {
+            int[] batch = new int[4 * AESCipher.BATCH];
+            for (int b = 0; b < blocks; b += AESCipher.BATCH) {
+                int n = Math.min(AESCipher.BATCH, blocks - b);
+                System.arraycopy(data, 4 * b, batch, 0, 4 * n);
+                if (encrypt) {
+                    cipher.encryptBlocks(batch, batch, n);
+                } else {
+                    cipher.decryptBlocks(batch, batch, n);
+                }
+                System.arraycopy(batch, 0, data, 4 * b, 4 * n);
+            }
+            return;
+        }
+        if (blocks == 0) {
+            return;
+        }
+        Request request = new Request(cipher, encrypt, data, blocks);
+        queue.add(request);
+        while (!request.done) {
+            if (lock.tryLock()) {
+                try {
+                    combine();
+                } finally {
+                    lock.unlock();
+                }
+                Request next = queue.peek();
+                if (next != null) { //Queued while this thread was combining; let it take the lock.
+                    LockSupport.unpark(next.thread);
+                }
+            } else {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Runs queued requests, up to MAX_REQUESTS of them.
+     */
+    private void combine() {
+        AESCipher cipher = null;
+        boolean encrypt = false;
+        int blocks = 0, count = 0;
+        Request r;
+        for (int i = 0; i < MAX_REQUESTS && (r = queue.poll()) != null; i++) {
+            if (count > 0 && (r.cipher != cipher || r.encrypt != encrypt || blocks + r.blocks > AESCipher.BATCH)) {
+                flush(cipher, encrypt, blocks, count);
+                blocks = 0;
+                count = 0;
+            }
+            cipher = r.cipher;
+            encrypt = r.encrypt;
+            System.arraycopy(r.data, 0, words, 4 * blocks, 4 * r.blocks);
+            blocks += r.blocks;
+            packed[count++] = r;
+        }
+        if (count > 0) {
+            flush(cipher, encrypt, blocks, count);
+        }
+    }
+
+    /**
+     * Runs the packed blocks and hands each request its own back.
+     */
+    private void flush(AESCipher cipher, boolean encrypt, int blocks, int count) {
+        if (encrypt) {
+            cipher.encryptBlocks(words, words, blocks);
+        } else {
+            cipher.decryptBlocks(words, words, blocks);
+        }
+        int off = 0;
+        for (int i = 0; i < count; i++) {
+            Request r = packed[i];
+            packed[i] = null;
+            System.arraycopy(words, off, r.data, 0, 4 * r.blocks);
+            off += 4 * r.blocks;
+            r.done = true;
+            LockSupport.unpark(r.thread);
+        }
+    }
+}
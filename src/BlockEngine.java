@@ -0,0 +1,51 @@
+/**
+ * An implementation of the AES block function. AESCipher holds a key and the engine it
+ * runs on, and hands every block to the engine, so the rest of the program does not
+ * depend on which engine is used. The engines are in BlockEngines, which also picks the
+ * fastest one at startup.
+ *
+ * Blocks are passed as four column words each, the format used by TTableAES. Every
+ * engine must give the same output; BlockEngines checks this with known-answer tests
+ * before an engine is used.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public interface BlockEngine {
+
+    /**
+     * @return the name given to -engine and -Daes.engine.
+     */
+    String name();
+
+    /**
+     * @return true if the engine can run in this JVM.
+     */
+    boolean isAvailable();
+
+    /**
+     * Expands a key into the form this engine works on.
+     * @param cipher the key, on any engine; its raw key and T-table round keys are used.
+     * @return the expanded key, passed back to encryptBlocks() and decryptBlocks(). It is
+     *         shared between threads, so it must not be modified once returned.
+     */
+    Object expandKey(AESCipher cipher);
+
+    /**
+     * Encrypts independent blocks. in and out may be the same array.
+     * @param key the expanded key from expandKey().
+     * @param in the input words.
+     * @param out receives the output words.
+     * @param blocks the number of blocks, 1 to AESCipher.BATCH.
+     */
+    void encryptBlocks(Object key, int[] in, int[] out, int blocks);
+
+    /**
+     * Decrypts independent blocks. in and out may be the same array.
+     * @param key the expanded key from expandKey().
+     * @param in the input words.
+     * @param out receives the output words.
+     * @param blocks the number of blocks, 1 to AESCipher.BATCH.
+     */
+    void decryptBlocks(Object key, int[] in, int[] out, int blocks);
+}
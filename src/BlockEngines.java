@@ -0,0 +1,601 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The block engines, and the startup calibration that picks one of them.
+ *
+ * reference runs the 4x4 matrix code in AES, ttable runs TTableAES, bitsliced runs
+ * BitslicedAES four blocks at a time, vector runs BitslicedAES on VectorAES lanes, and jce
+ * runs the platform's AES/ECB/NoPadding cipher, which the JVM implements with the AES
+ * instructions of the CPU where it has them.
+ *
+ * selected() returns the engine set with -Daes.engine, or else the one that passed the
+ * known-answer tests and was fastest when each available engine was timed for
+ * CALIBRATION_MS. Engines are timed on single blocks and on batches, since CBC encryption
+ * and the hex format pass one block at a time, and the engine with the highest throughput
+ * on batches is often slow on single blocks.
+ *
+ * The choice is kept in CACHE_FILE for the JVM and CPU count it was made on, so only the
+ * first run on a host pays for the timing; later runs read the file and only run the
+ * known-answer tests.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public final class BlockEngines {
+
+    public static final BlockEngine REFERENCE = new Reference();
+    public static final BlockEngine TTABLE = new TTable();
+    public static final BlockEngine BITSLICED = new Bitsliced();
+    public static final BlockEngine VECTOR = new Vector();
+    public static final BlockEngine JCE = new Jce();
+
+    private static final BlockEngine[] ENGINES = {REFERENCE, TTABLE, BITSLICED, VECTOR, JCE};
+
+    /**
+     * Most milliseconds spent timing each engine, half on single blocks and half on
+     * batches; most engines stop much earlier. Can be set with -Daes.calibration.ms.
+     */
+    public static final int CALIBRATION_MS = Integer.getInteger("aes.calibration.ms", 400);
+
+    /**
+     * Where calibration results are kept: -Daes.engine.cache, or .aes-engines in the user's
+     * home directory. -Daes.engine.cache= (empty) calibrates on every run.
+     */
+    public static final String CACHE_FILE = System.getProperty("aes.engine.cache",
+            new File(System.getProperty("user.home"), ".aes-engines").getPath());
+
+    private static final long SLICE_NANOS = 2000000;
+    private static final int IDLE_SLICES = 10;
+
+    /**
+     * Known answers from FIPS-197 appendix C and SP 800-38A F.1.1 and F.1.5: key,
+     * plaintext blocks, ciphertext blocks.
+     */
+    private static final String[][] KNOWN_ANSWERS = {
+        {"000102030405060708090A0B0C0D0E0F",
+            "00112233445566778899AABBCCDDEEFF",
+            "69C4E0D86A7B0430D8CDB78070B4C55A"},
+        {"000102030405060708090A0B0C0D0E0F101112131415161718191A1B1C1D1E1F",
+            "00112233445566778899AABBCCDDEEFF",
+            "8EA2B7CA516745BFEAFC49904B496089"},
+        {"2B7E151628AED2A6ABF7158809CF4F3C",
+            "6BC1BEE22E409F96E93D7E117393172AAE2D8A571E03AC9C9EB76FAC45AF8E5130C81C46A35CE411E5FBC1191A0A52EFF69F2445DF4F9B17AD2B417BE66C3710",
+            "3AD77BB40D7A3660A89ECAF32466EF97F5D3D58503B9699DE785895A96FDBAAF43B1CD7F598ECE23881B00E3ED0306887B0C785E27E8AD3F8223207104725DD4"},
+        {"603DEB1015CA71BE2B73AEF0857D77811F352C073B6108D72D9810A30914DFF4",
+            "6BC1BEE22E409F96E93D7E117393172AAE2D8A571E03AC9C9EB76FAC45AF8E5130C81C46A35CE411E5FBC1191A0A52EFF69F2445DF4F9B17AD2B417BE66C3710",
+            "F3EED1BDB5D2A03C064B5A7E3DB181F8591CCB10D410ED26DC5BA74A31362870B6ED21B99CA6F4F9F153E7B1BEAFED1D23304B7A39F9F3FF067D8D8F9E24ECC7"}
+    };
+
+    private static BlockEngine single;
+    private static BlockEngine batch;
+    private static String report;
+
+    private BlockEngines() {
+        //Only static methods.
+    }
+
+    /**
+     * @return every engine, available or not.
+     */
+    public static BlockEngine[] all() {
+        return ENGINES.clone();
+    }
+
+    /**
+     * @param name an engine name, as given to -engine.
+     * @return the engine.
+     * @throws IllegalArgumentException if there is no such engine or it cannot run in this JVM.
+     */
+    public static BlockEngine forName(String name) {
+        for (BlockEngine e : ENGINES) {
+            if (e.name().equals(name)) {
+                if (!e.isAvailable()) {
+                    throw new IllegalArgumentException("Error: Engine " + name + " is not available in this JVM.");
+                }
+                return e;
+            }
+        }
+        throw new IllegalArgumentException("Error: Unknown engine " + name);
+    }
+
+    /**
+     * Returns the engine to use when none was given on the command line. The first call
+     * runs the calibration unless -Daes.engine is set.
+     * @param batched true for work passed in batches of blocks, false for single blocks.
+     * @return the engine.
+     * @throws IllegalArgumentException if -Daes.engine names an engine that cannot be used.
+     */
+    public static synchronized BlockEngine selected(boolean batched) {
+        if (single == null) {
+            String name = System.getProperty("aes.engine");
+            if (name != null && !name.equals("auto")) {
+                BlockEngine e = forName(name);
+                if (!passesKnownAnswers(e)) {
+                    throw new IllegalArgumentException("Error: Engine " + name + " failed the known-answer tests.");
+                }
+                single = e;
+                batch = e;
+            } else if (!readCache()) {
+                calibrate();
+                writeCache();
+            }
+        }
+        return batched ? batch : single;
+    }
+
+    /**
+     * @return one line naming the engines picked by the calibration and their throughput,
+     *         or null if no calibration has been run or read from CACHE_FILE.
+     */
+    public static synchronized String report() {
+        return report;
+    }
+
+    /**
+     * Times every available engine that passes the known-answer tests, and keeps the
+     * fastest for single blocks and for batches.
+     */
+    private static void calibrate() {
+        StringBuilder measured = new StringBuilder();
+        double singleRate = 0;
+        double batchRate = 0;
+        for (BlockEngine e : ENGINES) {
+            if (!e.isAvailable()) {
+                continue;
+            }
+            if (measured.length() > 0) {
+                measured.append(", ");
+            }
+            if (!passesKnownAnswers(e)) {
+                measured.append(e.name()).append(" failed");
+                continue;
+            }
+            double s = throughput(e, 1, CALIBRATION_MS / 2);
+            double b = throughput(e, AESCipher.BATCH, CALIBRATION_MS / 2);
+            measured.append(String.format(Locale.ROOT, "%s %.1f/%.1f", e.name(), s, b));
+            if (s > singleRate) {
+                single = e;
+                singleRate = s;
+            }
+            if (b > batchRate) {
+                batch = e;
+                batchRate = b;
+            }
+        }
+        report = String.format(Locale.ROOT, "Engine: %s for single blocks (%.1f MB/s), %s for batches (%.1f MB/s); single/batch MB/s: %s",
+                single.name(), singleRate, batch.name(), batchRate, measured);
+    }
+
+    /**
+     * @return what a calibration result depends on: the JVM, the architecture, the
+     *         number of CPUs and the batch size, which tells whether the vector engine
+     *         was available.
+     */
+    private static String host() {
+        return System.getProperty("java.vm.name") + " " + System.getProperty("java.vm.version") + " "
+                + System.getProperty("os.arch") + " " + Runtime.getRuntime().availableProcessors() + " cpus batch "
+                + AESCipher.BATCH;
+    }
+
+    /**
+     * Takes the engines from CACHE_FILE if it holds a result for this host whose engines
+     * still pass the known-answer tests.
+     * @return true if they were taken.
+     */
+    private static boolean readCache() {
+        if (CACHE_FILE.isEmpty() || !new File(CACHE_FILE).isFile()) {
+            return false;
+        }
+        Properties p = new Properties();
+        try {
+            InputStream in = new FileInputStream(CACHE_FILE);
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+            String host = host();
+            BlockEngine s = forName(p.getProperty(host + ".single", ""));
+            BlockEngine b = forName(p.getProperty(host + ".batch", ""));
+            if (!passesKnownAnswers(s) || !passesKnownAnswers(b)) {
+                return false;
+            }
+            single = s;
+            batch = b;
+            report = p.getProperty(host + ".report", "") + " (from " + CACHE_FILE + ")";
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (IllegalArgumentException e) { //A missing, unknown or unavailable engine.
+            return false;
+        }
+    }
+
+    /**
+     * Records the engines just calibrated in CACHE_FILE, next to the results of other
+     * hosts already in it. The file is replaced in one move, so that runs started at the
+     * same time never read half of it. A file that cannot be written is left as it is.
+     */
+    private static void writeCache() {
+        if (CACHE_FILE.isEmpty()) {
+            return;
+        }
+        File file = new File(CACHE_FILE);
+        Properties p = new Properties();
+        try {
+            if (file.isFile()) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    p.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+            String host = host();
+            p.setProperty(host + ".single", single.name());
+            p.setProperty(host + ".batch", batch.name());
+            p.setProperty(host + ".report", report);
+            File tmp = File.createTempFile(".aes-engines", ".tmp", file.getAbsoluteFile().getParentFile());
+            try {
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    p.store(out, "Engines picked by java AES -engine auto; delete to calibrate again.");
+                } finally {
+                    out.close();
+                }
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            //The next run calibrates again.
+        } catch (IllegalArgumentException e) { //A malformed file.
+            //The next run calibrates again.
+        }
+    }
+
+    /**
+     * Checks an engine against KNOWN_ANSWERS, one block at a time and in batches of
+     * every size up to AESCipher.BATCH.
+     * @param engine an available engine.
+     * @return true if every block encrypts and decrypts to the expected value.
+     */
+    public static boolean passesKnownAnswers(BlockEngine engine) {
+        try {
+            for (String[] kat : KNOWN_ANSWERS) {
+                Object key = engine.expandKey(AESCipher.getInstance(kat[0]));
+                int[] plain = words(kat[1]);
+                int[] cipher = words(kat[2]);
+                int n = plain.length / 4;
+                for (int blocks = 1; blocks <= AESCipher.BATCH; blocks++) {
+                    int[] p = new int[4 * blocks];
+                    int[] c = new int[4 * blocks];
+                    for (int b = 0; b < blocks; b++) {
+                        System.arraycopy(plain, 4 * (b % n), p, 4 * b, 4);
+                        System.arraycopy(cipher, 4 * (b % n), c, 4 * b, 4);
+                    }
+                    int[] x = p.clone();
+                    engine.encryptBlocks(key, x, x, blocks);
+                    if (!Arrays.equals(x, c)) {
+                        return false;
+                    }
+                    engine.decryptBlocks(key, x, x, blocks);
+                    if (!Arrays.equals(x, p)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Encrypts and decrypts with a fixed key in slices of SLICE_NANOS, until the best
+     * slice has not improved for IDLE_SLICES slices or millis have passed. The best slice
+     * is taken rather than the average, so that the time spent before the JIT has compiled
+     * the engine does not count against it.
+     * @return the throughput of the best slice in MB/s.
+     */
+    private static double throughput(BlockEngine engine, int blocks, int millis) {
+        Object key = engine.expandKey(AESCipher.getInstance(KNOWN_ANSWERS[0][0]));
+        int[] data = new int[4 * blocks];
+        long end = System.nanoTime() + millis * 1000000L;
+        double best = 0;
+        int idle = 0;
+        while (idle < IDLE_SLICES) {
+            long start = System.nanoTime();
+            long now;
+            long calls = 0;
+            do {
+                engine.encryptBlocks(key, data, data, blocks);
+                engine.decryptBlocks(key, data, data, blocks);
+                calls++;
+                now = System.nanoTime();
+            } while (now - start < SLICE_NANOS);
+            double rate = calls * blocks * 32 * 1000.0 / (now - start);
+            if (rate > best * 1.01) {
+                best = rate;
+                idle = 0;
+            } else {
+                idle++;
+            }
+            if (now >= end) {
+                break;
+            }
+            awaitCompiler(end);
+        }
+        return best;
+    }
+
+    /**
+     * Sleeps while the JIT is compiling, so that it is not starved of CPU by the
+     * calibration, until it has been idle for a millisecond or the deadline has passed.
+     */
+    private static void awaitCompiler(long deadline) {
+        CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+        if (jit == null || !jit.isCompilationTimeMonitoringSupported()) {
+            return;
+        }
+        long before = jit.getTotalCompilationTime();
+        try {
+            while (System.nanoTime() < deadline) {
+                Thread.sleep(1);
+                long after = jit.getTotalCompilationTime();
+                if (after == before) {
+                    return;
+                }
+                before = after;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int[] words(String hex) {
+        int[] w = new int[hex.length() / 8];
+        for (int i = 0; i < w.length; i++) {
+            w[i] = (int) Long.parseLong(hex.substring(8 * i, 8 * i + 8), 16);
+        }
+        return w;
+    }
+
+    /**
+     * The 4x4 matrix code in AES, one block at a time.
+     */
+    private static final class Reference implements BlockEngine {
+
+        private static final AES aes = new AES(); //Holds no state.
+
+        public String name() {
+            return "reference";
+        }
+
+        public boolean isAvailable() {
+            return true;
+        }
+
+        public Object expandKey(AESCipher cipher) {
+            return aes.subKeys(aes.keySchedule(AESCipher.bytesToHex(cipher.key())));
+        }
+
+        public void encryptBlocks(Object key, int[] in, int[] out, int blocks) {
+            int[][] state = new int[4][4];
+            int[] block = new int[4];
+            for (int i = 0; i < 4 * blocks; i += 4) {
+                System.arraycopy(in, i, block, 0, 4);
+                AES.WordsToMatrix(block, state);
+                aes.encryptState(state, (int[][][]) key);
+                AES.MatrixToWords(state, block);
+                System.arraycopy(block, 0, out, i, 4);
+            }
+        }
+
+        public void decryptBlocks(Object key, int[] in, int[] out, int blocks) {
+            int[][] state = new int[4][4];
+            int[] block = new int[4];
+            for (int i = 0; i < 4 * blocks; i += 4) {
+                System.arraycopy(in, i, block, 0, 4);
+                AES.WordsToMatrix(block, state);
+                aes.decryptState(state, (int[][][]) key);
+                AES.MatrixToWords(state, block);
+                System.arraycopy(block, 0, out, i, 4);
+            }
+        }
+    }
+
+    /**
+     * TTableAES, one block at a time; the key is the encryption and decryption round keys.
+     */
+    private static final class TTable implements BlockEngine {
+
+        public String name() {
+            return "ttable";
+        }
+
+        public boolean isAvailable() {
+            return true;
+        }
+
+        public Object expandKey(AESCipher cipher) {
+            return new int[][] {cipher.encryptionKey(), cipher.decryptionKey()};
+        }
+
+        public void encryptBlocks(Object key, int[] in, int[] out, int blocks) {
+            int[] rk = ((int[][]) key)[0];
+            for (int i = 0; i < 4 * blocks; i += 4) {
+                TTableAES.encryptBlock(rk, in, i, out, i);
+            }
+        }
+
+        public void decryptBlocks(Object key, int[] in, int[] out, int blocks) {
+            int[] drk = ((int[][]) key)[1];
+            for (int i = 0; i < 4 * blocks; i += 4) {
+                TTableAES.decryptBlock(drk, in, i, out, i);
+            }
+        }
+    }
+
+    /**
+     * BitslicedAES on 64-bit words, four blocks at a time.
+     */
+    private static class Bitsliced implements BlockEngine {
+
+        public String name() {
+            return "bitsliced";
+        }
+
+        public boolean isAvailable() {
+            return true;
+        }
+
+        public Object expandKey(AESCipher cipher) {
+            return BitslicedAES.expandKey(cipher.encryptionKey());
+        }
+
+        public void encryptBlocks(Object key, int[] in, int[] out, int blocks) {
+            BitslicedAES.encryptBlocks((long[]) key, in, out, blocks);
+        }
+
+        public void decryptBlocks(Object key, int[] in, int[] out, int blocks) {
+            BitslicedAES.decryptBlocks((long[]) key, in, out, blocks);
+        }
+    }
+
+    /**
+     * BitslicedAES on VectorAES lanes. Batches of up to two groups stay on 64-bit words,
+     * which is faster than filling a vector that is mostly empty.
+     */
+    private static final class Vector extends Bitsliced {
+
+        @Override
+        public String name() {
+            return "vector";
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return BitslicedAES.LANES != null;
+        }
+
+        @Override
+        public void encryptBlocks(Object key, int[] in, int[] out, int blocks) {
+            if (blocks > 2 * BitslicedAES.GROUP) {
+                BitslicedAES.LANES.encryptBlocks((long[]) key, in, out, blocks);
+            } else {
+                BitslicedAES.encryptBlocks((long[]) key, in, out, blocks);
+            }
+        }
+
+        @Override
+        public void decryptBlocks(Object key, int[] in, int[] out, int blocks) {
+            if (blocks > 2 * BitslicedAES.GROUP) {
+                BitslicedAES.LANES.decryptBlocks((long[]) key, in, out, blocks);
+            } else {
+                BitslicedAES.decryptBlocks((long[]) key, in, out, blocks);
+            }
+        }
+    }
+
+    /**
+     * javax.crypto AES/ECB/NoPadding. Cipher objects are not thread safe, so each key keeps
+     * a ScratchPool of cipher pairs, with byte buffers for the blocks, and a call takes a
+     * pair for its duration; a new connection to the server reuses the pairs of earlier
+     * ones rather than initializing its own. The input and output buffers are separate,
+     * since Cipher.update() copies input that overlaps its output.
+     */
+    private static final class Jce implements BlockEngine {
+
+        private static final String TRANSFORMATION = "AES/ECB/NoPadding";
+
+        public String name() {
+            return "jce";
+        }
+
+        public boolean isAvailable() {
+            try {
+                Cipher.getInstance(TRANSFORMATION);
+                return true;
+            } catch (GeneralSecurityException e) {
+                return false;
+            }
+        }
+
+        public Object expandKey(AESCipher cipher) {
+            final SecretKeySpec spec = new SecretKeySpec(cipher.key(), "AES");
+            return new ScratchPool<JceKey>() {
+                @Override
+                protected JceKey create() {
+                    return new JceKey(spec);
+                }
+            };
+        }
+
+        public void encryptBlocks(Object key, int[] in, int[] out, int blocks) {
+            crypt(key, true, in, out, blocks);
+        }
+
+        public void decryptBlocks(Object key, int[] in, int[] out, int blocks) {
+            crypt(key, false, in, out, blocks);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static void crypt(Object key, boolean encrypt, int[] in, int[] out, int blocks) {
+            ScratchPool<JceKey> pool = (ScratchPool<JceKey>) key;
+            JceKey k = pool.take();
+            try {
+                k.input.clear();
+                k.input.put(in, 0, 4 * blocks);
+                (encrypt ? k.encrypt : k.decrypt).update(k.inputBytes, 0, 16 * blocks, k.outputBytes, 0);
+                k.output.clear();
+                k.output.get(out, 0, 4 * blocks);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                pool.give(k);
+            }
+        }
+    }
+
+    /**
+     * A pair of ciphers for one key, used by one call at a time.
+     */
+    private static final class JceKey {
+
+        final Cipher encrypt;
+        final Cipher decrypt;
+        final byte[] inputBytes = new byte[16 * AESCipher.BATCH];
+        final byte[] outputBytes = new byte[16 * AESCipher.BATCH];
+        final IntBuffer input = ByteBuffer.wrap(inputBytes).asIntBuffer(); //Big endian, as the column words are.
+        final IntBuffer output = ByteBuffer.wrap(outputBytes).asIntBuffer();
+
+        JceKey(SecretKeySpec spec) {
+            try {
+                encrypt = Cipher.getInstance(Jce.TRANSFORMATION);
+                encrypt.init(Cipher.ENCRYPT_MODE, spec);
+                decrypt = Cipher.getInstance(Jce.TRANSFORMATION);
+                decrypt.init(Cipher.DECRYPT_MODE, spec);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel CBC decryption. Each plaintext block depends only on its own ciphertext block
+ * and the one before it, so the blocks are split into chunks that are decrypted on a
+ * ForkJoinPool. The ciphertext block in front of each chunk is read before the chunk is
+ * forked, so src and dst may be the same buffer. With a null chain the blocks are
+ * decrypted as ECB.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class CBCMode {
+
+    /**
+     * Bytes decrypted by one task before it stops splitting. Can be set with -Daes.cbc.chunk.
+     */
+    public static final int CHUNK_SIZE = Math.max(16, Integer.getInteger("aes.cbc.chunk", 256 << 10) & ~15);
+
+    private CBCMode() {
+        //Only static methods.
+    }
+
+    /**
+     * Decrypts the blocks of src between from and to into the same offsets of dst.
+     * @param pool the pool the chunks run on.
+     * @param cipher the expanded key.
+     * @param chain the ciphertext block before from (the IV for the first block) as four words,
+     * set to the last ciphertext block on return; null for ECB.
+     * @param src the buffer holding the ciphertext.
+     * @param dst receives the plaintext; may be src.
+     * @param from offset of the first block.
+     * @param to offset after the last block.
+     */
+    public static void decryptParallel(ForkJoinPool pool, AESCipher cipher, int[] chain, ByteBuffer src, ByteBuffer dst, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        int[] last = null;
+        if (chain != null) {
+            last = readBlock(src, to - 16);
+        }
+        pool.invoke(new Chunk(cipher, chain == null ? null : chain.clone(), src, dst, from, to));
+        if (chain != null) {
+            System.arraycopy(last, 0, chain, 0, 4);
+        }
+    }
+
+    private static int[] readBlock(ByteBuffer buf, int p) {
+        int[] block = new int[4];
+        for (int i = 0; i < 4; i++) {
+            block[i] = buf.getInt(p + 4 * i);
+        }
+        return block;
+    }
+
+    /**
+     * Halves its range until it is at most CHUNK_SIZE bytes, then decrypts it serially.
+     */
+    private static class Chunk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final AESCipher cipher;
+        private final int[] chain;
+        private final ByteBuffer src, dst;
+        private final int from, to;
+
+        Chunk(AESCipher cipher, int[] chain, ByteBuffer src, ByteBuffer dst, int from, int to) {
+            this.cipher = cipher;
+            this.chain = chain;
+            this.src = src;
+            this.dst = dst;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_SIZE) {
+                BinaryFile.decryptBlocks(cipher, chain, src, dst, from, to);
+                return;
+            }
+            int mid = from + ((to - from) / 2 & ~15);
+            int[] midchain = chain == null ? null : readBlock(src, mid - 16); //Read before the left half can overwrite it.
+            invokeAll(new Chunk(cipher, chain, src, dst, from, mid),
+                    new Chunk(cipher, midchain, src, dst, mid, to));
+        }
+    }
+}
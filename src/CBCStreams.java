@@ -0,0 +1,305 @@
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Interleaved CBC encryption of many independent files. Each block of a CBC stream depends
+ * on the one before, so one stream passes the cipher a single block at a time, which is
+ * where the bitsliced, vector and jce engines are slowest; but the next blocks of different
+ * streams are independent. Each step here takes the next block of every open stream and
+ * encrypts the blocks of the streams that share a key together, BATCH at a time, on the
+ * engine picked for batches. A stream whose key no other open stream has is encrypted on
+ * its own, on the engine of its job, or with -engine auto on the engine picked for single
+ * blocks; when that is the T-table engine, all such streams are encrypted in one loop of
+ * independent blocks that the CPU can overlap. The files written are the same as
+ * BinaryFile writes, with PKCS#7 padding.
+ *
+ * AESBatch uses this for bin CBC encryption with -io stream. At most MAX_STREAMS files are
+ * open at once (-Daes.cbc.streams, 64 by default); when one ends, the next is opened. Open
+ * streams are kept sorted by key so that the streams of each key are next to each other.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public final class CBCStreams {
+
+    /**
+     * Files open at once in one call to encrypt(). Can be set with -Daes.cbc.streams; 1
+     * turns interleaving off.
+     */
+    public static final int MAX_STREAMS = Math.max(1, Integer.getInteger("aes.cbc.streams", 64));
+
+    private static final int BUFFER_SIZE = 64 << 10; //For each open file.
+
+    private CBCStreams() {
+        //Only static methods.
+    }
+
+    /**
+     * One file to encrypt.
+     */
+    public static final class Stream {
+
+        final AESJob job;
+        /**
+         * Completed with the nanoseconds from opening the file to closing it, or with the
+         * exception that stopped it.
+         */
+        public final CompletableFuture<Long> result = new CompletableFuture<Long>();
+        private final AESCipher cipher;
+        private final AESCipher alone; //The cipher while no other open stream has its key.
+        private final int[] chain = new int[4];
+        private FileChannel in;
+        private FileChannel out;
+        private ByteBuffer buf;
+        private int pos;
+        private int end;
+        private boolean eof;
+        private long start;
+        private AESMetrics metrics;
+        private long readNanos;
+        private long cipherNanos;
+
+        /**
+         * @param job a job that accepts() allows.
+         */
+        public Stream(AESJob job) {
+            this.job = job;
+            cipher = job.autoEngine ? AESCipher.getInstance(job.key).withEngine(BlockEngines.selected(true)) : job.cipher();
+            alone = job.autoEngine ? cipher.withEngine(BlockEngines.selected(false)) : cipher;
+            AES.HexToWords(job.iv, chain);
+        }
+    }
+
+    /**
+     * @return true if job can be run as one of several streams.
+     */
+    public static boolean accepts(AESJob job) {
+        return job.encrypt && job.format == AES.Format.BIN && job.mode == AES.Mode.CBC && job.io == AES.IO.STREAM
+            && job.checkpoint == 0 && !job.resume && !job.mac && job.compress < 0;
+    }
+
+    /**
+     * Encrypts every stream, opening up to MAX_STREAMS files at once. A file that fails
+     * completes its result with the exception and does not stop the others. If anything
+     * else is thrown, every result is completed before it propagates, so no caller waits
+     * on one forever.
+     * @param streams the files, in the order they are opened.
+     */
+    public static void encrypt(List<Stream> streams) {
+        Stream[] open = new Stream[MAX_STREAMS];
+        int[][] keys = new int[MAX_STREAMS][];
+        int[] at = new int[MAX_STREAMS];
+        int[] words = new int[4 * MAX_STREAMS];
+        int[] batch = new int[4 * AESCipher.BATCH];
+        int n = 0;
+        int next = 0;
+        try {
+            while (true) {
+                while (n < MAX_STREAMS && next < streams.size()) {
+                    Stream s = streams.get(next++);
+                    if (open(s)) {
+                        int i = n++;
+                        for (; i > 0 && order(open[i - 1]) > order(s); i--) {
+                            open[i] = open[i - 1];
+                        }
+                        open[i] = s;
+                    }
+                }
+                if (n == 0) {
+                    return;
+                }
+                long start = AESMetrics.time();
+                step(open, n, keys, at, words, batch);
+                long each = (AESMetrics.time() - start) / n;
+                for (int i = 0; i < n;) {
+                    Stream s = open[i];
+                    s.cipherNanos += each;
+                    if (s.pos == s.end && !advance(s)) {
+                        System.arraycopy(open, i + 1, open, i, --n - i);
+                        continue;
+                    }
+                    i++;
+                }
+            }
+        } catch (Throwable e) { //Errors too, or the batch would wait for these results forever.
+            for (int i = 0; i < n; i++) {
+                close(open[i], e);
+            }
+            throw e;
+        } finally {
+            for (int i = 0; i < streams.size(); i++) { //Those not yet opened, and one that failed while opening.
+                streams.get(i).result.completeExceptionally(new IOException("Error: Not encrypted, an earlier stream failed."));
+            }
+        }
+    }
+
+    private static int order(Stream s) {
+        return System.identityHashCode(s.cipher);
+    }
+
+    /**
+     * Encrypts the next block of each open stream in its buffer. Kept apart from encrypt()
+     * so that the JIT compiles it as a method of its own.
+     * @param open the open streams, sorted by order().
+     * @param keys holds the round keys of the streams whose key no other stream has and
+     *        which run on the T-table engine.
+     * @param at holds the indices in open of those streams.
+     * @param words holds their blocks.
+     * @param batch holds the blocks of the streams of one key.
+     */
+    private static void step(Stream[] open, int n, int[][] keys, int[] at, int[] words, int[] batch) {
+        int lone = 0;
+        for (int i = 0, j; i < n; i = j) {
+            AESCipher cipher = open[i].cipher;
+            for (j = i + 1; j < n && open[j].cipher == cipher; j++) {
+                //Finds the streams of this key.
+            }
+            if (j - i == 1) {
+                Stream s = open[i];
+                if (s.alone.getEngine() == BlockEngines.TTABLE) {
+                    chain(s, words, 4 * lone);
+                    at[lone] = i;
+                    keys[lone++] = cipher.encryptionKey();
+                } else {
+                    chain(s, batch, 0);
+                    s.alone.encryptBlock(batch, batch);
+                    store(s, batch, 0);
+                }
+                continue;
+            }
+            for (int b = i; b < j; b += AESCipher.BATCH) {
+                int m = Math.min(AESCipher.BATCH, j - b);
+                for (int k = 0; k < m; k++) {
+                    chain(open[b + k], batch, 4 * k);
+                }
+                cipher.encryptBlocks(batch, batch, m);
+                for (int k = 0; k < m; k++) {
+                    store(open[b + k], batch, 4 * k);
+                }
+            }
+        }
+        for (int k = 0; k < lone; k++) {
+            TTableAES.encryptBlock(keys[k], words, 4 * k, words, 4 * k);
+        }
+        for (int k = 0; k < lone; k++) {
+            store(open[at[k]], words, 4 * k);
+        }
+    }
+
+    /**
+     * Puts the next block of s, XORed with its chaining block, in words at off.
+     */
+    private static void chain(Stream s, int[] words, int off) {
+        for (int w = 0; w < 4; w++) {
+            words[off + w] = s.buf.getInt(s.pos + 4 * w) ^ s.chain[w];
+        }
+    }
+
+    /**
+     * Stores the encrypted block at words[off] as the next block of s and its chaining block.
+     */
+    private static void store(Stream s, int[] words, int off) {
+        for (int w = 0; w < 4; w++) {
+            s.chain[w] = words[off + w];
+            s.buf.putInt(s.pos + 4 * w, words[off + w]);
+        }
+        s.pos += 16;
+    }
+
+    /**
+     * Opens the files of a stream and reads its first buffer.
+     * @return false if the stream failed.
+     */
+    private static boolean open(Stream s) {
+        s.start = System.nanoTime();
+        s.metrics = AESMetrics.start(s.job);
+        try {
+            s.in = new FileInputStream(s.job.inputFile).getChannel();
+            s.out = new FileOutputStream(s.job.outputFile()).getChannel();
+            s.buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            fill(s);
+            return true;
+        } catch (IOException e) {
+            close(s, e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the buffer of a stream whose blocks are all encrypted, and reads the next.
+     * @return false if the stream is done or failed.
+     */
+    private static boolean advance(Stream s) {
+        try {
+            long start = AESMetrics.time();
+            s.buf.position(0);
+            s.buf.limit(s.end);
+            BinaryFile.drain(s.out, s.buf);
+            long written = AESMetrics.time();
+            AESMetrics.attach(s.metrics);
+            AESMetrics.chunk(0, s.readNanos, s.readNanos + s.cipherNanos, s.readNanos + s.cipherNanos + written - start, s.end / 16);
+            s.cipherNanos = 0;
+            if (s.eof) {
+                close(s, null);
+                return false;
+            }
+            fill(s);
+            return true;
+        } catch (IOException e) {
+            close(s, e);
+            return false;
+        }
+    }
+
+    private static void fill(Stream s) throws IOException {
+        long start = AESMetrics.time();
+        ByteBuffer buf = s.buf;
+        buf.clear();
+        buf.limit(BUFFER_SIZE - 16); //Leaves room for the padding block.
+        s.eof = BinaryFile.fill(s.in, buf);
+        int end = buf.position();
+        if (s.eof) {
+            int pad = 16 - end % 16;
+            buf.limit(end + pad);
+            for (int i = 0; i < pad; i++) {
+                buf.put((byte) pad);
+            }
+            end += pad;
+        }
+        s.pos = 0;
+        s.end = end;
+        s.readNanos = AESMetrics.time() - start;
+    }
+
+    /**
+     * Closes the files of a stream and completes its result.
+     * @param failure what stopped the stream, or null if it is done.
+     */
+    private static void close(Stream s, Throwable failure) {
+        try {
+            if (s.in != null) {
+                s.in.close();
+            }
+            if (s.out != null) {
+                s.out.close();
+            }
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        s.buf = null;
+        AESMetrics.attach(s.metrics);
+        AESMetrics.finish(s.metrics, s.job, failure == null);
+        if (failure == null) {
+            s.result.complete(System.nanoTime() - s.start);
+        } else {
+            s.result.completeExceptionally(failure);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * AES-CMAC (NIST SP 800-38B, RFC 4493): a CBC-MAC whose last block is XORed with one of two
+ * subkeys derived from the encryption of the zero block, K1 if the message ends on a block
+ * boundary and K2 if the last block had to be padded with 10*. This makes the tag safe for
+ * messages of any length, which a plain CBC-MAC is not.
+ *
+ * One CMAC object handles one message: call update() on consecutive runs of it, of any
+ * length, then tag(). The last block seen is held back until the next update() or tag(),
+ * because until then it is not known whether it is the last.
+ *
+ * BinaryFile uses this to add a tag of the encrypted data to a bin file (-mac) in the same
+ * pass as the encryption, and to check it in the same pass as the decryption. That tag is
+ * made with fileKey(), not with the encryption key itself.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class CMAC {
+
+    /**
+     * Length in bytes of the tag.
+     */
+    public static final int TAG_LENGTH = 16;
+
+    /**
+     * Label of the key derivation in fileKey().
+     */
+    private static final byte[] LABEL = {'A', 'E', 'S', ' ', 'f', 'i', 'l', 'e', ' ', 'C', 'M', 'A', 'C'};
+
+    private final AESCipher cipher;
+    private final int[] k1 = new int[4];
+    private final int[] k2 = new int[4];
+    private final int[] x = new int[4]; //The CBC-MAC state.
+    private final byte[] last = new byte[16]; //The block held back.
+    private int held; //Bytes in last.
+
+    /**
+     * Starts a message.
+     * @param cipher the expanded key.
+     */
+    public CMAC(AESCipher cipher) {
+        this.cipher = cipher;
+        cipher.encryptBlock(k1, k1);
+        dbl(k1);
+        System.arraycopy(k1, 0, k2, 0, 4);
+        dbl(k2);
+    }
+
+    /**
+     * Multiplies the 128-bit big-endian number in w by x in GF(2^128).
+     */
+    private static void dbl(int[] w) {
+        int carry = w[0] >> 31;
+        for (int i = 0; i < 3; i++) {
+            w[i] = w[i] << 1 | w[i + 1] >>> 31;
+        }
+        w[3] = w[3] << 1 ^ (carry & 0x87);
+    }
+
+    /**
+     * Adds the bytes of buf between from and to. The position of buf is not used.
+     */
+    public void update(ByteBuffer buf, int from, int to) {
+        int p = from;
+        while (p < to) {
+            if (held == 16) {
+                ByteBuffer b = ByteBuffer.wrap(last);
+                for (int i = 0; i < 4; i++) {
+                    x[i] ^= b.getInt(4 * i);
+                }
+                cipher.encryptBlock(x, x);
+                held = 0;
+            }
+            if (held == 0) {
+                for (; to - p > 16; p += 16) { //Whole blocks that are not the last so far.
+                    for (int i = 0; i < 4; i++) {
+                        x[i] ^= buf.getInt(p + 4 * i);
+                    }
+                    cipher.encryptBlock(x, x);
+                }
+            }
+            for (; p < to && held < 16; p++) {
+                last[held++] = buf.get(p);
+            }
+        }
+    }
+
+    /**
+     * Adds len bytes of b at off.
+     */
+    public void update(byte[] b, int off, int len) {
+        update(ByteBuffer.wrap(b), off, off + len);
+    }
+
+    /**
+     * Finishes the message.
+     * @return the 16-byte tag.
+     */
+    public byte[] tag() {
+        int[] k = held == 16 ? k1 : k2;
+        if (held < 16) {
+            last[held] = (byte) 0x80;
+            for (int i = held + 1; i < 16; i++) {
+                last[i] = 0;
+            }
+        }
+        ByteBuffer b = ByteBuffer.wrap(last);
+        int[] t = new int[4];
+        for (int i = 0; i < 4; i++) {
+            t[i] = x[i] ^ b.getInt(4 * i) ^ k[i];
+        }
+        cipher.encryptBlock(t, t);
+        ByteBuffer tag = ByteBuffer.allocate(TAG_LENGTH);
+        for (int i = 0; i < 4; i++) {
+            tag.putInt(t[i]);
+        }
+        return tag.array();
+    }
+
+    /**
+     * Derives the key of the tags of -mac files from the encryption key, so that the same
+     * key is not used both to encrypt and to MAC. The derivation is the counter mode KDF of
+     * NIST SP 800-108 with CMAC as its function: block i of the new key is the CMAC of
+     * i || "AES file CMAC" || 0 || the key length in bits.
+     * @param cipher the encryption key.
+     * @return the MAC key, as long as the encryption key, on the same engine.
+     */
+    public static AESCipher fileKey(AESCipher cipher) {
+        byte[] key = cipher.key();
+        ByteBuffer input = ByteBuffer.allocate(1 + LABEL.length + 1 + 4);
+        input.put((byte) 0).put(LABEL).put((byte) 0).putInt(8 * key.length);
+        byte[] derived = new byte[key.length];
+        for (int i = 0; i < derived.length / 16; i++) {
+            input.put(0, (byte) (i + 1));
+            CMAC mac = new CMAC(cipher);
+            mac.update(input.array(), 0, input.capacity());
+            System.arraycopy(mac.tag(), 0, derived, 16 * i, 16);
+        }
+        return AESCipher.getInstance(derived).withEngine(cipher.getEngine());
+    }
+
+    /**
+     * Computes the CMAC of a whole file with the key as it is (java AES mac).
+     * @param cipher the expanded key.
+     * @param inputFile name of the file.
+     * @return the 16-byte tag.
+     * @throws IOException if the file cannot be read.
+     */
+    public static byte[] macFile(AESCipher cipher, String inputFile) throws IOException {
+        CMAC mac = new CMAC(cipher);
+        FileChannel in = new FileInputStream(inputFile).getChannel();
+        try {
+            ByteBuffer buf = ByteBuffer.allocateDirect(BinaryFile.BUFFER_SIZE);
+            boolean eof = false;
+            while (!eof) {
+                long start = AESMetrics.time();
+                buf.clear();
+                eof = BinaryFile.fill(in, buf);
+                long read = AESMetrics.time();
+                mac.update(buf, 0, buf.position());
+                long maced = AESMetrics.time();
+                AESMetrics.chunk(start, read, maced, maced, (buf.position() + 15) / 16);
+            }
+        } finally {
+            in.close();
+        }
+        return mac.tag();
+    }
+}
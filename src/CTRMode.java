@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Counter mode. The keystream for block n is the encryption of the initialization vector
+ * plus n, taken as a 128-bit big-endian number, so any byte of the stream can be
+ * processed without the bytes before it. Encryption and decryption are the same
+ * operation, no padding is needed, and a file is split into chunks that are processed
+ * in parallel on a ForkJoinPool.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class CTRMode {
+
+    /**
+     * Bytes processed by one task before it stops splitting. Can be set with -Daes.ctr.chunk.
+     */
+    public static final int CHUNK_SIZE = Math.max(16, Integer.getInteger("aes.ctr.chunk", 256 << 10) & ~15);
+
+    private CTRMode() {
+        //Only static methods.
+    }
+
+    /**
+     * Sets out to the counter block for block n of the stream.
+     * @param iv the initial counter block as four words.
+     * @param n the block index.
+     * @param out receives the four words of iv + n.
+     */
+    public static void counterAt(int[] iv, long n, int[] out) {
+        long low = ((long) iv[2] << 32 | (iv[3] & 0xffffffffL)) + n;
+        long high = (long) iv[0] << 32 | (iv[1] & 0xffffffffL);
+        if (Long.compareUnsigned(low, n) < 0) {
+            high++;
+        }
+        out[0] = (int) (high >>> 32);
+        out[1] = (int) high;
+        out[2] = (int) (low >>> 32);
+        out[3] = (int) low;
+    }
+
+    /**
+     * XORs the keystream into the bytes of src between from and to, writing the result to
+     * the same offsets of dst. src and dst may be the same buffer.
+     * @param cipher the expanded key.
+     * @param iv the initial counter block as four words.
+     * @param offset position in the stream of the byte at from; need not be a multiple of 16.
+     * @param src the input bytes.
+     * @param dst receives the output bytes.
+     * @param from offset of the first byte in the buffers.
+     * @param to offset after the last byte in the buffers.
+     */
+    public static void crypt(AESCipher cipher, int[] iv, long offset, ByteBuffer src, ByteBuffer dst, int from, int to) {
+        int[] ctr = new int[4];
+        int[] ks = new int[4 * AESCipher.BATCH];
+        counterAt(iv, offset >>> 4, ctr);
+        int skip = (int) (offset & 15);
+        int p = from;
+        while (p < to) {
+            int n = Math.min(AESCipher.BATCH, (skip + to - p + 15) / 16); //Keystream blocks still needed, up to a batch.
+            for (int b = 0; b < 4 * n; b += 4) {
+                System.arraycopy(ctr, 0, ks, b, 4);
+                for (int i = 3; i >= 0 && ++ctr[i] == 0; i--) {
+                    //Carries into the next word.
+                }
+            }
+            cipher.encryptBlocks(ks, ks, n);
+            for (int b = 0; b < 4 * n; b += 4) {
+                if (skip == 0 && to - p >= 16) {
+                    for (int i = 0; i < 4; i++) {
+                        dst.putInt(p + 4 * i, src.getInt(p + 4 * i) ^ ks[b + i]);
+                    }
+                    p += 16;
+                } else {
+                    for (int j = skip; j < 16 && p < to; j++, p++) {
+                        dst.put(p, (byte) (src.get(p) ^ (ks[b + (j >> 2)] >>> (24 - 8 * (j & 3)))));
+                    }
+                    skip = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Array form of crypt().
+     */
+    public static void crypt(AESCipher cipher, int[] iv, long offset, byte[] in, int inOff, byte[] out, int outOff, int len) {
+        ByteBuffer src = ByteBuffer.wrap(in, inOff, len).slice();
+        ByteBuffer dst = ByteBuffer.wrap(out, outOff, len).slice();
+        crypt(cipher, iv, offset, src, dst, 0, len);
+    }
+
+    /**
+     * Same as crypt(), with the range split into chunks that run on pool.
+     */
+    public static void cryptParallel(ForkJoinPool pool, AESCipher cipher, int[] iv, long offset, ByteBuffer src, ByteBuffer dst, int from, int to) {
+        pool.invoke(new Chunk(cipher, iv, offset, src, dst, from, to));
+    }
+
+    /**
+     * Encrypts or decrypts a whole file. The output is the same length as the input.
+     * @param pool the pool the chunks run on.
+     * @param cipher the expanded key.
+     * @param iv the initial counter block as four words.
+     * @param inputFile name of the file to read.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written.
+     */
+    public static void cryptFile(ForkJoinPool pool, AESCipher cipher, int[] iv, String inputFile, String outputFile) throws IOException {
+        RandomAccessFile inFile = new RandomAccessFile(inputFile, "r");
+        try {
+            RandomAccessFile outFile = new RandomAccessFile(outputFile, "rw");
+            try {
+                FileChannel in = inFile.getChannel();
+                FileChannel out = outFile.getChannel();
+                long length = in.size();
+                outFile.setLength(length);
+                for (long pos = 0; pos < length; pos += MappedFile.WINDOW_SIZE) {
+                    long start = AESMetrics.time();
+                    int size = (int) Math.min(MappedFile.WINDOW_SIZE, length - pos);
+                    MappedByteBuffer src = in.map(FileChannel.MapMode.READ_ONLY, pos, size);
+                    MappedByteBuffer dst = out.map(FileChannel.MapMode.READ_WRITE, pos, size);
+                    long read = AESMetrics.time();
+                    cryptParallel(pool, cipher, iv, pos, src, dst, 0, size);
+                    long crypted = AESMetrics.time();
+                    AESMetrics.chunk(start, read, crypted, crypted, (size + 15) / 16); //As in MappedFile, page I/O counts as cipher time.
+                }
+            } finally {
+                outFile.close();
+            }
+        } finally {
+            inFile.close();
+        }
+    }
+
+    /**
+     * Halves its range until it is at most CHUNK_SIZE bytes, then runs crypt() on it.
+     */
+    private static class Chunk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final AESCipher cipher;
+        private final int[] iv;
+        private final long offset;
+        private final ByteBuffer src, dst;
+        private final int from, to;
+
+        Chunk(AESCipher cipher, int[] iv, long offset, ByteBuffer src, ByteBuffer dst, int from, int to) {
+            this.cipher = cipher;
+            this.iv = iv;
+            this.offset = offset;
+            this.src = src;
+            this.dst = dst;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_SIZE) {
+                crypt(cipher, iv, offset, src, dst, from, to);
+                return;
+            }
+            int mid = from + ((to - from) / 2 & ~15);
+            invokeAll(new Chunk(cipher, iv, offset, src, dst, from, mid),
+                    new Chunk(cipher, iv, offset + (mid - from), src, dst, mid, to));
+        }
+    }
+}
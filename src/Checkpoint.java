@@ -0,0 +1,190 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Checkpoints of a long bin encryption (-checkpoint and -resume), kept in a sidecar file
+ * named [outputFile].ckpt. Every interval bytes, the output is forced to disk and then the
+ * sidecar is replaced with the input offset, the output offset and the chaining block
+ * reached, so that it never describes output that could still be lost. With -resume, an
+ * existing sidecar is checked against the key, IV, mode and files, the output is
+ * truncated to its output offset, and encryption continues from its input offset with its
+ * chaining block; the result is identical to a run that was never interrupted. The
+ * sidecar is deleted when the file is complete.
+ *
+ * Sidecar layout, big-endian: the 8 bytes "AESCKPT1", byte mode (0 ECB, 1 CBC), long
+ * input offset, long output offset, the 16-byte chaining block, the 16-byte IV, an 8-byte
+ * key check value (the start of the encryption of a zero block), and a CRC-32 of all of it.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class Checkpoint {
+
+    /**
+     * Bytes between checkpoints when -resume is given without -checkpoint.
+     */
+    public static final long DEFAULT_INTERVAL = 64L << 20;
+
+    private static final long MAGIC = 0x414553434b505431L; //"AESCKPT1"
+    private static final int SIZE = 8 + 1 + 8 + 8 + 16 + 16 + 8 + 4;
+
+    private final File file;
+    private final long interval;
+    private final byte[] header; //Mode, IV and key check value, the same in every checkpoint.
+    private long inputOffset;
+    private long outputOffset;
+    private int[] chain;
+    private long next;
+
+    private Checkpoint(File file, long interval, AES.Mode mode, AESCipher cipher, int[] iv) {
+        this.file = file;
+        this.interval = interval;
+        ByteBuffer h = ByteBuffer.allocate(1 + 16 + 8);
+        h.put((byte) mode.ordinal());
+        for (int i = 0; i < 4; i++) {
+            h.putInt(iv == null ? 0 : iv[i]);
+        }
+        int[] check = new int[4];
+        cipher.encryptBlock(check, check);
+        h.putInt(check[0]).putInt(check[1]);
+        header = h.array();
+        chain = iv == null ? null : iv.clone();
+        next = interval;
+    }
+
+    /**
+     * Sets up checkpoints for a job, reading the sidecar if the job resumes and there is one.
+     * @param job the job; its checkpoint interval or resume flag is set.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @return the checkpoint state, at offset 0 unless an earlier run is resumed.
+     * @throws IOException if the sidecar cannot be read, or does not belong to this key,
+     *         IV, mode and pair of files.
+     */
+    public static Checkpoint open(AESJob job, AESCipher cipher, int[] iv) throws IOException {
+        Checkpoint c = new Checkpoint(new File(job.outputFile() + ".ckpt"), job.checkpoint > 0 ? job.checkpoint : DEFAULT_INTERVAL, job.mode, cipher, iv);
+        if (job.resume && c.file.exists()) {
+            c.read(job);
+        }
+        return c;
+    }
+
+    private void read(AESJob job) throws IOException {
+        byte[] b = Files.readAllBytes(file.toPath());
+        ByteBuffer buf = ByteBuffer.wrap(b);
+        CRC32 crc = new CRC32();
+        crc.update(b, 0, Math.max(0, b.length - 4));
+        if (b.length != SIZE || buf.getLong(0) != MAGIC || buf.getInt(SIZE - 4) != (int) crc.getValue()) {
+            throw new IOException("Error: " + file + " is not a valid checkpoint.");
+        }
+        if (!Arrays.equals(Arrays.copyOfRange(b, 8, 9), Arrays.copyOfRange(header, 0, 1))
+                || !Arrays.equals(Arrays.copyOfRange(b, 41, 57), Arrays.copyOfRange(header, 1, 17))
+                || !Arrays.equals(Arrays.copyOfRange(b, 57, 65), Arrays.copyOfRange(header, 17, 25))) {
+            throw new IOException("Error: " + file + " was made with another key, IV or mode.");
+        }
+        inputOffset = buf.getLong(9);
+        outputOffset = buf.getLong(17);
+        int[] saved = new int[4];
+        for (int i = 0; i < 4; i++) {
+            saved[i] = buf.getInt(25 + 4 * i);
+        }
+        if (inputOffset < 0 || outputOffset < 0 || inputOffset > new File(job.inputFile).length() || outputOffset > new File(job.outputFile()).length()) {
+            throw new IOException("Error: " + file + " does not match the input and output files.");
+        }
+        if (chain != null) {
+            chain = saved;
+            if (outputOffset > 0 && !Arrays.equals(chain, lastBlock(job.outputFile(), outputOffset))) {
+                throw new IOException("Error: " + file + " does not match the output file.");
+            }
+        }
+        next = inputOffset + interval;
+    }
+
+    private static int[] lastBlock(String outputFile, long end) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(outputFile, "r");
+        try {
+            f.seek(end - 16);
+            int[] block = new int[4];
+            for (int i = 0; i < 4; i++) {
+                block[i] = f.readInt();
+            }
+            return block;
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * @return the input offset to continue from.
+     */
+    public long inputOffset() {
+        return inputOffset;
+    }
+
+    /**
+     * @return the output offset to continue from.
+     */
+    public long outputOffset() {
+        return outputOffset;
+    }
+
+    /**
+     * @return the chaining block to continue with, or null for ECB. Callers may update it.
+     */
+    public int[] chain() {
+        return chain;
+    }
+
+    /**
+     * Records a checkpoint if interval bytes have been read since the last one. The output
+     * is forced to disk first.
+     * @param out the output channel.
+     * @param inputOffset the input bytes encrypted so far.
+     * @param outputOffset the output bytes written so far.
+     * @param chain the chaining block for the next byte of input, or null for ECB.
+     * @throws IOException if the output or the sidecar cannot be written.
+     */
+    public void reached(FileChannel out, long inputOffset, long outputOffset, int[] chain) throws IOException {
+        if (inputOffset < next) {
+            return;
+        }
+        out.force(false);
+        ByteBuffer buf = ByteBuffer.allocate(SIZE);
+        buf.putLong(MAGIC).put(header, 0, 1).putLong(inputOffset).putLong(outputOffset);
+        for (int i = 0; i < 4; i++) {
+            buf.putInt(chain == null ? 0 : chain[i]);
+        }
+        buf.put(header, 1, 24);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, SIZE - 4);
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile f = new RandomAccessFile(tmp, "rw");
+        try {
+            f.setLength(0);
+            f.getChannel().write(buf);
+            f.getChannel().force(true);
+        } finally {
+            f.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        this.inputOffset = inputOffset;
+        this.outputOffset = outputOffset;
+        next = inputOffset + interval;
+    }
+
+    /**
+     * Deletes the sidecar once the file is complete.
+     */
+    public void finish() {
+        file.delete();
+    }
+}
@@ -0,0 +1,385 @@
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Chunked container format (-format chunked): the plaintext is cut into chunks of
+ * CHUNK_SIZE bytes, and each chunk is encrypted in CBC mode on its own, with a random IV
+ * and PKCS#7 padding. An index of chunk offsets and lengths at the end of the file lets a
+ * reader decrypt any byte range by reading only the chunks that hold it, and lets whole
+ * files be encrypted and decrypted in parallel, one chunk per task. The IV line of the key
+ * file is not used.
+ *
+ * Layout, with big-endian integers:
+ * header: the 8 bytes "AESCHUNK", int version (1), int chunk size;
+ * chunks: for each chunk, its 16-byte IV followed by its padded ciphertext;
+ * index: for each chunk, long offset of its IV and int plaintext length;
+ * trailer: long offset of the index, int number of chunks, the 4 bytes "AESI".
+ *
+ * Every chunk but the last holds exactly the chunk size given in the header. As in CBC
+ * files, nothing is authenticated: a modified chunk decrypts to garbage or fails its
+ * padding check, but is not otherwise detected.
+ *
+ * An instance is a reader over one container; read() may be called from any thread.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class ChunkedFile implements Closeable {
+
+    /**
+     * Plaintext bytes per chunk when encrypting. Can be set with -Daes.chunk.size, rounded
+     * down to whole blocks.
+     */
+    public static final int CHUNK_SIZE = Math.max(16, Math.min(1 << 30, Integer.getInteger("aes.chunk.size", 1 << 20)) & ~15);
+
+    private static final long MAGIC = 0x4145534348554e4bL; //"AESCHUNK"
+    private static final int INDEX_MAGIC = 0x41455349; //"AESI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int TRAILER_SIZE = 16;
+    private static final int ENTRY_SIZE = 12;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final AESCipher cipher;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int chunkSize;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final long length;
+    private final ByteBuffer buf; //The chunk last decrypted, at offset 16.
+    private int cached = -1;
+
+    /**
+     * Opens a container and reads its index.
+     * @param cipher the expanded key.
+     * @param fileName name of the container.
+     * @throws IOException if the file cannot be read or is not a valid container.
+     */
+    public ChunkedFile(AESCipher cipher, String fileName) throws IOException {
+        this.cipher = cipher;
+        file = new RandomAccessFile(fileName, "r");
+        try {
+            channel = file.getChannel();
+            long size = channel.size();
+            ByteBuffer header = readAt(channel, 0, Math.min(HEADER_SIZE, (int) size));
+            if (size < HEADER_SIZE + TRAILER_SIZE || header.getLong(0) != MAGIC) {
+                throw new IOException("Error: " + fileName + " is not a chunked container.");
+            }
+            if (header.getInt(8) != VERSION) {
+                throw new IOException("Error: Unsupported chunked container version " + header.getInt(8) + ".");
+            }
+            chunkSize = header.getInt(12);
+            ByteBuffer trailer = readAt(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+            long indexOffset = trailer.getLong(0);
+            int chunks = trailer.getInt(8);
+            long indexSize = (long) chunks * ENTRY_SIZE; //From the trailer, so checked before anything is allocated for it.
+            if (trailer.getInt(12) != INDEX_MAGIC || chunkSize < 16 || chunkSize > 1 << 30 || chunkSize % 16 != 0 || chunks < 0
+                    || indexSize > Math.min(Integer.MAX_VALUE, size - HEADER_SIZE - TRAILER_SIZE) || indexOffset != size - TRAILER_SIZE - indexSize) {
+                throw new IOException("Error: The index of " + fileName + " is damaged.");
+            }
+            ByteBuffer index = readAt(channel, indexOffset, (int) indexSize);
+            offsets = new long[chunks];
+            lengths = new int[chunks];
+            long total = 0;
+            for (int i = 0; i < chunks; i++) {
+                offsets[i] = index.getLong(i * ENTRY_SIZE);
+                lengths[i] = index.getInt(i * ENTRY_SIZE + 8);
+                boolean last = i == chunks - 1;
+                if (lengths[i] < 0 || lengths[i] > chunkSize || (!last && lengths[i] != chunkSize)
+                        || offsets[i] < HEADER_SIZE || offsets[i] + recordSize(lengths[i]) > indexOffset) {
+                    throw new IOException("Error: The index of " + fileName + " is damaged.");
+                }
+                total += lengths[i];
+            }
+            length = total;
+            buf = ByteBuffer.allocate(recordSize(chunkSize));
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the length of the plaintext.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Decrypts plaintext bytes starting at position, reading only the chunks that hold them.
+     * @param position offset in the plaintext.
+     * @param b receives the bytes.
+     * @param off offset in b.
+     * @param len the number of bytes wanted.
+     * @return the number of bytes read, less than len only at the end of the plaintext, or
+     *         -1 if position is at or after the end.
+     * @throws IOException if the file cannot be read or a chunk has invalid padding.
+     */
+    public synchronized int read(long position, byte[] b, int off, int len) throws IOException {
+        if (position < 0 || off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (position >= length) {
+            return -1;
+        }
+        int done = 0;
+        while (done < len && position < length) {
+            int chunk = (int) (position / chunkSize);
+            int start = (int) (position % chunkSize);
+            if (chunk != cached) {
+                cached = -1;
+                decryptChunk(cipher, channel, offsets[chunk], lengths[chunk], buf);
+                cached = chunk;
+            }
+            int n = Math.min(len - done, lengths[chunk] - start);
+            System.arraycopy(buf.array(), 16 + start, b, off + done, n);
+            done += n;
+            position += n;
+        }
+        return done;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Encrypts a whole file into a container.
+     * @param pool the pool the chunks are encrypted on.
+     * @param cipher the expanded key.
+     * @param inputFile name of the plaintext file.
+     * @param outputFile name of the container to write.
+     * @throws IOException if either file cannot be read or written.
+     */
+    public static void encrypt(ForkJoinPool pool, AESCipher cipher, String inputFile, String outputFile) throws IOException {
+        FileChannel in = new FileInputStream(inputFile).getChannel();
+        try {
+            RandomAccessFile outFile = new RandomAccessFile(outputFile, "rw");
+            try {
+                outFile.setLength(0);
+                FileChannel out = outFile.getChannel();
+                long size = in.size();
+                int chunks = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putLong(MAGIC).putInt(VERSION).putInt(CHUNK_SIZE).flip();
+                writeAt(out, header, 0);
+                invoke(pool, new Chunks(cipher, in, out, size, null, null, CHUNK_SIZE, 0, chunks, grain(pool, chunks)));
+
+                long indexOffset = HEADER_SIZE + (long) chunks * recordSize(CHUNK_SIZE);
+                if (chunks > 0) {
+                    indexOffset += recordSize(chunkLength(size, chunks - 1)) - recordSize(CHUNK_SIZE);
+                }
+                ByteBuffer index = ByteBuffer.allocate(chunks * ENTRY_SIZE + TRAILER_SIZE);
+                for (int i = 0; i < chunks; i++) {
+                    index.putLong(recordOffset(i)).putInt(chunkLength(size, i));
+                }
+                index.putLong(indexOffset).putInt(chunks).putInt(INDEX_MAGIC).flip();
+                writeAt(out, index, indexOffset);
+            } finally {
+                outFile.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decrypts a whole container.
+     * @param pool the pool the chunks are decrypted on.
+     * @param cipher the expanded key.
+     * @param inputFile name of the container.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written, or the container is invalid.
+     */
+    public static void decrypt(ForkJoinPool pool, AESCipher cipher, String inputFile, String outputFile) throws IOException {
+        ChunkedFile container = new ChunkedFile(cipher, inputFile);
+        try {
+            RandomAccessFile outFile = new RandomAccessFile(outputFile, "rw");
+            try {
+                outFile.setLength(container.length);
+                int chunks = container.offsets.length;
+                invoke(pool, new Chunks(cipher, container.channel, outFile.getChannel(), container.length, container.offsets, container.lengths,
+                        container.chunkSize, 0, chunks, grain(pool, chunks)));
+            } finally {
+                outFile.close();
+            }
+        } finally {
+            container.close();
+        }
+    }
+
+    /**
+     * @return the number of chunks one task runs: about four tasks per thread.
+     */
+    private static int grain(ForkJoinPool pool, int chunks) {
+        return Math.max(1, chunks / (4 * pool.getParallelism()));
+    }
+
+    /**
+     * @return the size of the record of a chunk holding length bytes: IV and padded ciphertext.
+     */
+    private static int recordSize(int length) {
+        return 16 + (length / 16 + 1) * 16;
+    }
+
+    /**
+     * @return the offset of the record of chunk i, when every chunk before it is full.
+     */
+    private static long recordOffset(int i) {
+        return HEADER_SIZE + (long) i * recordSize(CHUNK_SIZE);
+    }
+
+    /**
+     * @return the plaintext length of chunk i of a file of size bytes.
+     */
+    private static int chunkLength(long size, int i) {
+        return (int) Math.min(CHUNK_SIZE, size - (long) i * CHUNK_SIZE);
+    }
+
+    /**
+     * Reads, pads and encrypts one chunk into buf, leaving its record between 0 and the limit.
+     */
+    private static void encryptChunk(AESCipher cipher, FileChannel in, long position, int length, ByteBuffer buf) throws IOException {
+        buf.clear();
+        buf.position(16);
+        buf.limit(16 + length);
+        while (buf.hasRemaining()) {
+            if (in.read(buf, position + buf.position() - 16) < 0) {
+                throw new IOException("Error: The input file changed while it was encrypted.");
+            }
+        }
+        int size = recordSize(length);
+        int pad = size - 16 - length;
+        buf.limit(size);
+        for (int i = 16 + length; i < size; i++) {
+            buf.put(i, (byte) pad);
+        }
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        buf.position(0);
+        buf.put(iv);
+        int[] chain = new int[4];
+        for (int i = 0; i < 4; i++) {
+            chain[i] = buf.getInt(4 * i);
+        }
+        BinaryFile.encryptBlocks(cipher, chain, buf, 16, size);
+        buf.position(0);
+    }
+
+    /**
+     * Reads and decrypts the record of one chunk into buf, leaving its plaintext at offset 16.
+     * @throws IOException if the record cannot be read or its padding does not match length.
+     */
+    private static void decryptChunk(AESCipher cipher, FileChannel in, long offset, int length, ByteBuffer buf) throws IOException {
+        int size = recordSize(length);
+        buf.clear();
+        buf.limit(size);
+        while (buf.hasRemaining()) {
+            if (in.read(buf, offset + buf.position()) < 0) {
+                throw new IOException("Error: Chunked container is truncated.");
+            }
+        }
+        int[] chain = new int[4];
+        for (int i = 0; i < 4; i++) {
+            chain[i] = buf.getInt(4 * i);
+        }
+        BinaryFile.decryptBlocks(cipher, chain, buf, 16, size);
+        if (BinaryFile.padding(buf, size) != size - 16 - length) {
+            throw new IOException("Error: Invalid padding in encrypted file.");
+        }
+    }
+
+    private static ByteBuffer readAt(FileChannel in, long position, int length) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(length);
+        while (b.hasRemaining()) {
+            if (in.read(b, position + b.position()) < 0) {
+                throw new IOException("Error: Chunked container is truncated.");
+            }
+        }
+        return b;
+    }
+
+    private static void writeAt(FileChannel out, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += out.write(buf, position);
+        }
+    }
+
+    /**
+     * Runs a task on pool, passing on the IOException it failed with.
+     */
+    private static void invoke(ForkJoinPool pool, Chunks task) throws IOException {
+        try {
+            pool.invoke(task);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Halves a range of chunks until it is small enough to keep every thread of the pool
+     * busy, then encrypts or decrypts its chunks one after another with one buffer.
+     */
+    private static class Chunks extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final AESCipher cipher;
+        private final FileChannel in, out;
+        private final long size; //Encrypting: the plaintext size.
+        private final long[] offsets; //Decrypting: the index; null when encrypting.
+        private final int[] lengths;
+        private final int chunkSize;
+        private final int from, to, grain;
+
+        Chunks(AESCipher cipher, FileChannel in, FileChannel out, long size, long[] offsets, int[] lengths, int chunkSize, int from, int to, int grain) {
+            this.cipher = cipher;
+            this.in = in;
+            this.out = out;
+            this.size = size;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.chunkSize = chunkSize;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > grain) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Chunks(cipher, in, out, size, offsets, lengths, chunkSize, from, mid, grain),
+                        new Chunks(cipher, in, out, size, offsets, lengths, chunkSize, mid, to, grain));
+                return;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(recordSize(chunkSize));
+            try {
+                for (int i = from; i < to; i++) {
+                    if (offsets == null) {
+                        encryptChunk(cipher, in, (long) i * chunkSize, chunkLength(size, i), buf);
+                        writeAt(out, buf, recordOffset(i));
+                    } else {
+                        decryptChunk(cipher, in, offsets[i], lengths[i], buf);
+                        buf.position(16);
+                        buf.limit(16 + lengths[i]);
+                        writeAt(out, buf, (long) i * chunkSize);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A channel that reads from another channel and returns its data compressed, in the form
+ * that -compress encrypts: the data as raw Deflate, and a trailer.
+ *
+ * The trailer is TRAILER_SIZE bytes: the original length as a long and the CRC-32 of the
+ * original data, big endian. It is only known once the input ends, so the data streams
+ * through in pieces of INPUT_SIZE and nothing is held for the whole file; InflatingChannel
+ * reverses it.
+ *
+ * The compression flag is kept out of the encrypted data, so that no plaintext can be
+ * mistaken for it: BinaryFile writes header() in the clear before the encrypted blocks.
+ * The header is HEADER_SIZE bytes: MAGIC, the format VERSION, the compression flag
+ * (METHOD_DEFLATE), the level, a zero byte and the original length as a long.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class DeflatingChannel implements ReadableByteChannel {
+
+    /**
+     * "AESZ", the first bytes of compressed data.
+     */
+    public static final int MAGIC = 0x4145535a;
+
+    public static final int VERSION = 1;
+
+    /**
+     * The compression flag for raw Deflate (RFC 1951), the only method.
+     */
+    public static final int METHOD_DEFLATE = 8;
+
+    public static final int HEADER_SIZE = 16;
+
+    public static final int TRAILER_SIZE = 12;
+
+    private static final int INPUT_SIZE = 64 << 10; //Bytes read from the input at a time.
+
+    private final ReadableByteChannel in;
+    private final int level;
+    private final Deflater deflater;
+    private final byte[] input = new byte[INPUT_SIZE];
+    private final ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+    private final byte[] output = new byte[INPUT_SIZE]; //Deflater works on arrays; the caller's buffer may be direct.
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer trailer; //Set once the data is all compressed.
+    private long length; //Bytes read from the input.
+    private boolean eof;
+    private boolean open = true;
+
+    /**
+     * @param in where the data is read from.
+     * @param level the Deflate level, 0 (stored) to 9 (smallest).
+     */
+    public DeflatingChannel(ReadableByteChannel in, int level) {
+        this.in = in;
+        this.level = level;
+        deflater = new Deflater(level, true);
+    }
+
+    /**
+     * @return the header to write before the encrypted data, once all of it has been read.
+     */
+    public ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put((byte) VERSION).put((byte) METHOD_DEFLATE).put((byte) level).put((byte) 0).putLong(length).flip();
+        return header;
+    }
+
+    /**
+     * @param header the first HEADER_SIZE bytes of an encrypted file; the position is not used.
+     * @return the original length recorded in the header, or -1 if it is not a header.
+     */
+    public static long originalLength(ByteBuffer header) {
+        if (header.limit() < HEADER_SIZE || header.getInt(0) != MAGIC || header.get(4) != VERSION || header.get(5) != METHOD_DEFLATE
+                || header.get(6) < 0 || header.get(6) > 9 || header.get(7) != 0) {
+            return -1;
+        }
+        return Math.max(-1, header.getLong(8));
+    }
+
+    /**
+     * Reads at least one byte, unless the end of the data has been reached.
+     * @throws IOException if the input cannot be read.
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        while (!deflater.finished()) {
+            if (deflater.needsInput() && !eof) {
+                inputBuffer.clear();
+                int n = in.read(inputBuffer);
+                if (n < 0) {
+                    eof = true;
+                    deflater.finish();
+                } else if (n > 0) {
+                    crc.update(input, 0, n);
+                    length += n;
+                    deflater.setInput(input, 0, n);
+                }
+                continue;
+            }
+            int n = deflater.deflate(output, 0, Math.min(output.length, dst.remaining()));
+            if (n > 0) {
+                dst.put(output, 0, n);
+                return n;
+            }
+        }
+        if (trailer == null) {
+            trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putLong(length).putInt((int) crc.getValue()).flip();
+            deflater.end();
+        }
+        return trailer.hasRemaining() ? transfer(trailer, dst) : -1;
+    }
+
+    private static int transfer(ByteBuffer src, ByteBuffer dst) {
+        int n = Math.min(src.remaining(), dst.remaining());
+        for (int i = 0; i < n; i++) {
+            dst.put(src.get());
+        }
+        return n;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes the underlying channel.
+     */
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        deflater.end();
+        in.close();
+    }
+}
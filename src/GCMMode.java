@@ -0,0 +1,335 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Galois/Counter Mode: CTR encryption and a GHASH authentication tag computed in the same
+ * pass over the data. GHASH multiplies by the hash key H with Shoup's 4-bit method, using
+ * two 16-entry tables of multiples of H built once per message. The counter blocks are
+ * encrypted AESCipher.BATCH at a time, as in CTRMode, so GCM runs on the engine picked for
+ * batches.
+ *
+ * One GCMMode object handles one message: call updateAAD() for all additional data first,
+ * then encrypt() or decrypt() on consecutive runs of the message (every run except the last
+ * must be a multiple of 16 bytes long), then tag(). A key must never be used twice with the
+ * same IV, so encryptFile() draws a random 96-bit nonce for every file and stores it in
+ * front of the encrypted data.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class GCMMode {
+
+    /**
+     * Length in bytes of the tag appended to encrypted files.
+     */
+    public static final int TAG_LENGTH = 16;
+
+    /**
+     * Length in bytes of the random nonce that starts encrypted files.
+     */
+    public static final int NONCE_LENGTH = 12;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * Reduction constants for the four bits shifted out of the low end of the product.
+     */
+    private static final long[] LAST4 = {0x0000, 0x1c20, 0x3840, 0x2460, 0x7080, 0x6ca0, 0x48c0, 0x54e0,
+        0xe100, 0xfd20, 0xd940, 0xc560, 0x9180, 0x8da0, 0xa9c0, 0xb5e0};
+
+    private final AESCipher cipher;
+    private final long[] hh = new long[16]; //High halves of i * H for every 4-bit i.
+    private final long[] hl = new long[16]; //Low halves of i * H for every 4-bit i.
+    private final int[] j0 = new int[4];
+    private final int[] ctr = new int[4];
+    private final int[] ks = new int[4 * AESCipher.BATCH]; //Counter blocks, then their keystream.
+    private long y0, y1; //The GHASH accumulator.
+    private long aadLength, textLength;
+    private boolean aadDone;
+
+    /**
+     * Starts a message.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector; 12 bytes is the recommended length, others are hashed.
+     */
+    public GCMMode(AESCipher cipher, byte[] iv) {
+        this.cipher = cipher;
+        int[] h = new int[4];
+        cipher.encryptBlock(h, h);
+        long vh = (long) h[0] << 32 | (h[1] & 0xffffffffL);
+        long vl = (long) h[2] << 32 | (h[3] & 0xffffffffL);
+        hh[8] = vh;
+        hl[8] = vl;
+        for (int i = 4; i > 0; i >>= 1) {
+            long t = (vl & 1) != 0 ? 0xe100000000000000L : 0;
+            vl = (vh << 63) | (vl >>> 1);
+            vh = (vh >>> 1) ^ t;
+            hh[i] = vh;
+            hl[i] = vl;
+        }
+        for (int i = 2; i <= 8; i *= 2) {
+            for (int j = 1; j < i; j++) {
+                hh[i + j] = hh[i] ^ hh[j];
+                hl[i + j] = hl[i] ^ hl[j];
+            }
+        }
+
+        if (iv.length == 12) {
+            ByteBuffer b = ByteBuffer.wrap(iv);
+            j0[0] = b.getInt(0);
+            j0[1] = b.getInt(4);
+            j0[2] = b.getInt(8);
+            j0[3] = 1;
+        } else {
+            ghash(ByteBuffer.wrap(iv), 0, iv.length);
+            ghashBlock(0, (long) iv.length * 8);
+            j0[0] = (int) (y0 >>> 32);
+            j0[1] = (int) y0;
+            j0[2] = (int) (y1 >>> 32);
+            j0[3] = (int) y1;
+            y0 = 0;
+            y1 = 0;
+        }
+        System.arraycopy(j0, 0, ctr, 0, 4);
+    }
+
+    /**
+     * Adds additional authenticated data. Must be called before any encrypt() or decrypt(),
+     * and every call except the last must pass a multiple of 16 bytes.
+     * @param aad the data.
+     * @param off offset of the first byte.
+     * @param len number of bytes.
+     */
+    public void updateAAD(byte[] aad, int off, int len) {
+        if (aadDone) {
+            throw new IllegalStateException("Error: AAD must be supplied before the message.");
+        }
+        ghash(ByteBuffer.wrap(aad), off, off + len);
+        aadLength += len;
+    }
+
+    /**
+     * Encrypts the bytes of buf between from and to in place.
+     */
+    public void encrypt(ByteBuffer buf, int from, int to) {
+        aadDone = true;
+        keystream(buf, from, to);
+        ghash(buf, from, to);
+        textLength += to - from;
+    }
+
+    /**
+     * Decrypts the bytes of buf between from and to in place.
+     */
+    public void decrypt(ByteBuffer buf, int from, int to) {
+        aadDone = true;
+        ghash(buf, from, to);
+        keystream(buf, from, to);
+        textLength += to - from;
+    }
+
+    /**
+     * Finishes the message.
+     * @return the 16-byte authentication tag.
+     */
+    public byte[] tag() {
+        ghashBlock(aadLength * 8, textLength * 8);
+        int[] s = new int[4];
+        cipher.encryptBlock(j0, s);
+        ByteBuffer t = ByteBuffer.allocate(TAG_LENGTH);
+        t.putLong(y0 ^ ((long) s[0] << 32 | (s[1] & 0xffffffffL)));
+        t.putLong(y1 ^ ((long) s[2] << 32 | (s[3] & 0xffffffffL)));
+        return t.array();
+    }
+
+    /**
+     * XORs the CTR keystream into buf. Only the last word of the counter is incremented
+     * (inc32).
+     */
+    private void keystream(ByteBuffer buf, int from, int to) {
+        for (int p = from; p < to;) {
+            int n = Math.min(AESCipher.BATCH, (to - p + 15) / 16);
+            for (int b = 0; b < 4 * n; b += 4) {
+                ks[b] = ctr[0];
+                ks[b + 1] = ctr[1];
+                ks[b + 2] = ctr[2];
+                ks[b + 3] = ++ctr[3];
+            }
+            cipher.encryptBlocks(ks, ks, n);
+            for (int b = 0; b < 4 * n; b += 4, p += 16) {
+                if (to - p >= 16) {
+                    for (int i = 0; i < 4; i++) {
+                        buf.putInt(p + 4 * i, buf.getInt(p + 4 * i) ^ ks[b + i]);
+                    }
+                } else {
+                    for (int j = 0; p + j < to; j++) {
+                        buf.put(p + j, (byte) (buf.get(p + j) ^ (ks[b + (j >> 2)] >>> (24 - 8 * (j & 3)))));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Absorbs the bytes of buf between from and to, zero padding a final partial block.
+     */
+    private void ghash(ByteBuffer buf, int from, int to) {
+        for (int p = from; p < to; p += 16) {
+            if (to - p >= 16) {
+                ghashBlock(buf.getLong(p), buf.getLong(p + 8));
+            } else {
+                long x0 = 0, x1 = 0;
+                for (int j = 0; p + j < to; j++) {
+                    long b = buf.get(p + j) & 0xffL;
+                    if (j < 8) {
+                        x0 |= b << (56 - 8 * j);
+                    } else {
+                        x1 |= b << (56 - 8 * (j - 8));
+                    }
+                }
+                ghashBlock(x0, x1);
+            }
+        }
+    }
+
+    /**
+     * Y = (Y xor X) * H, taking the product four bits at a time from the last byte.
+     */
+    private void ghashBlock(long x0, long x1) {
+        x0 ^= y0;
+        x1 ^= y1;
+        int b = (int) x1 & 0xff;
+        long zh = hh[b & 0xf];
+        long zl = hl[b & 0xf];
+        for (int i = 15; i >= 0; i--) {
+            b = (int) ((i < 8 ? x0 >>> (56 - 8 * i) : x1 >>> (56 - 8 * (i - 8))) & 0xff);
+            if (i != 15) {
+                int rem = (int) zl & 0xf;
+                zl = (zh << 60) | (zl >>> 4);
+                zh = (zh >>> 4) ^ (LAST4[rem] << 48);
+                zh ^= hh[b & 0xf];
+                zl ^= hl[b & 0xf];
+            }
+            int rem = (int) zl & 0xf;
+            zl = (zh << 60) | (zl >>> 4);
+            zh = (zh >>> 4) ^ (LAST4[rem] << 48);
+            zh ^= hh[b >>> 4];
+            zl ^= hl[b >>> 4];
+        }
+        y0 = zh;
+        y1 = zl;
+    }
+
+    /**
+     * Encrypts a whole file under a new random nonce, which is written first, and appends
+     * the tag.
+     * @param cipher the expanded key.
+     * @param aad additional authenticated data, may be empty.
+     * @param inputFile name of the plaintext file.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written.
+     */
+    public static void encryptFile(AESCipher cipher, byte[] aad, String inputFile, String outputFile) throws IOException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        GCMMode gcm = new GCMMode(cipher, nonce);
+        gcm.updateAAD(aad, 0, aad.length);
+        FileChannel in = new FileInputStream(inputFile).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(outputFile).getChannel();
+            try {
+                BinaryFile.drain(out, ByteBuffer.wrap(nonce));
+                ByteBuffer buf = ByteBuffer.allocateDirect(BinaryFile.BUFFER_SIZE);
+                boolean eof = false;
+                while (!eof) {
+                    long start = AESMetrics.time();
+                    buf.clear();
+                    eof = BinaryFile.fill(in, buf);
+                    long read = AESMetrics.time();
+                    gcm.encrypt(buf, 0, buf.position());
+                    long crypted = AESMetrics.time();
+                    buf.flip();
+                    BinaryFile.drain(out, buf);
+                    AESMetrics.chunk(start, read, crypted, AESMetrics.time(), (buf.limit() + 15) / 16);
+                }
+                BinaryFile.drain(out, ByteBuffer.wrap(gcm.tag()));
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decrypts a whole file, using the nonce it starts with, and checks its tag. The
+     * plaintext is written to [outputFile].part, which is moved to outputFile only if the tag
+     * matches; otherwise it is deleted and an IOException is thrown, so no unverified
+     * plaintext is left under outputFile.
+     * @param cipher the expanded key.
+     * @param aad additional authenticated data, may be empty.
+     * @param inputFile name of the encrypted file.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written, it is truncated, or authentication fails.
+     */
+    public static void decryptFile(AESCipher cipher, byte[] aad, String inputFile, String outputFile) throws IOException {
+        File part = new File(outputFile + ".part");
+        boolean verified = false;
+        FileChannel in = new FileInputStream(inputFile).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(part).getChannel();
+            try {
+                long remaining = in.size() - NONCE_LENGTH - TAG_LENGTH;
+                if (remaining < 0) {
+                    throw new IOException("Error: Encrypted file is shorter than the nonce and tag.");
+                }
+                ByteBuffer nonce = ByteBuffer.allocate(NONCE_LENGTH);
+                if (BinaryFile.fill(in, nonce)) {
+                    throw new IOException("Error: Encrypted file is truncated; it shrank while being read.");
+                }
+                GCMMode gcm = new GCMMode(cipher, nonce.array());
+                gcm.updateAAD(aad, 0, aad.length);
+                ByteBuffer buf = ByteBuffer.allocateDirect(BinaryFile.BUFFER_SIZE);
+                while (remaining > 0) {
+                    long start = AESMetrics.time();
+                    buf.clear();
+                    buf.limit((int) Math.min(buf.capacity(), remaining));
+                    if (BinaryFile.fill(in, buf)) { //The file ended before its tag.
+                        throw new IOException("Error: Encrypted file is truncated; it shrank while being read.");
+                    }
+                    long read = AESMetrics.time();
+                    gcm.decrypt(buf, 0, buf.position());
+                    long crypted = AESMetrics.time();
+                    remaining -= buf.position();
+                    buf.flip();
+                    BinaryFile.drain(out, buf);
+                    AESMetrics.chunk(start, read, crypted, AESMetrics.time(), (buf.limit() + 15) / 16);
+                }
+                ByteBuffer tag = ByteBuffer.allocate(TAG_LENGTH);
+                if (BinaryFile.fill(in, tag)) {
+                    throw new IOException("Error: Encrypted file is truncated; it shrank while being read.");
+                }
+                verified = MessageDigest.isEqual(tag.array(), gcm.tag());
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+            if (!verified) {
+                part.delete();
+            }
+        }
+        if (!verified) {
+            throw new IOException("Error: Authentication tag does not match; the file or its AAD was modified.");
+        }
+        Files.move(part.toPath(), new File(outputFile).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
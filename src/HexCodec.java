@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Hex line format: one block per line, written as 32 hex characters. Lines are scanned
+ * straight out of a reused char buffer and decoded with a nibble lookup table, and blocks
+ * are encoded into a reused output buffer, so no objects are created per line.
+ *
+ * Lines are read the way the original readLine() loop read them: a line ends at "\n",
+ * "\r" or "\r\n". When encrypting, a line is used only if it is made of upper case hex
+ * characters; shorter lines are padded on the left with zeros, longer lines are cut to
+ * their first 32 characters, and any other line is skipped and counted. When decrypting,
+ * upper and lower case are accepted, empty lines are skipped, and any other line that is
+ * not at least 32 hex characters is an error.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class HexCodec {
+
+    /**
+     * Size of the input and output character buffers.
+     */
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Value of each upper case hex character, or -1. Lower case letters are marked -2 so
+     * that they can be accepted when decrypting only.
+     */
+    private static final byte[] NIBBLE = new byte[128];
+
+    static {
+        for (int c = 0; c < NIBBLE.length; c++) {
+            NIBBLE[c] = -1;
+        }
+        for (int c = '0'; c <= '9'; c++) {
+            NIBBLE[c] = (byte) (c - '0');
+        }
+        for (int c = 'A'; c <= 'F'; c++) {
+            NIBBLE[c] = (byte) (c - 'A' + 10);
+            NIBBLE[c + ('a' - 'A')] = -2;
+        }
+    }
+
+    private final Reader in;
+    private final Writer out;
+    private final char[] inbuf = new char[BUFFER_SIZE];
+    private final char[] outbuf;
+    private final char[] newline;
+    private final int[] nibbles = new int[32];
+    private int inpos, inlimit, outpos;
+    private boolean afterCR;
+    private long skipped;
+
+    /**
+     * @param in where lines are read from; may be null if only writeBlock() is used.
+     * @param out where lines are written to; may be null if only readBlock() is used.
+     */
+    public HexCodec(Reader in, Writer out) {
+        this.in = in;
+        this.out = out;
+        this.newline = AES.newline.toCharArray();
+        this.outbuf = new char[BUFFER_SIZE - BUFFER_SIZE % (32 + newline.length)];
+    }
+
+    /**
+     * Reads the next block.
+     * @param words receives the block as four column words.
+     * @param encrypting true to apply the plaintext rules, false for the ciphertext rules.
+     * @return false at the end of the input.
+     * @throws IOException if the input cannot be read, or holds an invalid encrypted line.
+     */
+    public boolean readBlock(int[] words, boolean encrypting) throws IOException {
+        return readBlock(words, 0, encrypting);
+    }
+
+    /**
+     * Reads the next block into words[off] to words[off + 3].
+     */
+    public boolean readBlock(int[] words, int off, boolean encrypting) throws IOException {
+        while (true) {
+            int count = 0;
+            boolean valid = true;
+            boolean validPrefix = true; //The first 32 characters, all that decryption reads.
+            boolean eol = false;
+            boolean any = false;
+            while (!eol) {
+                if (inpos == inlimit) {
+                    inlimit = in.read(inbuf, 0, inbuf.length);
+                    inpos = 0;
+                    if (inlimit <= 0) {
+                        inlimit = 0;
+                        if (!any) {
+                            return false;
+                        }
+                        break;
+                    }
+                }
+                char c = inbuf[inpos++];
+                if (c == '\n' && afterCR) {
+                    afterCR = false;
+                    continue;
+                }
+                afterCR = c == '\r';
+                any = true;
+                if (c == '\n' || c == '\r') {
+                    eol = true;
+                    continue;
+                }
+                int v = c < 128 ? NIBBLE[c] : -1;
+                if (v == -2 && !encrypting) {
+                    v = (c | 0x20) - 'a' + 10;
+                }
+                if (v < 0) {
+                    valid = false;
+                    validPrefix &= count >= 32;
+                } else if (count < 32) {
+                    nibbles[count] = v;
+                }
+                count++;
+            }
+            if (encrypting) {
+                if (!valid || count == 0) {
+                    skipped++;
+                    continue;
+                }
+                int shift = count < 32 ? 32 - count : 0; //Short lines are right aligned, as String.format("%032x") did.
+                for (int i = 31; i >= shift; i--) {
+                    nibbles[i] = nibbles[i - shift];
+                }
+                for (int i = 0; i < shift; i++) {
+                    nibbles[i] = 0;
+                }
+            } else {
+                if (count == 0) {
+                    continue;
+                }
+                if (count < 32) {
+                    throw new IOException("Error: Encrypted line is shorter than 32 hex characters.");
+                }
+                if (!validPrefix) {
+                    throw new IOException("Error: Encrypted line contains non-hex characters.");
+                }
+            }
+            for (int i = 0; i < 4; i++) {
+                int w = 0;
+                for (int j = 0; j < 8; j++) {
+                    w = (w << 4) | nibbles[8 * i + j];
+                }
+                words[off + i] = w;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Writes one block as a line of 32 upper case hex characters.
+     * @param words the block as four column words.
+     * @throws IOException if the output cannot be written.
+     */
+    public void writeBlock(int[] words) throws IOException {
+        writeBlock(words, 0);
+    }
+
+    /**
+     * Writes the block held in words[off] to words[off + 3].
+     */
+    public void writeBlock(int[] words, int off) throws IOException {
+        if (outpos + 32 + newline.length > outbuf.length) {
+            flush();
+        }
+        for (int i = 0; i < 4; i++) {
+            int w = words[off + i];
+            for (int j = 0; j < 8; j++) {
+                outbuf[outpos + 8 * i + j] = DIGITS[(w >>> (28 - 4 * j)) & 0xf];
+            }
+        }
+        outpos += 32;
+        for (int i = 0; i < newline.length; i++) {
+            outbuf[outpos++] = newline[i];
+        }
+    }
+
+    /**
+     * Writes out any buffered lines.
+     * @throws IOException if the output cannot be written.
+     */
+    public void flush() throws IOException {
+        out.write(outbuf, 0, outpos);
+        outpos = 0;
+    }
+
+    /**
+     * @return the number of lines skipped by readBlock() because they were not valid plaintext.
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Hex line files, one block per line (see HexCodec for the rules). Lines are read, ciphered
+ * and written HEX_CHUNK at a time, as the slots of a Pipeline, so that for large files the
+ * parsing, the cipher and the formatting of different chunks run at the same time. With
+ * -Daes.ecb.cache, ECB blocks go through BlockCache.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class HexFile {
+
+    /**
+     * Hex lines read, ciphered and written together, so that metrics read the clock once per chunk.
+     */
+    static final int HEX_CHUNK = 1024;
+
+    private HexFile() {
+        //Only static methods.
+    }
+
+    /**
+     * Encrypts a whole file. Lines that are not valid plaintext are skipped and counted.
+     * @param pool the pool whose parallelism gives the number of cipher workers for ECB.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @param inputFile name of the plaintext file.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written.
+     */
+    public static void encrypt(ForkJoinPool pool, AESCipher cipher, int[] iv, String inputFile, String outputFile) throws IOException {
+        process(pool, cipher, iv, true, inputFile, outputFile);
+    }
+
+    /**
+     * Decrypts a whole file.
+     * @param pool the pool whose parallelism gives the number of cipher workers.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @param inputFile name of the encrypted file.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written, or a line is not valid.
+     */
+    public static void decrypt(ForkJoinPool pool, AESCipher cipher, int[] iv, String inputFile, String outputFile) throws IOException {
+        process(pool, cipher, iv, false, inputFile, outputFile);
+    }
+
+    private static void process(ForkJoinPool pool, final AESCipher cipher, int[] iv, final boolean encrypt, String inputFile, String outputFile) throws IOException {
+        BufferedReader input = new BufferedReader(new FileReader(inputFile));
+        FileWriter out = new FileWriter(outputFile);
+        try {
+            final HexCodec reader = new HexCodec(input, null); //Skips lines that are not valid hex, and pads short lines.
+            final HexCodec writer = new HexCodec(null, out);
+            final int[] chain = iv == null ? null : iv.clone(); //CBC encryption: the last ciphertext block. Decryption: the last block read.
+            int workers = encrypt && chain != null ? 1 : pool == null ? 1 : pool.getParallelism();
+            int[][] chunks = new int[Pipeline.slots(workers, new File(inputFile).length(), 32L * HEX_CHUNK)][];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = new int[4 * HEX_CHUNK];
+            }
+            Pipeline.run(chunks, workers, new Pipeline.Stages<int[]>() {
+                public boolean read(Pipeline.Slot<int[]> slot) throws IOException {
+                    int[] blocks = slot.data;
+                    int n = 0;
+                    while (n < HEX_CHUNK && reader.readBlock(blocks, 4 * n, encrypt)) {
+                        n++;
+                    }
+                    if (!encrypt && chain != null) { //Each chunk starts from the ciphertext block before it, so chunks can be decrypted at once.
+                        System.arraycopy(chain, 0, slot.chain, 0, 4);
+                        if (n > 0) {
+                            System.arraycopy(blocks, 4 * (n - 1), chain, 0, 4);
+                        }
+                    }
+                    slot.length = n;
+                    slot.blocks = n;
+                    return n < HEX_CHUNK;
+                }
+
+                public void crypt(Pipeline.Slot<int[]> slot) {
+                    if (chain == null && BlockCache.INSTANCE != null) { //ECB: repeated lines are looked up.
+                        BlockCache.INSTANCE.crypt(cipher, encrypt, slot.data, slot.length);
+                    } else if (encrypt) {
+                        encryptBlocks(cipher, chain, slot.data, slot.length);
+                    } else {
+                        decryptBlocks(cipher, chain == null ? null : slot.chain, slot.data, slot.length);
+                    }
+                }
+
+                public void write(Pipeline.Slot<int[]> slot) throws IOException {
+                    for (int b = 0; b < 4 * slot.length; b += 4) {
+                        writer.writeBlock(slot.data, b);
+                    }
+                    if (slot.last) {
+                        writer.flush();
+                    }
+                }
+            });
+            AESMetrics.skippedLines(reader.getSkipped());
+        } finally {
+            input.close();
+            out.close();
+        }
+    }
+
+    private static void encryptBlocks(AESCipher cipher, int[] chain, int[] blocks, int n) {
+        int[] block = new int[4];
+        for (int b = 0; b < 4 * n; b += 4) {
+            System.arraycopy(blocks, b, block, 0, 4);
+            if (chain != null) {
+                for (int i = 0; i < 4; i++) {
+                    block[i] ^= chain[i];
+                }
+            }
+            cipher.encryptBlock(block, block);
+            if (chain != null) {
+                System.arraycopy(block, 0, chain, 0, 4);
+            }
+            System.arraycopy(block, 0, blocks, b, 4);
+        }
+    }
+
+    private static void decryptBlocks(AESCipher cipher, int[] chain, int[] blocks, int n) {
+        int[] block = new int[4], nextblock = new int[4];
+        for (int b = 0; b < 4 * n; b += 4) {
+            System.arraycopy(blocks, b, block, 0, 4);
+            System.arraycopy(block, 0, nextblock, 0, 4);
+            cipher.decryptBlock(block, block);
+            if (chain != null) {
+                for (int i = 0; i < 4; i++) {
+                    block[i] ^= chain[i];
+                }
+                System.arraycopy(nextblock, 0, chain, 0, 4);
+            }
+            System.arraycopy(block, 0, blocks, b, 4);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A channel that takes data in the form DeflatingChannel returns, decompresses it as it
+ * arrives and writes the original data to another channel. close() checks that the data
+ * was complete and matches the length and CRC-32 in its trailer, and the length in the
+ * file's header.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class InflatingChannel implements WritableByteChannel {
+
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    private final WritableByteChannel out;
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] input = new byte[BUFFER_SIZE]; //Inflater works on arrays; the caller's buffer may be direct.
+    private final byte[] output = new byte[BUFFER_SIZE];
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer trailer = ByteBuffer.allocate(DeflatingChannel.TRAILER_SIZE);
+    private final long expected; //The original length from the header.
+    private long length; //Bytes written to out.
+    private boolean open = true;
+
+    /**
+     * @param out where the original data is written.
+     * @param expected the original length, from DeflatingChannel.originalLength().
+     */
+    public InflatingChannel(WritableByteChannel out, long expected) {
+        this.out = out;
+        this.expected = expected;
+    }
+
+    /**
+     * Takes all of src.
+     * @throws IOException if the output cannot be written, or the data is not valid compressed data.
+     */
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        int total = src.remaining();
+        while (src.hasRemaining()) {
+            if (!inflater.finished()) {
+                int n = Math.min(input.length, src.remaining());
+                src.get(input, 0, n);
+                inflater.setInput(input, 0, n);
+                inflate();
+                int rest = inflater.getRemaining(); //After the end of the Deflate data: the trailer.
+                if (rest > 0) {
+                    trailer(ByteBuffer.wrap(input, n - rest, rest));
+                }
+            } else {
+                trailer(src);
+            }
+        }
+        return total;
+    }
+
+    private void inflate() throws IOException {
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(output);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        throw new IOException("Error: Invalid compressed data.");
+                    }
+                    if (inflater.needsInput()) {
+                        return;
+                    }
+                    continue;
+                }
+                crc.update(output, 0, n);
+                length += n;
+                if (length > expected) {
+                    throw new IOException("Error: The decompressed data is longer than its recorded length.");
+                }
+                BinaryFile.drain(out, ByteBuffer.wrap(output, 0, n));
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Error: Invalid compressed data: " + e.getMessage());
+        }
+    }
+
+    private void trailer(ByteBuffer src) throws IOException {
+        if (src.remaining() > trailer.remaining()) {
+            throw new IOException("Error: Unexpected data after the end of the compressed data.");
+        }
+        transfer(src, trailer);
+    }
+
+    private static void transfer(ByteBuffer src, ByteBuffer dst) {
+        int n = Math.min(src.remaining(), dst.remaining());
+        for (int i = 0; i < n; i++) {
+            dst.put(src.get());
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Checks that the compressed data was complete and matches its trailer, then closes the
+     * underlying channel.
+     * @throws IOException if the data was cut short or its length or CRC-32 does not match.
+     */
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            if (!inflater.finished() || trailer.hasRemaining()) {
+                throw new IOException("Error: The compressed data is incomplete.");
+            }
+            trailer.flip();
+            if (trailer.getLong() != length || trailer.getInt() != (int) crc.getValue() || length != expected) {
+                throw new IOException("Error: The decompressed data does not match its recorded length and CRC-32.");
+            }
+        } finally {
+            inflater.end();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Raw byte file format (the same as BinaryFile) processed through memory mapped windows.
+ * The output file is sized before any block is written and each window of the input is
+ * encrypted straight into the matching window of the output, so no block is copied
+ * through the Java heap. Windows are addressed with long offsets, so files larger than
+ * 2 GB are handled as a sequence of windows.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class MappedFile {
+
+    /**
+     * Size of one mapped window in bytes. Can be set with -Daes.mmap.window, rounded down to whole blocks.
+     */
+    public static final int WINDOW_SIZE = Math.max(16, Integer.getInteger("aes.mmap.window", 64 << 20) & ~15);
+
+    private MappedFile() {
+        //Only static methods.
+    }
+
+    /**
+     * Encrypts a whole file, padding it with PKCS#7.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @param inputFile name of the plaintext file.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written.
+     */
+    public static void encrypt(AESCipher cipher, int[] iv, String inputFile, String outputFile) throws IOException {
+        RandomAccessFile inFile = new RandomAccessFile(inputFile, "r");
+        try {
+            RandomAccessFile outFile = new RandomAccessFile(outputFile, "rw");
+            try {
+                FileChannel in = inFile.getChannel();
+                FileChannel out = outFile.getChannel();
+                int[] chain = iv == null ? null : iv.clone();
+                long length = in.size();
+                long bulk = length - length % 16;
+                outFile.setLength(bulk + 16);
+                process(null, cipher, chain, true, in, out, bulk);
+
+                long start = AESMetrics.time();
+                ByteBuffer last = ByteBuffer.allocate(16);
+                while (last.position() < length - bulk) {
+                    if (in.read(last, bulk + last.position()) < 0) {
+                        throw new IOException("Error: " + inputFile + " is truncated; it shrank while being read.");
+                    }
+                }
+                int pad = 16 - last.position();
+                while (last.hasRemaining()) {
+                    last.put((byte) pad);
+                }
+                long read = AESMetrics.time();
+                BinaryFile.encryptBlocks(cipher, chain, last, 0, 16);
+                long crypted = AESMetrics.time();
+                last.flip();
+                writeAt(out, last, bulk);
+                AESMetrics.chunk(start, read, crypted, AESMetrics.time(), 1);
+            } finally {
+                outFile.close();
+            }
+        } finally {
+            inFile.close();
+        }
+    }
+
+    /**
+     * Decrypts a whole file and removes its padding. The last block is decrypted first so
+     * that the output file can be sized exactly before the rest is mapped. A file that was
+     * compressed before it was encrypted is refused, since only BinaryFile decompresses.
+     * @param pool the pool each window is decrypted on, or null to decrypt on the calling thread.
+     * @param cipher the expanded key.
+     * @param iv the initialization vector as four words for CBC, or null for ECB.
+     * @param inputFile name of the encrypted file.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written, the padding is invalid, or
+     *         the file was compressed.
+     */
+    public static void decrypt(ForkJoinPool pool, AESCipher cipher, int[] iv, String inputFile, String outputFile) throws IOException {
+        RandomAccessFile inFile = new RandomAccessFile(inputFile, "r");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(DeflatingChannel.HEADER_SIZE);
+            while (header.hasRemaining() && inFile.getChannel().read(header, header.position()) >= 0) {
+                //Reads the header, if the file has one.
+            }
+            if (DeflatingChannel.originalLength(header) >= 0) {
+                throw new IOException("Error: The file was encrypted with -compress; decrypt it with -io stream.");
+            }
+            RandomAccessFile outFile = new RandomAccessFile(outputFile, "rw");
+            try {
+                FileChannel in = inFile.getChannel();
+                FileChannel out = outFile.getChannel();
+                long length = in.size();
+                if (length == 0 || length % 16 != 0) {
+                    throw new IOException("Error: Encrypted file length is not a multiple of 16 bytes.");
+                }
+                long bulk = length - 16;
+                long start = AESMetrics.time();
+                ByteBuffer last = ByteBuffer.allocate(32);
+                if (bulk == 0) {
+                    last.position(16);
+                }
+                while (last.hasRemaining()) {
+                    if (in.read(last, length - 32 + last.position()) < 0) {
+                        throw new IOException("Error: " + inputFile + " is truncated; it shrank while being read.");
+                    }
+                }
+                int[] lastchain = null;
+                if (iv != null) {
+                    lastchain = new int[4];
+                    for (int i = 0; i < 4; i++) {
+                        lastchain[i] = bulk == 0 ? iv[i] : last.getInt(4 * i);
+                    }
+                }
+                long read = AESMetrics.time();
+                BinaryFile.decryptBlocks(cipher, lastchain, last, 16, 32);
+                long crypted = AESMetrics.time();
+                int pad = BinaryFile.padding(last, 32);
+                outFile.setLength(length - pad);
+
+                int[] chain = iv == null ? null : iv.clone();
+                process(pool, cipher, chain, false, in, out, bulk);
+                long written = AESMetrics.time();
+                last.position(16);
+                last.limit(32 - pad);
+                writeAt(out, last, bulk);
+                AESMetrics.chunk(start, read, crypted, crypted + AESMetrics.time() - written, 1); //The last block, read and decrypted first and written last.
+            } finally {
+                outFile.close();
+            }
+        } finally {
+            inFile.close();
+        }
+    }
+
+    /**
+     * Runs the cipher over the first length bytes of in, window by window, writing to the
+     * same offsets of out. length must be a multiple of 16 and out must already be that long.
+     * Pages are read and written as the cipher touches them, so for metrics only mapping a
+     * window counts as reading, and the rest of the I/O counts as cipher time.
+     */
+    private static void process(ForkJoinPool pool, AESCipher cipher, int[] chain, boolean encrypt, FileChannel in, FileChannel out, long length) throws IOException {
+        for (long pos = 0; pos < length; pos += WINDOW_SIZE) {
+            long start = AESMetrics.time();
+            int size = (int) Math.min(WINDOW_SIZE, length - pos);
+            MappedByteBuffer src = in.map(FileChannel.MapMode.READ_ONLY, pos, size);
+            MappedByteBuffer dst = out.map(FileChannel.MapMode.READ_WRITE, pos, size);
+            long read = AESMetrics.time();
+            if (encrypt) {
+                BinaryFile.encryptBlocks(cipher, chain, src, dst, 0, size);
+            } else if (pool == null) {
+                BinaryFile.decryptBlocks(cipher, chain, src, dst, 0, size);
+            } else {
+                CBCMode.decryptParallel(pool, cipher, chain, src, dst, 0, size);
+            }
+            long crypted = AESMetrics.time();
+            AESMetrics.chunk(start, read, crypted, crypted, size / 16);
+        }
+    }
+
+    private static void writeAt(FileChannel out, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += out.write(buf, position);
+        }
+    }
+}
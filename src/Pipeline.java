@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a file through three stages: a reader that fills slots with blocks, cipher workers,
+ * and a writer. The slots are preallocated and kept in a ring; a slot goes from the reader
+ * to a worker to the writer and back to the reader, so nothing is allocated per chunk, and
+ * when the writer or the workers fall behind the reader waits for a free slot. The reader
+ * runs on its own thread, the workers on theirs and the writer on the calling thread, so
+ * disk reads, the cipher and disk writes of different chunks overlap.
+ *
+ * Slot n of the file always uses ring entry n % slots. The reader fills them in order, a
+ * worker claims the next filled one, and the writer takes them in order, so the output is
+ * in input order however many workers there are. Modes where each block depends on the one
+ * before (CBC encryption) use one worker.
+ *
+ * Files of no more than two slots, or all files with -Daes.pipeline=false, run the same
+ * stages one after another on the calling thread. The number of slots is two more than the
+ * number of workers, or -Daes.pipeline.slots.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public final class Pipeline<T> {
+
+    /**
+     * False if -Daes.pipeline=false was given.
+     */
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("aes.pipeline", "true"));
+
+    private static final int SLOTS = Integer.getInteger("aes.pipeline.slots", 0);
+
+    /**
+     * The work done on each slot. read() and write() are called in slot order, by one
+     * thread each; crypt() may be called for several slots at once.
+     */
+    interface Stages<T> {
+
+        /**
+         * Fills a slot with the next part of the input and sets its blocks.
+         * @return true if this is the last slot of the file.
+         */
+        boolean read(Slot<T> slot) throws IOException;
+
+        void crypt(Slot<T> slot) throws IOException;
+
+        void write(Slot<T> slot) throws IOException;
+    }
+
+    /**
+     * One entry of the ring.
+     */
+    static final class Slot<T> {
+
+        final T data;
+        final int[] chain = new int[4]; //A chaining block, for the stages to pass along.
+        int length; //Bytes or blocks held in data, as the stages use it.
+        int blocks; //Blocks passed to the cipher, for the metrics.
+        long position; //The input offset after this slot.
+        boolean last; //Set from read(); true for the last slot of the file.
+        private long seq = -1; //Number of the slot in the file.
+        private int state; //FREE, FILLED or CRYPTED.
+        private long readNanos;
+        private long cipherNanos;
+
+        Slot(T data) {
+            this.data = data;
+        }
+    }
+
+    private static final int FREE = 0, FILLED = 1, CRYPTED = 2;
+
+    private final Slot<T>[] ring;
+    private final Stages<T> stages;
+    private final AtomicLong claimed = new AtomicLong(); //The next slot for a worker.
+    private long end = Long.MAX_VALUE; //The number of slots in the file, once the last is read.
+    private Throwable failure;
+
+    @SuppressWarnings("unchecked")
+    private Pipeline(T[] data, Stages<T> stages) {
+        ring = (Slot<T>[]) new Slot<?>[data.length];
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new Slot<T>(data[i]);
+        }
+        this.stages = stages;
+    }
+
+    /**
+     * @param workers the number of cipher workers.
+     * @param length the bytes of input left.
+     * @param slotLength the input bytes that one slot holds.
+     * @return the number of slots to allocate; 1 if the stages are to run on the calling thread.
+     */
+    static int slots(int workers, long length, long slotLength) {
+        if (!ENABLED || length <= 2 * slotLength) {
+            return 1;
+        }
+        return SLOTS >= 2 ? SLOTS : workers + 2;
+    }
+
+    /**
+     * Runs every slot of a file through the stages.
+     * @param data one buffer for each slot, as many as slots() gave.
+     * @param workers the number of cipher workers.
+     * @param stages the work to do.
+     * @throws IOException if a stage throws one.
+     */
+    static <T> void run(T[] data, int workers, Stages<T> stages) throws IOException {
+        Pipeline<T> p = new Pipeline<T>(data, stages);
+        if (data.length < 2) {
+            p.runSequential();
+        } else {
+            p.runParallel(Math.max(1, Math.min(workers, data.length - 1)));
+        }
+    }
+
+    private void runSequential() throws IOException {
+        Slot<T> s = ring[0];
+        while (!s.last) {
+            long start = AESMetrics.time();
+            s.last = stages.read(s);
+            long read = AESMetrics.time();
+            stages.crypt(s);
+            long crypted = AESMetrics.time();
+            stages.write(s);
+            AESMetrics.chunk(start, read, crypted, AESMetrics.time(), s.blocks);
+        }
+    }
+
+    private void runParallel(int workers) throws IOException {
+        Thread[] threads = new Thread[workers + 1];
+        threads[0] = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    readAll();
+                } catch (Throwable t) {
+                    fail(t);
+                }
+            }
+        }, "AES reader");
+        for (int i = 1; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        cryptAll();
+                    } catch (Throwable t) {
+                        fail(t);
+                    }
+                }
+            }, "AES cipher " + i);
+        }
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+        try {
+            writeAll();
+        } catch (Throwable t) {
+            fail(t);
+        }
+        boolean interrupted = false;
+        for (Thread t : threads) {
+            while (true) {
+                try {
+                    t.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        Throwable t;
+        synchronized (this) {
+            t = failure;
+        }
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new IOException(t);
+        }
+    }
+
+    private void readAll() throws IOException, InterruptedException {
+        for (long seq = 0;; seq++) {
+            Slot<T> s = ring[(int) (seq % ring.length)];
+            synchronized (this) {
+                while (s.state != FREE && failure == null) {
+                    wait();
+                }
+                if (failure != null) {
+                    return;
+                }
+            }
+            long start = AESMetrics.time();
+            boolean last = stages.read(s);
+            long read = AESMetrics.time();
+            synchronized (this) {
+                s.seq = seq;
+                s.last = last;
+                s.readNanos = read - start;
+                s.state = FILLED;
+                if (last) {
+                    end = seq + 1;
+                }
+                notifyAll();
+            }
+            if (last) {
+                return;
+            }
+        }
+    }
+
+    private void cryptAll() throws IOException, InterruptedException {
+        while (true) {
+            long seq = claimed.getAndIncrement();
+            Slot<T> s = ring[(int) (seq % ring.length)];
+            synchronized (this) {
+                while (!(s.seq == seq && s.state == FILLED) && seq < end && failure == null) {
+                    wait();
+                }
+                if (seq >= end || failure != null) {
+                    return;
+                }
+            }
+            long start = AESMetrics.time();
+            stages.crypt(s);
+            long crypted = AESMetrics.time();
+            synchronized (this) {
+                s.cipherNanos = crypted - start;
+                s.state = CRYPTED;
+                notifyAll();
+            }
+        }
+    }
+
+    private void writeAll() throws IOException, InterruptedException {
+        for (long seq = 0;; seq++) {
+            Slot<T> s = ring[(int) (seq % ring.length)];
+            synchronized (this) {
+                while (!(s.seq == seq && s.state == CRYPTED) && failure == null) {
+                    wait();
+                }
+                if (failure != null) {
+                    return;
+                }
+            }
+            long start = AESMetrics.time();
+            stages.write(s);
+            //Each stage times its own work, so the three add up to more than the time taken.
+            AESMetrics.chunk(0, s.readNanos, s.readNanos + s.cipherNanos, s.readNanos + s.cipherNanos + AESMetrics.time() - start, s.blocks);
+            synchronized (this) {
+                s.state = FREE;
+                notifyAll();
+                if (s.last) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the first failure and wakes every stage, so that they all stop.
+     */
+    private synchronized void fail(Throwable t) {
+        if (failure == null) {
+            failure = t;
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded pool of scratch objects: buffers, and JCE ciphers, that a call needs for its
+ * own duration. It takes the place of a ThreadLocal, which keeps one object per thread;
+ * the server runs each connection on a virtual thread of its own, so a ThreadLocal would
+ * build the objects again for every connection. Here they are shared by all threads, and
+ * only as many exist as are in use at once.
+ *
+ * The free objects are held in a fixed array, taken and returned with compareAndSet, so
+ * take() and give() allocate nothing once the pool holds enough objects. Each thread
+ * starts looking at its own place in the array, so threads seldom contend for a slot.
+ * An object given back to a full pool is dropped.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public abstract class ScratchPool<T> {
+
+    /**
+     * Free objects kept: a power of two, at least four per CPU.
+     */
+    private static final int SIZE = Integer.highestOneBit(Math.max(8, 4 * Runtime.getRuntime().availableProcessors()) - 1) << 1;
+
+    private final AtomicReferenceArray<T> free = new AtomicReferenceArray<T>(SIZE);
+
+    /**
+     * @return a new object, for when the pool has none free.
+     */
+    protected abstract T create();
+
+    /**
+     * @return a free object, or a new one if there is none. Pass it to give() when done.
+     */
+    T take() {
+        int start = System.identityHashCode(Thread.currentThread());
+        for (int i = 0; i < SIZE; i++) {
+            int slot = (start + i) & (SIZE - 1);
+            T t = free.get(slot);
+            if (t != null && free.compareAndSet(slot, t, null)) {
+                return t;
+            }
+        }
+        return create();
+    }
+
+    /**
+     * Returns an object from take() to the pool.
+     */
+    void give(T t) {
+        int start = System.identityHashCode(Thread.currentThread());
+        for (int i = 0; i < SIZE; i++) {
+            int slot = (start + i) & (SIZE - 1);
+            if (free.get(slot) == null && free.compareAndSet(slot, null, t)) {
+                return;
+            }
+        }
+    }
+}
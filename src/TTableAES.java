@@ -0,0 +1,180 @@
+/**
+ * Word oriented AES engine. The state is kept as four 32-bit column words and
+ * SubBytes, ShiftRows and MixColumns are merged into four 256-entry lookup tables
+ * per direction, built once from AES.sbox, AES.invsbox and MCTables.
+ *
+ * Column i of the state matrix used by AES is stored as the word
+ * (state[0][i] << 24) | (state[1][i] << 16) | (state[2][i] << 8) | state[3][i].
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class TTableAES {
+
+    /**
+     * Flattened S-BOX and inverse S-BOX, indexed directly by byte value.
+     */
+    public static final int[] SBOX = new int[256];
+    public static final int[] INV_SBOX = new int[256];
+
+    /**
+     * Encryption tables: TE0[x] is the MixColumns column produced by sbox[x] in row 0,
+     * TE1..TE3 are the same column rotated for rows 1..3.
+     */
+    public static final int[] TE0 = new int[256];
+    public static final int[] TE1 = new int[256];
+    public static final int[] TE2 = new int[256];
+    public static final int[] TE3 = new int[256];
+
+    /**
+     * Decryption tables: TD0[x] is the InvMixColumns column produced by invsbox[x] in row 0,
+     * TD1..TD3 are the same column rotated for rows 1..3.
+     */
+    public static final int[] TD0 = new int[256];
+    public static final int[] TD1 = new int[256];
+    public static final int[] TD2 = new int[256];
+    public static final int[] TD3 = new int[256];
+
+    static {
+        for (int x = 0; x < 256; x++) {
+            int s = AES.sbox[x / 16][x % 16];
+            int is = AES.invsbox[x / 16][x % 16];
+            SBOX[x] = s;
+            INV_SBOX[x] = is;
+
+            int s2 = MCTables.mc2[s / 16][s % 16];
+            int s3 = MCTables.mc3[s / 16][s % 16];
+            int te = (s2 << 24) | (s << 16) | (s << 8) | s3;
+            TE0[x] = te;
+            TE1[x] = Integer.rotateRight(te, 8);
+            TE2[x] = Integer.rotateRight(te, 16);
+            TE3[x] = Integer.rotateRight(te, 24);
+
+            int i9 = MCTables.mc9[is / 16][is % 16];
+            int i11 = MCTables.mc11[is / 16][is % 16];
+            int i13 = MCTables.mc13[is / 16][is % 16];
+            int i14 = MCTables.mc14[is / 16][is % 16];
+            int td = (i14 << 24) | (i9 << 16) | (i13 << 8) | i11;
+            TD0[x] = td;
+            TD1[x] = Integer.rotateRight(td, 8);
+            TD2[x] = Integer.rotateRight(td, 16);
+            TD3[x] = Integer.rotateRight(td, 24);
+        }
+    }
+
+    private TTableAES() {
+        //Only static tables and methods.
+    }
+
+    /**
+     * Converts the expanded key formed by AES.keySchedule() into round key words.
+     * @param keymatrix expanded key, 4 rows by 4 * (rounds + 1) columns.
+     * @return the round keys, four words per round.
+     */
+    public static int[] expandEncryptionKey(int[][] keymatrix) {
+        int[] rk = new int[keymatrix[0].length];
+        for (int i = 0; i < rk.length; i++) {
+            rk[i] = (keymatrix[0][i] << 24) | (keymatrix[1][i] << 16) | (keymatrix[2][i] << 8) | keymatrix[3][i];
+        }
+        return rk;
+    }
+
+    /**
+     * Builds the round keys of the equivalent inverse cipher: the encryption round keys in
+     * reverse order, with InvMixColumns applied to every round key except the first and last.
+     * @param rk encryption round keys from expandEncryptionKey().
+     * @return the decryption round keys.
+     */
+    public static int[] expandDecryptionKey(int[] rk) {
+        int rounds = rk.length / 4 - 1;
+        int[] drk = new int[rk.length];
+        for (int r = 0; r <= rounds; r++) {
+            for (int c = 0; c < 4; c++) {
+                int w = rk[4 * (rounds - r) + c];
+                if (r > 0 && r < rounds) {
+                    w = TD0[SBOX[w >>> 24]] ^ TD1[SBOX[(w >>> 16) & 0xff]] ^ TD2[SBOX[(w >>> 8) & 0xff]] ^ TD3[SBOX[w & 0xff]];
+                }
+                drk[4 * r + c] = w;
+            }
+        }
+        return drk;
+    }
+
+    /**
+     * Encrypts one block. in and out may be the same array.
+     * @param rk round keys from expandEncryptionKey().
+     * @param in the four input words.
+     * @param out receives the four output words.
+     */
+    public static void encryptBlock(int[] rk, int[] in, int[] out) {
+        encryptBlock(rk, in, 0, out, 0);
+    }
+
+    /**
+     * Encrypts the block at word offset inOff of in into word offset outOff of out.
+     * in and out may be the same array.
+     */
+    public static void encryptBlock(int[] rk, int[] in, int inOff, int[] out, int outOff) {
+        int rounds = rk.length / 4 - 1;
+        int s0 = in[inOff] ^ rk[0];
+        int s1 = in[inOff + 1] ^ rk[1];
+        int s2 = in[inOff + 2] ^ rk[2];
+        int s3 = in[inOff + 3] ^ rk[3];
+        int k = 4;
+        for (int r = 1; r < rounds; r++) {
+            int t0 = TE0[s0 >>> 24] ^ TE1[(s1 >>> 16) & 0xff] ^ TE2[(s2 >>> 8) & 0xff] ^ TE3[s3 & 0xff] ^ rk[k];
+            int t1 = TE0[s1 >>> 24] ^ TE1[(s2 >>> 16) & 0xff] ^ TE2[(s3 >>> 8) & 0xff] ^ TE3[s0 & 0xff] ^ rk[k + 1];
+            int t2 = TE0[s2 >>> 24] ^ TE1[(s3 >>> 16) & 0xff] ^ TE2[(s0 >>> 8) & 0xff] ^ TE3[s1 & 0xff] ^ rk[k + 2];
+            int t3 = TE0[s3 >>> 24] ^ TE1[(s0 >>> 16) & 0xff] ^ TE2[(s1 >>> 8) & 0xff] ^ TE3[s2 & 0xff] ^ rk[k + 3];
+            s0 = t0;
+            s1 = t1;
+            s2 = t2;
+            s3 = t3;
+            k += 4;
+        }
+        //Last round has no MixColumns.
+        out[outOff] = ((SBOX[s0 >>> 24] << 24) | (SBOX[(s1 >>> 16) & 0xff] << 16) | (SBOX[(s2 >>> 8) & 0xff] << 8) | SBOX[s3 & 0xff]) ^ rk[k];
+        out[outOff + 1] = ((SBOX[s1 >>> 24] << 24) | (SBOX[(s2 >>> 16) & 0xff] << 16) | (SBOX[(s3 >>> 8) & 0xff] << 8) | SBOX[s0 & 0xff]) ^ rk[k + 1];
+        out[outOff + 2] = ((SBOX[s2 >>> 24] << 24) | (SBOX[(s3 >>> 16) & 0xff] << 16) | (SBOX[(s0 >>> 8) & 0xff] << 8) | SBOX[s1 & 0xff]) ^ rk[k + 2];
+        out[outOff + 3] = ((SBOX[s3 >>> 24] << 24) | (SBOX[(s0 >>> 16) & 0xff] << 16) | (SBOX[(s1 >>> 8) & 0xff] << 8) | SBOX[s2 & 0xff]) ^ rk[k + 3];
+    }
+
+    /**
+     * Decrypts one block with the equivalent inverse cipher. in and out may be the same array.
+     * @param drk round keys from expandDecryptionKey().
+     * @param in the four input words.
+     * @param out receives the four output words.
+     */
+    public static void decryptBlock(int[] drk, int[] in, int[] out) {
+        decryptBlock(drk, in, 0, out, 0);
+    }
+
+    /**
+     * Decrypts the block at word offset inOff of in into word offset outOff of out.
+     * in and out may be the same array.
+     */
+    public static void decryptBlock(int[] drk, int[] in, int inOff, int[] out, int outOff) {
+        int rounds = drk.length / 4 - 1;
+        int s0 = in[inOff] ^ drk[0];
+        int s1 = in[inOff + 1] ^ drk[1];
+        int s2 = in[inOff + 2] ^ drk[2];
+        int s3 = in[inOff + 3] ^ drk[3];
+        int k = 4;
+        for (int r = 1; r < rounds; r++) {
+            int t0 = TD0[s0 >>> 24] ^ TD1[(s3 >>> 16) & 0xff] ^ TD2[(s2 >>> 8) & 0xff] ^ TD3[s1 & 0xff] ^ drk[k];
+            int t1 = TD0[s1 >>> 24] ^ TD1[(s0 >>> 16) & 0xff] ^ TD2[(s3 >>> 8) & 0xff] ^ TD3[s2 & 0xff] ^ drk[k + 1];
+            int t2 = TD0[s2 >>> 24] ^ TD1[(s1 >>> 16) & 0xff] ^ TD2[(s0 >>> 8) & 0xff] ^ TD3[s3 & 0xff] ^ drk[k + 2];
+            int t3 = TD0[s3 >>> 24] ^ TD1[(s2 >>> 16) & 0xff] ^ TD2[(s1 >>> 8) & 0xff] ^ TD3[s0 & 0xff] ^ drk[k + 3];
+            s0 = t0;
+            s1 = t1;
+            s2 = t2;
+            s3 = t3;
+            k += 4;
+        }
+        //Last round has no InvMixColumns.
+        out[outOff] = ((INV_SBOX[s0 >>> 24] << 24) | (INV_SBOX[(s3 >>> 16) & 0xff] << 16) | (INV_SBOX[(s2 >>> 8) & 0xff] << 8) | INV_SBOX[s1 & 0xff]) ^ drk[k];
+        out[outOff + 1] = ((INV_SBOX[s1 >>> 24] << 24) | (INV_SBOX[(s0 >>> 16) & 0xff] << 16) | (INV_SBOX[(s3 >>> 8) & 0xff] << 8) | INV_SBOX[s2 & 0xff]) ^ drk[k + 1];
+        out[outOff + 2] = ((INV_SBOX[s2 >>> 24] << 24) | (INV_SBOX[(s1 >>> 16) & 0xff] << 16) | (INV_SBOX[(s0 >>> 8) & 0xff] << 8) | INV_SBOX[s3 & 0xff]) ^ drk[k + 2];
+        out[outOff + 3] = ((INV_SBOX[s3 >>> 24] << 24) | (INV_SBOX[(s2 >>> 16) & 0xff] << 16) | (INV_SBOX[(s1 >>> 8) & 0xff] << 8) | INV_SBOX[s0 & 0xff]) ^ drk[k + 3];
+    }
+}
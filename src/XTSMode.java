@@ -0,0 +1,366 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * XTS mode (IEEE 1619) for disk images. The image is taken as a sequence of sectors of
+ * SECTOR_SIZE bytes, and sector n is encrypted on its own, with a tweak that is the
+ * encryption of n (a 128-bit little-endian number) under the second key. Block j of the
+ * sector is XORed with the tweak times x^j in GF(2^128) before and after it is encrypted
+ * under the first key. The output is the same length as the input: if a sector ends in a
+ * partial block, ciphertext stealing takes the missing bytes from the block before it.
+ *
+ * As no sector depends on another, a file is split on sector boundaries into chunks that
+ * run in parallel on a ForkJoinPool, and one sector of an image can be read or rewritten
+ * without touching the rest (readSector() and writeSector()).
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public class XTSMode {
+
+    /**
+     * Bytes in one sector, the unit that has its own tweak. Can be set with -Daes.xts.sector,
+     * rounded down to whole blocks; 512 by default.
+     */
+    public static final int SECTOR_SIZE = Math.max(16, Integer.getInteger("aes.xts.sector", 512) & ~15);
+
+    /**
+     * Sectors processed by one task before it stops splitting.
+     */
+    private static final int CHUNK_SECTORS = Math.max(1, CTRMode.CHUNK_SIZE / SECTOR_SIZE);
+
+    private XTSMode() {
+        //Only static methods.
+    }
+
+    /**
+     * Encrypts or decrypts the sectors of src between from and to, writing the result to the
+     * same offsets of dst. src and dst may be the same buffer.
+     * @param key1 the expanded key that encrypts the data.
+     * @param key2 the expanded key that encrypts the sector numbers into tweaks.
+     * @param encrypt true to encrypt, false to decrypt.
+     * @param sectorSize bytes in each sector, a multiple of 16.
+     * @param sector the number of the sector at from.
+     * @param src the input bytes.
+     * @param dst receives the output bytes.
+     * @param from offset of the first byte of the first sector.
+     * @param to offset after the last byte; the last sector may be short, but not under 16 bytes.
+     * @throws IllegalArgumentException if the last sector is shorter than a block.
+     */
+    public static void crypt(AESCipher key1, AESCipher key2, boolean encrypt, int sectorSize, long sector, ByteBuffer src, ByteBuffer dst, int from, int to) {
+        int[] blocks = new int[4 * AESCipher.BATCH];
+        int[] tweaks = new int[4 * AESCipher.BATCH];
+        int[] at = new int[AESCipher.BATCH]; //Buffer offsets of the blocks in the batch.
+        int[] first = new int[4 * AESCipher.BATCH]; //Tweaks of the next sectors, encrypted together.
+        int n = 0;
+        int s = from;
+        for (int k = AESCipher.BATCH; s < to; s += sectorSize, sector++, k++) {
+            int length = Math.min(to - s, sectorSize);
+            if (length < 16) {
+                throw new IllegalArgumentException("Error: A sector of " + length + " bytes is shorter than a block.");
+            }
+            if (k == AESCipher.BATCH) {
+                int sectors = (int) Math.min(AESCipher.BATCH, ((long) to - s + sectorSize - 1) / sectorSize);
+                for (int i = 0; i < sectors; i++) {
+                    first[4 * i] = Integer.reverseBytes((int) (sector + i));
+                    first[4 * i + 1] = Integer.reverseBytes((int) ((sector + i) >>> 32));
+                    first[4 * i + 2] = 0;
+                    first[4 * i + 3] = 0;
+                }
+                key2.encryptBlocks(first, first, sectors);
+                k = 0;
+            }
+            //The tweak as a 128-bit little-endian number, for multiplying by x.
+            long lo = Long.reverseBytes((long) first[4 * k] << 32 | (first[4 * k + 1] & 0xffffffffL));
+            long hi = Long.reverseBytes((long) first[4 * k + 2] << 32 | (first[4 * k + 3] & 0xffffffffL));
+            int partial = length % 16;
+            int whole = s + length - partial; //End of the whole blocks.
+            int stolen = partial == 0 || encrypt ? whole : whole - 16; //End of the blocks that need no stealing.
+            for (int p = s; p < stolen; p += 16) {
+                words(lo, hi, tweaks, 4 * n);
+                for (int i = 0; i < 4; i++) {
+                    blocks[4 * n + i] = src.getInt(p + 4 * i) ^ tweaks[4 * n + i];
+                }
+                at[n++] = p;
+                if (n == AESCipher.BATCH) {
+                    flush(key1, encrypt, blocks, tweaks, at, n, dst);
+                    n = 0;
+                }
+                long carry = hi >> 63;
+                hi = hi << 1 | lo >>> 63;
+                lo = lo << 1 ^ (carry & 0x87);
+            }
+            if (partial != 0) {
+                flush(key1, encrypt, blocks, tweaks, at, n, dst);
+                n = 0;
+                steal(key1, encrypt, lo, hi, src, dst, whole - 16, partial);
+            }
+        }
+        flush(key1, encrypt, blocks, tweaks, at, n, dst);
+    }
+
+    /**
+     * Ciphers the n blocks of a batch, which are already XORed with their tweaks, XORs them
+     * with the tweaks again and stores them in dst.
+     */
+    private static void flush(AESCipher key1, boolean encrypt, int[] blocks, int[] tweaks, int[] at, int n, ByteBuffer dst) {
+        if (n == 0) {
+            return;
+        }
+        if (encrypt) {
+            key1.encryptBlocks(blocks, blocks, n);
+        } else {
+            key1.decryptBlocks(blocks, blocks, n);
+        }
+        for (int b = 0; b < n; b++) {
+            for (int i = 0; i < 4; i++) {
+                dst.putInt(at[b] + 4 * i, blocks[4 * b + i] ^ tweaks[4 * b + i]);
+            }
+        }
+    }
+
+    /**
+     * Ciphertext stealing for a sector that ends in a partial block. When encrypting, the
+     * last whole block at p is already encrypted in dst, and lo/hi is the tweak after it; its
+     * first bytes become the partial block, and the partial plaintext, filled out with the
+     * rest of it, is encrypted in its place. When decrypting, the whole block at p has not
+     * been done yet and lo/hi is its tweak: it is decrypted with the tweak after it, and the
+     * partial block, filled out with the rest of that, is decrypted with lo/hi.
+     */
+    private static void steal(AESCipher key1, boolean encrypt, long lo, long hi, ByteBuffer src, ByteBuffer dst, int p, int partial) {
+        long carry = hi >> 63;
+        long nextHi = hi << 1 | lo >>> 63;
+        long nextLo = lo << 1 ^ (carry & 0x87);
+        int[] tweak = new int[4], block = new int[4];
+        byte[] tail = new byte[partial];
+        for (int j = 0; j < partial; j++) {
+            tail[j] = src.get(p + 16 + j);
+        }
+        ByteBuffer b = ByteBuffer.allocate(16);
+        if (encrypt) {
+            for (int j = 0; j < 16; j++) {
+                b.put(j, dst.get(p + j));
+            }
+            for (int j = 0; j < partial; j++) {
+                dst.put(p + 16 + j, b.get(j));
+                b.put(j, tail[j]);
+            }
+            words(lo, hi, tweak, 0);
+            cipherBlock(key1, true, tweak, b, block);
+        } else {
+            for (int j = 0; j < 16; j++) {
+                b.put(j, src.get(p + j));
+            }
+            words(nextLo, nextHi, tweak, 0);
+            cipherBlock(key1, false, tweak, b, block);
+            for (int j = 0; j < partial; j++) {
+                dst.put(p + 16 + j, b.get(j));
+                b.put(j, tail[j]);
+            }
+            words(lo, hi, tweak, 0);
+            cipherBlock(key1, false, tweak, b, block);
+        }
+        for (int j = 0; j < 16; j++) {
+            dst.put(p + j, b.get(j));
+        }
+    }
+
+    /**
+     * Ciphers the block in b in place with one tweak.
+     */
+    private static void cipherBlock(AESCipher key1, boolean encrypt, int[] tweak, ByteBuffer b, int[] block) {
+        for (int i = 0; i < 4; i++) {
+            block[i] = b.getInt(4 * i) ^ tweak[i];
+        }
+        if (encrypt) {
+            key1.encryptBlock(block, block);
+        } else {
+            key1.decryptBlock(block, block);
+        }
+        for (int i = 0; i < 4; i++) {
+            b.putInt(4 * i, block[i] ^ tweak[i]);
+        }
+    }
+
+    /**
+     * Puts the 128-bit little-endian tweak lo/hi in w at off as four big-endian words.
+     */
+    private static void words(long lo, long hi, int[] w, int off) {
+        lo = Long.reverseBytes(lo);
+        hi = Long.reverseBytes(hi);
+        w[off] = (int) (lo >>> 32);
+        w[off + 1] = (int) lo;
+        w[off + 2] = (int) (hi >>> 32);
+        w[off + 3] = (int) hi;
+    }
+
+    /**
+     * Encrypts one sector in place.
+     * @param key1 the expanded key that encrypts the data.
+     * @param key2 the expanded key that encrypts the sector number.
+     * @param sector the number of the sector.
+     * @param data holds the sector.
+     * @param off offset of the sector in data.
+     * @param len bytes in the sector, at least 16.
+     */
+    public static void encryptSector(AESCipher key1, AESCipher key2, long sector, byte[] data, int off, int len) {
+        ByteBuffer b = ByteBuffer.wrap(data, off, len).slice();
+        crypt(key1, key2, true, len, sector, b, b, 0, len);
+    }
+
+    /**
+     * Decrypts one sector in place; the reverse of encryptSector().
+     */
+    public static void decryptSector(AESCipher key1, AESCipher key2, long sector, byte[] data, int off, int len) {
+        ByteBuffer b = ByteBuffer.wrap(data, off, len).slice();
+        crypt(key1, key2, false, len, sector, b, b, 0, len);
+    }
+
+    /**
+     * Reads and decrypts one sector of an encrypted image.
+     * @param key1 the expanded key that encrypts the data.
+     * @param key2 the expanded key that encrypts the sector numbers.
+     * @param imageFile name of the encrypted image.
+     * @param sector the number of the sector.
+     * @return the plaintext of the sector; shorter than SECTOR_SIZE only for a short last sector.
+     * @throws IOException if the image cannot be read or has no such sector.
+     */
+    public static byte[] readSector(AESCipher key1, AESCipher key2, String imageFile, long sector) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(imageFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer b = ByteBuffer.allocate(sectorLength(channel.size(), sector));
+            while (b.hasRemaining()) {
+                if (channel.read(b, sector * SECTOR_SIZE + b.position()) < 0) {
+                    throw new IOException("Error: " + imageFile + " ended while reading sector " + sector + ".");
+                }
+            }
+            decryptSector(key1, key2, sector, b.array(), 0, b.capacity());
+            return b.array();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Encrypts one sector and writes it over that sector of an encrypted image, leaving the
+     * rest of the image as it is.
+     * @param key1 the expanded key that encrypts the data.
+     * @param key2 the expanded key that encrypts the sector numbers.
+     * @param imageFile name of the encrypted image.
+     * @param sector the number of the sector.
+     * @param plaintext the new contents of the sector, as long as the sector; not changed.
+     * @throws IOException if the image cannot be written, has no such sector, or the length is wrong.
+     */
+    public static void writeSector(AESCipher key1, AESCipher key2, String imageFile, long sector, byte[] plaintext) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(imageFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            int length = sectorLength(channel.size(), sector);
+            if (plaintext.length != length) {
+                throw new IOException("Error: Sector " + sector + " is " + length + " bytes, not " + plaintext.length + ".");
+            }
+            byte[] data = plaintext.clone();
+            encryptSector(key1, key2, sector, data, 0, length);
+            ByteBuffer b = ByteBuffer.wrap(data);
+            while (b.hasRemaining()) {
+                channel.write(b, sector * SECTOR_SIZE + b.position());
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return the bytes of a sector of an image of size bytes.
+     */
+    private static int sectorLength(long size, long sector) throws IOException {
+        if (sector < 0 || sector >= (size + SECTOR_SIZE - 1) / SECTOR_SIZE) {
+            throw new IOException("Error: The image has no sector " + sector + ".");
+        }
+        return (int) Math.min(SECTOR_SIZE, size - sector * SECTOR_SIZE);
+    }
+
+    /**
+     * Encrypts or decrypts a whole image. The output is the same length as the input.
+     * @param pool the pool the chunks run on.
+     * @param key1 the expanded key that encrypts the data.
+     * @param key2 the expanded key that encrypts the sector numbers.
+     * @param encrypt true to encrypt, false to decrypt.
+     * @param inputFile name of the file to read.
+     * @param outputFile name of the file to write.
+     * @throws IOException if either file cannot be read or written, or the last sector is shorter than a block.
+     */
+    public static void cryptFile(ForkJoinPool pool, AESCipher key1, AESCipher key2, boolean encrypt, String inputFile, String outputFile) throws IOException {
+        RandomAccessFile inFile = new RandomAccessFile(inputFile, "r");
+        try {
+            RandomAccessFile outFile = new RandomAccessFile(outputFile, "rw");
+            try {
+                FileChannel in = inFile.getChannel();
+                FileChannel out = outFile.getChannel();
+                long length = in.size();
+                if (length % SECTOR_SIZE > 0 && length % SECTOR_SIZE < 16) {
+                    throw new IOException("Error: The last sector is " + length % SECTOR_SIZE + " bytes; XTS needs at least 16.");
+                }
+                outFile.setLength(length);
+                long window = Math.max(1, MappedFile.WINDOW_SIZE / SECTOR_SIZE) * (long) SECTOR_SIZE; //Whole sectors.
+                for (long pos = 0; pos < length; pos += window) {
+                    long start = AESMetrics.time();
+                    int size = (int) Math.min(window, length - pos);
+                    MappedByteBuffer src = in.map(FileChannel.MapMode.READ_ONLY, pos, size);
+                    MappedByteBuffer dst = out.map(FileChannel.MapMode.READ_WRITE, pos, size);
+                    long read = AESMetrics.time();
+                    pool.invoke(new Chunk(key1, key2, encrypt, pos / SECTOR_SIZE, src, dst, 0, size));
+                    long crypted = AESMetrics.time();
+                    AESMetrics.chunk(start, read, crypted, crypted, (size + 15) / 16); //As in MappedFile, page I/O counts as cipher time.
+                }
+            } finally {
+                outFile.close();
+            }
+        } finally {
+            inFile.close();
+        }
+    }
+
+    /**
+     * Halves its range of sectors until it is at most CHUNK_SECTORS, then runs crypt() on it.
+     */
+    private static class Chunk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final AESCipher key1, key2;
+        private final boolean encrypt;
+        private final long sector;
+        private final ByteBuffer src, dst;
+        private final int from, to;
+
+        Chunk(AESCipher key1, AESCipher key2, boolean encrypt, long sector, ByteBuffer src, ByteBuffer dst, int from, int to) {
+            this.key1 = key1;
+            this.key2 = key2;
+            this.encrypt = encrypt;
+            this.sector = sector;
+            this.src = src;
+            this.dst = dst;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            int sectors = (int) (((long) to - from + SECTOR_SIZE - 1) / SECTOR_SIZE);
+            if (sectors <= CHUNK_SECTORS) {
+                crypt(key1, key2, encrypt, SECTOR_SIZE, sector, src, dst, from, to);
+                return;
+            }
+            int mid = from + sectors / 2 * SECTOR_SIZE;
+            invokeAll(new Chunk(key1, key2, encrypt, sector, src, dst, from, mid),
+                    new Chunk(key1, key2, encrypt, sector + sectors / 2, src, dst, mid, to));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Checks that the block APIs of AESCipher allocate nothing per call on every available
+ * engine but reference, which runs the matrix code of AES: the column word form, byte[] and heap and direct ByteBuffers, in place and
+ * between two buffers, encrypting and decrypting. Each form is run until the JIT has
+ * compiled it, then the bytes the thread allocated over CALLS more calls are read from
+ * com.sun.management.ThreadMXBean. Run with "ant alloc-test"; exits with status 1 if any
+ * form allocates.
+ *
+ * @author Patrick Lu
+ * @author Rishi Dewan
+ */
+public final class AESCipherAllocationTest {
+
+    private static final int BLOCKS = 64;
+    private static final int WARMUP = 20000;
+    private static final int CALLS = 10000;
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private interface Call {
+        void run(AESCipher cipher);
+    }
+
+    public static void main(String[] args) {
+        final int[] words = new int[4 * AESCipher.BATCH];
+        final byte[] in = new byte[16 * BLOCKS];
+        final byte[] out = new byte[16 * BLOCKS];
+        final ByteBuffer heap = ByteBuffer.allocate(16 * BLOCKS);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(16 * BLOCKS);
+        final ByteBuffer little = ByteBuffer.allocateDirect(16 * BLOCKS).order(ByteOrder.LITTLE_ENDIAN);
+        String[] names = {"words", "byte[]", "byte[] in place", "heap", "direct", "direct in place",
+            "direct to heap, relative", "little endian"};
+        Call[] calls = {
+            new Call() {
+                public void run(AESCipher c) {
+                    c.encryptBlocks(words, words, AESCipher.BATCH);
+                    c.decryptBlocks(words, words, AESCipher.BATCH);
+                }
+            },
+            new Call() {
+                public void run(AESCipher c) {
+                    c.encryptBlocks(in, 0, out, 0, BLOCKS);
+                    c.decryptBlocks(out, 0, in, 0, BLOCKS);
+                }
+            },
+            new Call() {
+                public void run(AESCipher c) {
+                    c.encryptBlocks(in, 0, in, 0, BLOCKS);
+                    c.decryptBlocks(in, 0, in, 0, BLOCKS);
+                }
+            },
+            new Call() {
+                public void run(AESCipher c) {
+                    c.encryptBlocks(heap, 0, heap, 0, BLOCKS);
+                    c.decryptBlocks(heap, 0, heap, 0, BLOCKS);
+                }
+            },
+            new Call() {
+                public void run(AESCipher c) {
+                    c.encryptBlocks(direct, 0, heap, 0, BLOCKS);
+                    c.decryptBlocks(heap, 0, direct, 0, BLOCKS);
+                }
+            },
+            new Call() {
+                public void run(AESCipher c) {
+                    c.encryptBlocks(direct, 0, direct, 0, BLOCKS);
+                    c.decryptBlocks(direct, 0, direct, 0, BLOCKS);
+                }
+            },
+            new Call() {
+                public void run(AESCipher c) {
+                    direct.clear();
+                    heap.clear();
+                    c.encryptBlocks(direct, heap, BLOCKS);
+                    heap.flip();
+                    direct.clear();
+                    c.decryptBlocks(heap, direct, BLOCKS);
+                }
+            },
+            new Call() {
+                public void run(AESCipher c) {
+                    c.encryptBlocks(little, 0, little, 0, BLOCKS);
+                    c.decryptBlocks(little, 0, little, 0, BLOCKS);
+                }
+            }
+        };
+        threads.getThreadAllocatedBytes(Thread.currentThread().getId()); //Loads what the first reading needs.
+        AESCipher key = AESCipher.getInstance("000102030405060708090A0B0C0D0E0F");
+        boolean failed = false;
+        for (BlockEngine engine : BlockEngines.all()) {
+            if (!engine.isAvailable() || engine == BlockEngines.REFERENCE) {
+                continue;
+            }
+            AESCipher cipher = key.withEngine(engine);
+            for (int i = 0; i < calls.length; i++) {
+                long bytes = allocated(calls[i], cipher);
+                System.out.printf("%-10s %-26s %6d bytes per call%n", engine.name(), names[i], bytes);
+                failed |= bytes != 0;
+            }
+        }
+        if (failed) {
+            System.out.println("FAILED: a block API allocates.");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * @return the bytes call allocates per run, rounded down.
+     */
+    private static long allocated(Call call, AESCipher cipher) {
+        for (int i = 0; i < WARMUP; i++) {
+            call.run(cipher);
+        }
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < CALLS; i++) {
+            call.run(cipher);
+        }
+        return (threads.getThreadAllocatedBytes(id) - before) / CALLS;
+    }
+}